@@ -18,9 +18,19 @@ const configFileVersion = "1.0.0"
 // Injector Gradle task values
 const injectTraceTaskName = "injectTraceTask"
 const verifyTraceTaskName = "verifyTrace"
-const injectTraceTaskClassName = "io.bitrise.trace.step.InjectTraceTask"
-const injectTraceTaskFileSrcPath = "src/main/java/io/bitrise/trace/step/InjectTraceTask.java"
-const injectTraceTaskFileDstPath = "buildSrc/src/main/java/io/bitrise/trace/step/InjectTraceTask.java"
+const injectTracePluginClassName = "io.bitrise.trace.step.InjectTracePlugin"
+const legacyInjectTraceTaskClassName = "io.bitrise.trace.step.InjectTraceTask"
+const injectTraceTaskSrcDir = "src/main/java/io/bitrise/trace/step"
+const injectTraceTaskDstDir = "buildSrc/src/main/java/io/bitrise/trace/step"
+
+// Gradle properties of the InjectTraceTask
+const versionResolutionProperty = "bitrise.trace.versionResolution"
+const traceSdkVersionProperty = "bitrise.trace.sdkVersion"
+const traceGradlePluginVersionProperty = "bitrise.trace.gradlePluginVersion"
+const localRepositoryProperty = "bitrise.trace.localRepository"
+
+// The directory the local Maven repository of the Trace artifacts is extracted to, relative to the project root
+const localRepositoryDstDir = ".gradle/trace-repository"
 
 // Language dependent values
 const kotlinBuildGradleSuffix = ".gradle.kts"
@@ -28,8 +38,25 @@ const groovyBuildGradleSuffix = ".gradle"
 
 // Configs stores the step's inputs
 type Configs struct {
-	RootProjectPath string `env:"project_location"`
-	GradleOptions   string `env:"gradle_options"`
+	RootProjectPath          string `env:"project_location"`
+	GradleOptions            string `env:"gradle_options"`
+	VersionResolution        string `env:"version_resolution,opt[dynamic,cached]"`
+	TraceSdkVersion          string `env:"trace_sdk_version"`
+	TraceGradlePluginVersion string `env:"trace_gradle_plugin_version"`
+	TraceLocalRepository     string `env:"trace_local_repository"`
+}
+
+// Gets the Gradle properties for the InjectTraceTask, that set the injected versions from the step inputs.
+func (c Configs) versionProperties() []string {
+	properties := []string{fmt.Sprintf("-P%s=%s", versionResolutionProperty, c.VersionResolution)}
+	if c.TraceSdkVersion != "" {
+		properties = append(properties, fmt.Sprintf("-P%s=%s", traceSdkVersionProperty, c.TraceSdkVersion))
+	}
+	if c.TraceGradlePluginVersion != "" {
+		properties = append(properties, fmt.Sprintf("-P%s=%s", traceGradlePluginVersionProperty,
+			c.TraceGradlePluginVersion))
+	}
+	return properties
 }
 
 // Gets an environment variable, throws error when it is not present.
@@ -0,0 +1,90 @@
+package main
+
+import (
+	"os"
+	"reflect"
+	"testing"
+
+	"github.com/bitrise-io/go-steputils/stepconf"
+)
+
+func TestConfigs_versionProperties(t *testing.T) {
+	tests := []struct {
+		name    string
+		configs Configs
+		want    []string
+	}{
+		{
+			name:    "version_resolution_only",
+			configs: Configs{VersionResolution: "dynamic"},
+			want:    []string{"-Pbitrise.trace.versionResolution=dynamic"},
+		},
+		{
+			name:    "pinned_versions",
+			configs: Configs{VersionResolution: "cached", TraceSdkVersion: "0.0.10",
+				TraceGradlePluginVersion: "0.0.7"},
+			want: []string{"-Pbitrise.trace.versionResolution=cached", "-Pbitrise.trace.sdkVersion=0.0.10",
+				"-Pbitrise.trace.gradlePluginVersion=0.0.7"},
+		},
+		{
+			name:    "pinned_trace_gradle_plugin_version",
+			configs: Configs{VersionResolution: "dynamic", TraceGradlePluginVersion: "0.0.7"},
+			want:    []string{"-Pbitrise.trace.versionResolution=dynamic", "-Pbitrise.trace.gradlePluginVersion=0.0.7"},
+		},
+	}
+	for _, tt := range tests {
+		t.Run(tt.name, func(t *testing.T) {
+			if got := tt.configs.versionProperties(); !reflect.DeepEqual(got, tt.want) {
+				t.Errorf("versionProperties() = %v, want %v", got, tt.want)
+			}
+		})
+	}
+}
+
+// The inputs are validated by stepconf with the tags of Configs.
+func TestConfigs_parse(t *testing.T) {
+	tests := []struct {
+		name              string
+		versionResolution string
+		localRepository   string
+		wantErr           bool
+	}{
+		{"dynamic", "dynamic", "", false},
+		{"cached_with_local_repository", "cached", "./trace-repository.tar.gz", false},
+		{"unknown_version_resolution", "latest", "", true},
+		{"missing_version_resolution", "", "", true},
+	}
+	for _, tt := range tests {
+		t.Run(tt.name, func(t *testing.T) {
+			defer setEnv(t, "version_resolution", tt.versionResolution)()
+			defer setEnv(t, "trace_local_repository", tt.localRepository)()
+
+			var configs Configs
+			err := stepconf.Parse(&configs)
+			if (err != nil) != tt.wantErr {
+				t.Errorf("stepconf.Parse() error = %v, wantErr %v", err, tt.wantErr)
+				return
+			}
+			if err == nil && configs.TraceLocalRepository != tt.localRepository {
+				t.Errorf("TraceLocalRepository = %v, want %v", configs.TraceLocalRepository, tt.localRepository)
+			}
+		})
+	}
+}
+
+// Sets the given environment variable, and returns the function that restores its original value.
+func setEnv(t *testing.T, key, value string) func() {
+	original, present := os.LookupEnv(key)
+	if err := os.Setenv(key, value); err != nil {
+		t.Fatal(err)
+	}
+	return func() {
+		restore := func() error { return os.Unsetenv(key) }
+		if present {
+			restore = func() error { return os.Setenv(key, original) }
+		}
+		if err := restore(); err != nil {
+			t.Error(err)
+		}
+	}
+}
@@ -37,8 +37,19 @@ func main() {
 	}
 	log.Infof("Added Trace injector to project")
 
+	properties := configs.versionProperties()
+	if configs.TraceLocalRepository != "" {
+		log.Infof("Preparing the local repository of Trace")
+		repositoryDir, err := prepareLocalRepository(configs.RootProjectPath, configs.TraceLocalRepository)
+		if err != nil {
+			failf("Could not prepare the local repository of Trace, aborting build. Reason: %s\n", err)
+		}
+		properties = append(properties, fmt.Sprintf("-P%s=%s", localRepositoryProperty, repositoryDir))
+		log.Infof("Trace artifacts are resolved from %s", repositoryDir)
+	}
+
 	log.Infof("Running Trace injector on project")
-	if err := runTraceInjector(configs.RootProjectPath, configs.GradleOptions); err != nil {
+	if err := runTraceInjector(configs.RootProjectPath, configs.GradleOptions, properties); err != nil {
 		failf("Error when injecting Trace to project, aborting build. Reason: %s\n", err)
 	}
 	log.Infof("Trace injector successfully injected the SDK")
@@ -0,0 +1,171 @@
+package io.bitrise.trace.step;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the text processing hot paths of {@link InjectTraceTask} on the {@link BuildFileCorpus}: the legacy
+ * line based methods, the {@link ReferenceBuildFileProcessor} and the lexer based replacements. Run with the jmh task,
+ * which enables the GC profiler for the allocation rates.
+ * <p>
+ * Before measuring, the setup checks that the lexer based paths produce the same code as the reference on the
+ * benchmarked corpus, so an optimization that changes the output fails instead of being measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InjectTraceTaskBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int lineCount;
+
+    // The name of a BuildFileCorpus.Variant, the generated benchmark code can only set public types
+    @Param({"TYPICAL", "COMMENT_HEAVY", "LITERAL_HEAVY"})
+    public String variant;
+
+    private String content;
+    private List<String> lines;
+    private String referenceCode;
+    private Pattern greedyCommentBlockPattern;
+    private Path buildFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        content = BuildFileCorpus.generate(lineCount, BuildFileCorpus.Variant.valueOf(variant));
+        lines = Arrays.asList(content.split("\n", -1));
+        referenceCode = ReferenceBuildFileProcessor.removeComments(content);
+        greedyCommentBlockPattern = ReferenceBuildFileProcessor.getGreedyCommentBlockPattern();
+        buildFile = Files.createTempFile("build", ".gradle");
+        Files.write(buildFile, content.getBytes(StandardCharsets.UTF_8));
+        checkDifferential();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(buildFile);
+    }
+
+    /**
+     * Checks that the lexer based paths produce the same code as the reference implementation.
+     *
+     * @throws IllegalStateException when the outputs differ.
+     */
+    private void checkDifferential() {
+        final BuildScriptTokens tokens = BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY);
+        if (!ReferenceBuildFileProcessor.withMultilineCommentLineBreaks(tokens, tokens.getCode())
+                .equals(referenceCode)) {
+            throw new IllegalStateException(String.format(
+                    "The code of the lexer differs from the reference for %s %d.", variant, lineCount));
+        }
+    }
+
+    //region Legacy and reference implementations
+
+    @Benchmark
+    public String removeCommentedCode() {
+        return ReferenceBuildFileProcessor.removeCommentedCode(lines);
+    }
+
+    @Benchmark
+    public void getIndexOfFromCode(final Blackhole blackhole) {
+        for (final String line : lines) {
+            blackhole.consume(ReferenceBuildFileProcessor.getIndexOfFromCode(line, "//"));
+            blackhole.consume(ReferenceBuildFileProcessor.getIndexOfFromCode(line, "/*"));
+        }
+    }
+
+    @Benchmark
+    public void removeGreedyCommentBlocksFromLine(final Blackhole blackhole) {
+        for (final String line : lines) {
+            blackhole.consume(ReferenceBuildFileProcessor.removeGreedyCommentBlocksFromLine(line,
+                    greedyCommentBlockPattern));
+        }
+    }
+
+    @Benchmark
+    public List<String> referenceFindStringLiterals() {
+        return ReferenceBuildFileProcessor.findStringLiterals(referenceCode);
+    }
+
+    @Benchmark
+    public String referenceUpdateBuildScriptContent() {
+        return ReferenceBuildFileProcessor.updateBuildScriptContent(content);
+    }
+    //endregion
+
+    //region Lexer based implementations
+
+    @Benchmark
+    public String lexerGetCode() {
+        return BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY).getCode();
+    }
+
+    @Benchmark
+    public BuildScriptTokens tokenize() {
+        return BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY);
+    }
+
+    /**
+     * Reads the build file, updates the buildscript block and streams the result to a Writer that drops it, so the
+     * result is not affected by the disk writes.
+     *
+     * @return the result of the update.
+     * @throws IOException when any I/O error occurs with the build file.
+     */
+    @Benchmark
+    public boolean updateBuildScriptContent() throws IOException {
+        final BuildFileTransaction.BuildFile file = new BuildFileTransaction().edit(buildFile);
+        final boolean result = InjectTraceTask.updateBuildScriptContent(file,
+                InjectTraceTask.DYNAMIC_VERSION, null);
+        file.writeTo(NullWriter.INSTANCE);
+        return result;
+    }
+    //endregion
+
+    /**
+     * Writer that drops everything written to it.
+     */
+    private static class NullWriter extends Writer {
+        private static final NullWriter INSTANCE = new NullWriter();
+
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) {
+            // Dropped
+        }
+
+        @Override
+        public void flush() {
+            // Nothing to flush
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.bitrise.trace.step;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scanning of comment and quote markers: the legacy line based
+ * {@link ReferenceBuildFileProcessor#getIndexOfFromCode} and {@link ReferenceBuildFileProcessor#removeCommentedCode}
+ * against {@link BuildScriptLexer}, and the {@link MarkerScanner} kernel against a chain of comparisons and a SWAR
+ * (four chars in a long) variant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkerScannerBenchmark {
+
+    private static final MarkerScanner STRING_MARKERS = MarkerScanner.of("\"\\$\n\r");
+    private static final long LANES = 0x0001000100010001L;
+    private static final long HIGH_BITS = 0x8000800080008000L;
+    private static final long[] STRING_MARKER_PATTERNS = {LANES * '"', LANES * '\\', LANES * '$', LANES * '\n',
+            LANES * '\r'};
+
+    @Param({"1000", "10000"})
+    public int lineCount;
+
+    private List<String> lines;
+    private CharBuffer content;
+    private char[] chars;
+
+    @Setup
+    public void setUp() {
+        lines = new ArrayList<>(lineCount);
+        final StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            final String line;
+            switch (i % 4) {
+                case 0:
+                    line = "    implementation \"com.example.library:artifact-" + i + ":1.2.3\" // pinned";
+                    break;
+                case 1:
+                    line = "    /* block comment with a \"quote\" and a 'char' */ def value" + i + " = 'it\\'s'";
+                    break;
+                case 2:
+                    line = "    println \"${project.name} has ${project.version} // not a comment\"";
+                    break;
+                default:
+                    line = "    android { compileSdkVersion 30; buildToolsVersion \"30.0.2\" }";
+                    break;
+            }
+            lines.add(line);
+            stringBuilder.append(line).append('\n');
+        }
+        chars = stringBuilder.toString().toCharArray();
+        content = CharBuffer.wrap(chars);
+    }
+
+    @Benchmark
+    public int legacyGetIndexOfFromCode() {
+        int result = 0;
+        for (final String line : lines) {
+            result += ReferenceBuildFileProcessor.getIndexOfFromCode(line, "//");
+            result += ReferenceBuildFileProcessor.getIndexOfFromCode(line, "/*");
+        }
+        return result;
+    }
+
+    @Benchmark
+    public String legacyRemoveCommentedCode() {
+        return ReferenceBuildFileProcessor.removeCommentedCode(lines);
+    }
+
+    @Benchmark
+    public String lexerGetCode() {
+        return BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY).getCode();
+    }
+
+    @Benchmark
+    public int markerScanner() {
+        int result = 0;
+        for (int i = STRING_MARKERS.indexOf(content, 0, chars.length); i < chars.length;
+             i = STRING_MARKERS.indexOf(content, i + 1, chars.length)) {
+            result += i;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int comparisonChain() {
+        int result = 0;
+        for (int i = 0; i < chars.length; i++) {
+            final char c = content.charAt(i);
+            if (c == '"' || c == '\\' || c == '$' || c == '\n' || c == '\r') {
+                result += i;
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int swar() {
+        int result = 0;
+        for (int i = swarIndexOf(chars, 0); i < chars.length; i = swarIndexOf(chars, i + 1)) {
+            result += i;
+        }
+        return result;
+    }
+
+    /**
+     * SWAR variant of {@link MarkerScanner#indexOf(CharSequence, int, int)}: four chars are packed into a long and
+     * compared to all the markers at once.
+     *
+     * @param chars the chars to scan.
+     * @param from  the index to start from.
+     * @return the index of the first marker, or the length of the chars if there is no marker.
+     */
+    private static int swarIndexOf(final char[] chars, final int from) {
+        int i = from;
+        for (; i + 4 <= chars.length; i += 4) {
+            final long word = (long) chars[i] | (long) chars[i + 1] << 16 | (long) chars[i + 2] << 32 |
+                    (long) chars[i + 3] << 48;
+            long zeroLanes = 0;
+            for (final long pattern : STRING_MARKER_PATTERNS) {
+                final long difference = word ^ pattern;
+                zeroLanes |= (difference - LANES) & ~difference;
+            }
+            zeroLanes &= HIGH_BITS;
+            if (zeroLanes != 0) {
+                return i + (Long.numberOfTrailingZeros(zeroLanes) >>> 4);
+            }
+        }
+        for (; i < chars.length; i++) {
+            if (STRING_MARKERS.isMarker(chars[i])) {
+                return i;
+            }
+        }
+        return chars.length;
+    }
+}
@@ -0,0 +1,221 @@
+package io.bitrise.trace.step;
+
+import java.util.Arrays;
+
+/**
+ * Structural index of the blocks of a Gradle build script, such as {@code buildscript}, {@code plugins},
+ * {@code dependencies}, {@code repositories} or {@code android}. It is built from {@link BuildScriptTokens} in a
+ * single pass with brace matching, so braces in String literals and comments are never counted. Every pair of braces
+ * is a block, a block is named when its opening brace follows an identifier ({@code android {}}) or a call
+ * ({@code register("name") {}}). The blocks are stored in the order of their opening braces, in parallel primitive
+ * arrays.
+ * <p>
+ * Unclosed blocks end at the end of the text, unmatched closing braces are ignored.
+ */
+class BlockIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final BuildScriptTokens tokens;
+    private int[] nameTokens = new int[INITIAL_CAPACITY];
+    private int[] openTokens = new int[INITIAL_CAPACITY];
+    private int[] closeTokens = new int[INITIAL_CAPACITY];
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private BlockIndex(final BuildScriptTokens tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Builds the BlockIndex of the given tokens.
+     *
+     * @param tokens the tokens of a build script.
+     * @return the BlockIndex.
+     */
+    static BlockIndex of(final BuildScriptTokens tokens) {
+        final BlockIndex blockIndex = new BlockIndex(tokens);
+        int[] stack = new int[INITIAL_CAPACITY];
+        int depth = 0;
+        int previousCodeToken = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            final BuildScriptTokens.Type type = tokens.type(i);
+            if (type == BuildScriptTokens.Type.OPEN_BRACE) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth] = blockIndex.add(findNameToken(tokens, previousCodeToken), i,
+                        depth > 0 ? stack[depth - 1] : -1);
+                depth++;
+            } else if (type == BuildScriptTokens.Type.CLOSE_BRACE && depth > 0) {
+                depth--;
+                blockIndex.closeTokens[stack[depth]] = i;
+            }
+            if (!type.isComment()) {
+                previousCodeToken = i;
+            }
+        }
+        return blockIndex;
+    }
+
+    /**
+     * Finds the token of the name of a block, based on the last code token before the opening brace.
+     *
+     * @param tokens            the tokens of the build script.
+     * @param previousCodeToken the index of the last code token before the opening brace.
+     * @return the index of the identifier token, or {@code -1} if the block has no name.
+     */
+    private static int findNameToken(final BuildScriptTokens tokens, final int previousCodeToken) {
+        if (previousCodeToken < 0) {
+            return -1;
+        }
+        if (tokens.type(previousCodeToken) == BuildScriptTokens.Type.IDENTIFIER) {
+            return previousCodeToken;
+        }
+        if (!tokens.textEquals(previousCodeToken, ")")) {
+            return -1;
+        }
+        int parentheses = 0;
+        for (int i = previousCodeToken; i >= 0; i--) {
+            if (tokens.type(i) != BuildScriptTokens.Type.SYMBOL) {
+                continue;
+            }
+            if (tokens.textEquals(i, ")")) {
+                parentheses++;
+            } else if (tokens.textEquals(i, "(") && --parentheses == 0) {
+                final int nameToken = tokens.previousCodeToken(i);
+                return nameToken >= 0 && tokens.type(nameToken) == BuildScriptTokens.Type.IDENTIFIER
+                        ? nameToken
+                        : -1;
+            }
+        }
+        return -1;
+    }
+
+    private int add(final int nameToken, final int openToken, final int parent) {
+        if (size == nameTokens.length) {
+            final int newCapacity = size * 2;
+            nameTokens = Arrays.copyOf(nameTokens, newCapacity);
+            openTokens = Arrays.copyOf(openTokens, newCapacity);
+            closeTokens = Arrays.copyOf(closeTokens, newCapacity);
+            parents = Arrays.copyOf(parents, newCapacity);
+        }
+        nameTokens[size] = nameToken;
+        openTokens[size] = openToken;
+        closeTokens[size] = -1;
+        parents[size] = parent;
+        return size++;
+    }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return the number of blocks.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the name of the block on the given index.
+     *
+     * @param index the index of the block.
+     * @return the name, or {@code null} if the block has no name.
+     */
+    String name(final int index) {
+        return nameTokens[index] < 0 ? null : tokens.text(nameTokens[index]);
+    }
+
+    /**
+     * Gets the index of the enclosing block of the block on the given index.
+     *
+     * @param index the index of the block.
+     * @return the index of the parent block, or {@code -1} for top level blocks.
+     */
+    int parent(final int index) {
+        return parents[index];
+    }
+
+    /**
+     * Gets the start offset of the block on the given index, that is the start of its name, or the opening brace
+     * for blocks without name.
+     *
+     * @param index the index of the block.
+     * @return the start offset.
+     */
+    int start(final int index) {
+        return tokens.start(nameTokens[index] < 0 ? openTokens[index] : nameTokens[index]);
+    }
+
+    /**
+     * Gets the start offset of the body of the block on the given index, that is the offset right after the opening
+     * brace.
+     *
+     * @param index the index of the block.
+     * @return the start offset of the body.
+     */
+    int bodyStart(final int index) {
+        return tokens.end(openTokens[index]);
+    }
+
+    /**
+     * Gets the end offset (exclusive) of the body of the block on the given index, that is the offset of the closing
+     * brace, or the end of the text for unclosed blocks.
+     *
+     * @param index the index of the block.
+     * @return the end offset of the body.
+     */
+    int bodyEnd(final int index) {
+        return closeTokens[index] < 0 ? tokens.getText().length() : tokens.start(closeTokens[index]);
+    }
+
+    /**
+     * Gets the end offset (exclusive) of the block on the given index, that is the offset right after the closing
+     * brace, or the end of the text for unclosed blocks.
+     *
+     * @param index the index of the block.
+     * @return the end offset.
+     */
+    int end(final int index) {
+        return closeTokens[index] < 0 ? tokens.getText().length() : tokens.end(closeTokens[index]);
+    }
+
+    /**
+     * Checks if the block on the given index has a closing brace.
+     *
+     * @param index the index of the block.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    boolean isClosed(final int index) {
+        return closeTokens[index] >= 0;
+    }
+
+    /**
+     * Finds the first top level block with the given name.
+     *
+     * @param name the name of the block.
+     * @return the index of the block, or {@code -1} if there is no such block.
+     */
+    int find(final String name) {
+        return findChild(-1, name);
+    }
+
+    /**
+     * Finds the first block with the given name directly in the given block.
+     *
+     * @param parent the index of the enclosing block, {@code -1} for top level blocks.
+     * @param name   the name of the block.
+     * @return the index of the block, or {@code -1} if there is no such block.
+     */
+    int findChild(final int parent, final String name) {
+        for (int i = parent + 1; i < size; i++) {
+            if (parents[i] == parent && nameTokens[i] >= 0 && tokens.textEquals(nameTokens[i], name)) {
+                return i;
+            }
+            if (parent >= 0 && closeTokens[parent] >= 0 && openTokens[i] > closeTokens[parent]) {
+                break;
+            }
+        }
+        return -1;
+    }
+}
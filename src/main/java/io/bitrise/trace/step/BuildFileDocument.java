@@ -0,0 +1,342 @@
+package io.bitrise.trace.step;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * In-memory model of an edited build file, implemented as a piece table. The original content is never copied or
+ * changed, inserted texts are appended to a single add buffer, and the document is described by a sequence of pieces,
+ * each referring to a range of either of the two buffers. An edit only splits the pieces around its range, so its
+ * cost does not depend on the size of the file.
+ * <p>
+ * The tokens of the document are kept up to date incrementally: the edits since the last tokenization are tracked as a
+ * single dirty region, and on the next call of {@link #getTokens()} only that region is tokenized again (see
+ * {@link BuildScriptLexer#retokenize(BuildScriptTokens, CharSequence, BuildScriptLexer.Dialect, int, int, int)}). This
+ * way applying N edits to a file costs O(size + N * edit) instead of O(N * size).
+ * <p>
+ * All offsets refer to the current content of the document, that already contains the previous edits.
+ */
+class BuildFileDocument implements CharSequence {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final CharSequence original;
+    private final StringBuilder added = new StringBuilder();
+    private final BuildScriptLexer.Dialect dialect;
+
+    // The pieces: the buffer, the start of the range in the buffer, and the length of the range
+    private boolean[] pieceAdded = new boolean[INITIAL_CAPACITY];
+    private int[] pieceStarts = new int[INITIAL_CAPACITY];
+    private int[] pieceLengths = new int[INITIAL_CAPACITY];
+    // The offset of each piece in the document, valid up to (exclusive) validOffsets
+    private int[] pieceOffsets = new int[INITIAL_CAPACITY];
+    private int validOffsets;
+    private int pieceCount;
+    private int length;
+    private int lastPiece;
+
+    private BuildScriptTokens tokens;
+    private int dirtyStart = -1;
+    private int dirtyOldEnd;
+    private int dirtyNewEnd;
+    private int editCount;
+
+    /**
+     * Constructor for class.
+     *
+     * @param original the original content of the build file.
+     * @param dialect  the language of the build file.
+     */
+    BuildFileDocument(final CharSequence original, final BuildScriptLexer.Dialect dialect) {
+        this.original = original;
+        this.dialect = dialect;
+        this.length = original.length();
+        if (length > 0) {
+            pieceStarts[0] = 0;
+            pieceLengths[0] = length;
+            pieceCount = 1;
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.format("Index %d out of range [0, %d).", index, length));
+        }
+        final int piece = findPiece(index);
+        final int position = pieceStarts[piece] + index - pieceOffsets[piece];
+        return pieceAdded[piece] ? added.charAt(position) : original.charAt(position);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        checkRange(start, end);
+        final StringBuilder stringBuilder = new StringBuilder(end - start);
+        try {
+            appendTo(stringBuilder, start, end);
+        } catch (final IOException e) {
+            // StringBuilder does not throw IOException
+            throw new IllegalStateException(e);
+        }
+        return stringBuilder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    /**
+     * Gets the tokens of the current content. After edits only the changed region is tokenized again.
+     *
+     * @return the tokens.
+     */
+    BuildScriptTokens getTokens() {
+        if (tokens == null) {
+            tokens = BuildScriptLexer.tokenize(this, dialect);
+        } else if (dirtyStart >= 0) {
+            tokens = BuildScriptLexer.retokenize(tokens, this, dialect, dirtyStart, dirtyOldEnd, dirtyNewEnd);
+        }
+        dirtyStart = -1;
+        return tokens;
+    }
+
+    /**
+     * Replaces the given range of the content with the given text.
+     *
+     * @param start the start offset (inclusive) of the range.
+     * @param end   the end offset (exclusive) of the range.
+     * @param text  the text to insert.
+     */
+    void replace(final int start, final int end, final CharSequence text) {
+        checkRange(start, end);
+        if (start == end && text.length() == 0) {
+            return;
+        }
+        markDirty(start, end, text.length());
+
+        final int removeFrom = split(start);
+        final int removeTo = split(end);
+        final int insertCount = text.length() > 0 ? 1 : 0;
+        final int shift = insertCount - (removeTo - removeFrom);
+        ensureCapacity(pieceCount + shift);
+        System.arraycopy(pieceAdded, removeTo, pieceAdded, removeTo + shift, pieceCount - removeTo);
+        System.arraycopy(pieceStarts, removeTo, pieceStarts, removeTo + shift, pieceCount - removeTo);
+        System.arraycopy(pieceLengths, removeTo, pieceLengths, removeTo + shift, pieceCount - removeTo);
+        if (insertCount > 0) {
+            pieceAdded[removeFrom] = true;
+            pieceStarts[removeFrom] = added.length();
+            pieceLengths[removeFrom] = text.length();
+            added.append(text);
+        }
+        pieceCount += shift;
+        length += text.length() - (end - start);
+        validOffsets = Math.min(validOffsets, removeFrom);
+        lastPiece = 0;
+        editCount++;
+    }
+
+    /**
+     * Checks if the document has been edited.
+     *
+     * @return {@code true} if it has been, {@code false} otherwise.
+     */
+    boolean isModified() {
+        return editCount > 0;
+    }
+
+    /**
+     * Gets the number of the pieces the document consists of. Used for testing.
+     *
+     * @return the number of pieces.
+     */
+    int getPieceCount() {
+        return pieceCount;
+    }
+
+    /**
+     * Appends the given range of the content to the given Appendable, piece by piece.
+     *
+     * @param appendable the Appendable to append to.
+     * @param start      the start offset (inclusive) of the range.
+     * @param end        the end offset (exclusive) of the range.
+     * @throws IOException when any I/O error occurs with the Appendable.
+     */
+    void appendTo(final Appendable appendable, final int start, final int end) throws IOException {
+        checkRange(start, end);
+        if (start == end) {
+            return;
+        }
+        for (int piece = findPiece(start); piece < pieceCount && pieceOffsets[piece] < end; piece++) {
+            final int from = Math.max(start, pieceOffsets[piece]) - pieceOffsets[piece] + pieceStarts[piece];
+            final int to = Math.min(end, pieceOffsets[piece] + pieceLengths[piece]) - pieceOffsets[piece] +
+                    pieceStarts[piece];
+            if (appendable instanceof Writer) {
+                write((Writer) appendable, pieceAdded[piece] ? added : original, from, to);
+            } else {
+                appendable.append(pieceAdded[piece] ? added : original, from, to);
+            }
+            updateOffsets(piece + 1);
+        }
+    }
+
+    /**
+     * Writes the given range of the given text to the given Writer. {@link Writer#append(CharSequence, int, int)}
+     * would copy the range to a String first, that is a full size copy of the file for the original content, so
+     * the chars are written from the backing array of the text, or in chunks of {@link BuildFileIO#BUFFER_SIZE}.
+     *
+     * @param writer the Writer to write to.
+     * @param text   the text to write from.
+     * @param from   the start index (inclusive) of the range.
+     * @param to     the end index (exclusive) of the range.
+     * @throws IOException when any I/O error occurs with the Writer.
+     */
+    private static void write(final Writer writer, final CharSequence text, final int from, final int to)
+            throws IOException {
+        if (text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+            final CharBuffer buffer = (CharBuffer) text;
+            writer.write(buffer.array(), buffer.arrayOffset() + buffer.position() + from, to - from);
+            return;
+        }
+        final char[] chunk = new char[Math.min(to - from, BuildFileIO.BUFFER_SIZE)];
+        for (int chunkStart = from; chunkStart < to; chunkStart += chunk.length) {
+            final int chunkEnd = Math.min(to, chunkStart + chunk.length);
+            if (text instanceof StringBuilder) {
+                ((StringBuilder) text).getChars(chunkStart, chunkEnd, chunk, 0);
+            } else {
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                    chunk[i - chunkStart] = text.charAt(i);
+                }
+            }
+            writer.write(chunk, 0, chunkEnd - chunkStart);
+        }
+    }
+
+    /**
+     * Extends the dirty region with the given edit. The region is stored in the coordinates of the content at the
+     * last tokenization (start, old end) and in the coordinates of the current content (start, new end).
+     *
+     * @param start      the start offset of the edit in the current content.
+     * @param end        the end offset of the edit in the current content.
+     * @param textLength the length of the inserted text.
+     */
+    private void markDirty(final int start, final int end, final int textLength) {
+        if (tokens == null) {
+            return;
+        }
+        int regionEnd = end;
+        if (dirtyStart < 0) {
+            dirtyStart = start;
+            dirtyOldEnd = end;
+        } else {
+            dirtyStart = Math.min(dirtyStart, start);
+            if (end > dirtyNewEnd) {
+                dirtyOldEnd = end - (dirtyNewEnd - dirtyOldEnd);
+            } else {
+                regionEnd = dirtyNewEnd;
+            }
+        }
+        dirtyNewEnd = regionEnd + textLength - (end - start);
+    }
+
+    /**
+     * Makes sure there is a piece boundary on the given offset.
+     *
+     * @param offset the offset.
+     * @return the index of the piece that starts on the offset, or the number of pieces if the offset is the end of
+     * the document.
+     */
+    private int split(final int offset) {
+        if (offset == length) {
+            return pieceCount;
+        }
+        final int piece = findPiece(offset);
+        final int delta = offset - pieceOffsets[piece];
+        if (delta == 0) {
+            return piece;
+        }
+        ensureCapacity(pieceCount + 1);
+        System.arraycopy(pieceAdded, piece + 1, pieceAdded, piece + 2, pieceCount - piece - 1);
+        System.arraycopy(pieceStarts, piece + 1, pieceStarts, piece + 2, pieceCount - piece - 1);
+        System.arraycopy(pieceLengths, piece + 1, pieceLengths, piece + 2, pieceCount - piece - 1);
+        pieceAdded[piece + 1] = pieceAdded[piece];
+        pieceStarts[piece + 1] = pieceStarts[piece] + delta;
+        pieceLengths[piece + 1] = pieceLengths[piece] - delta;
+        pieceLengths[piece] = delta;
+        pieceCount++;
+        validOffsets = Math.min(validOffsets, piece + 1);
+        return piece + 1;
+    }
+
+    /**
+     * Gets the index of the piece that contains the given offset. Sequential access is served from the last found
+     * piece, otherwise the piece is looked up with binary search.
+     *
+     * @param offset the offset, it must be smaller than the length of the document.
+     * @return the index of the piece.
+     */
+    private int findPiece(final int offset) {
+        updateOffsets(lastPiece);
+        if (offset >= pieceOffsets[lastPiece] && offset < pieceOffsets[lastPiece] + pieceLengths[lastPiece]) {
+            return lastPiece;
+        }
+        if (lastPiece + 1 < pieceCount) {
+            updateOffsets(lastPiece + 1);
+            final int next = lastPiece + 1;
+            if (offset >= pieceOffsets[next] && offset < pieceOffsets[next] + pieceLengths[next]) {
+                lastPiece = next;
+                return next;
+            }
+        }
+        updateOffsets(pieceCount - 1);
+        int low = 0;
+        int high = pieceCount - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (pieceOffsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        lastPiece = low;
+        return low;
+    }
+
+    /**
+     * Makes sure the offset of the pieces are valid up to (inclusive) the given piece.
+     *
+     * @param piece the index of the piece.
+     */
+    private void updateOffsets(final int piece) {
+        for (; validOffsets <= piece && validOffsets < pieceCount; validOffsets++) {
+            pieceOffsets[validOffsets] = validOffsets == 0
+                    ? 0
+                    : pieceOffsets[validOffsets - 1] + pieceLengths[validOffsets - 1];
+        }
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > pieceStarts.length) {
+            final int newCapacity = Math.max(capacity, pieceStarts.length * 2);
+            pieceAdded = Arrays.copyOf(pieceAdded, newCapacity);
+            pieceStarts = Arrays.copyOf(pieceStarts, newCapacity);
+            pieceLengths = Arrays.copyOf(pieceLengths, newCapacity);
+            pieceOffsets = Arrays.copyOf(pieceOffsets, newCapacity);
+        }
+    }
+
+    private void checkRange(final int start, final int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(String.format("Invalid range [%d, %d) for length %d.", start, end,
+                    length));
+        }
+    }
+}
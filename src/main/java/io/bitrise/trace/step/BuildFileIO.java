@@ -0,0 +1,101 @@
+package io.bitrise.trace.step;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Helper for reading and writing Gradle build files with a bounded working set. Files are read through a
+ * {@link FileChannel} with a fixed size buffer and decoded directly into a single {@link CharBuffer}, which is the only
+ * full size copy of the content on the heap. For writing see {@link BuildFileTransaction}, which streams the updated
+ * content through an encoder with a buffer of the same size, so it never has to be materialized as a whole.
+ * <p>
+ * Note: memory mapping is intentionally not used, as on some platforms a mapped file can not be replaced until the
+ * mapping is garbage collected, and the build files are rewritten right after they have been read.
+ */
+class BuildFileIO {
+
+    /**
+     * The size of the byte buffers used for reading and writing.
+     */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private BuildFileIO() {
+        // Static helper
+    }
+
+    /**
+     * Reads the given UTF-8 encoded file. Content that is not valid UTF-8 is reported instead of being replaced, as the
+     * read content is written back to the file, and a replacement character would silently damage it.
+     *
+     * @param path the path of the file.
+     * @return a CharBuffer with the content of the file, positioned to the start of the content.
+     * @throws IOException when the file is not valid UTF-8, or any I/O error occurs with the file on the path.
+     */
+    static CharBuffer read(final Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                                                                 .onMalformedInput(CodingErrorAction.REPORT)
+                                                                 .onUnmappableCharacter(CodingErrorAction.REPORT);
+            // UTF-8 never decodes to more chars than bytes
+            final CharBuffer content = CharBuffer.allocate((int) Math.min(Integer.MAX_VALUE, channel.size()));
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                decode(decoder, buffer, content, false);
+                buffer.compact();
+            }
+            buffer.flip();
+            decode(decoder, buffer, content, true);
+            decoder.flush(content);
+            content.flip();
+            return content;
+        } catch (final CharacterCodingException e) {
+            throw new IOException(String.format("\"%s\" is not a valid UTF-8 file, aborting build.", path), e);
+        }
+    }
+
+    /**
+     * Decodes the given bytes to the given CharBuffer.
+     *
+     * @param decoder     the decoder to use.
+     * @param buffer      the bytes to decode.
+     * @param content     the CharBuffer to decode to.
+     * @param endOfInput  {@code true} if there will be no more bytes, {@code false} otherwise.
+     * @throws CharacterCodingException when the bytes can not be decoded.
+     */
+    private static void decode(final CharsetDecoder decoder, final ByteBuffer buffer, final CharBuffer content,
+                               final boolean endOfInput) throws CharacterCodingException {
+        final CoderResult result = decoder.decode(buffer, content, endOfInput);
+        if (result.isError() || result.isOverflow()) {
+            result.throwException();
+        }
+    }
+
+    /**
+     * Creates a temporary file next to the given file, that can replace it with a move. The POSIX permissions of the
+     * given file are copied to the temporary file, when the file system supports them.
+     *
+     * @param path the path of the file to replace later.
+     * @return the path of the temporary file.
+     * @throws IOException when any I/O error occurs with the files on the path.
+     */
+    static Path createTempFileFor(final Path path) throws IOException {
+        final Path tempPath = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(),
+                ".tmp");
+        if (Files.exists(path) && Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(tempPath, Files.getPosixFilePermissions(path));
+        }
+        return tempPath;
+    }
+}
@@ -0,0 +1,430 @@
+package io.bitrise.trace.step;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the planned changes of build files and applies them at once. Every file is read and tokenized only once,
+ * no matter how many edits are made to it, and every changed file is written only once on {@link #commit()}:
+ * the new content is written to a temporary file next to the original one, synced to the disk and then moved over
+ * the original with an atomic move. This way a build file is never left half edited, even if the process dies
+ * during the commit.
+ * <p>
+ * Files are only written if their content changes: copies and generated files are skipped when the destination has
+ * the same size and {@link ContentHash} as the planned content, and edited build files when the planned content has
+ * the same hash as the file.
+ * This keeps the modification times of unchanged files, so Gradle can reuse their compiled build scripts.
+ */
+class BuildFileTransaction {
+
+    /**
+     * The suffix of the staged files, see {@link #getStagedPath(Path)}.
+     */
+    private static final String STAGED_FILE_SUFFIX = ".trace-staged";
+
+    private final Map<Path, BuildFile> buildFiles = new LinkedHashMap<>();
+    private final Map<Path, Path> copies = new LinkedHashMap<>();
+    private final Map<Path, byte[]> generatedFiles = new LinkedHashMap<>();
+    private final Map<Path, Path> stagedFiles = new LinkedHashMap<>();
+    private final Map<Path, byte[]> sourceHashes = new HashMap<>();
+    private long writtenBytes;
+
+    /**
+     * Gets the {@link BuildFile} for planning the edits of the given file. The file is read on the first call for a
+     * given path, later calls return the same instance.
+     *
+     * @param path the path of the file.
+     * @return the BuildFile.
+     * @throws IOException when any I/O error occurs with the file on the path.
+     */
+    BuildFile edit(final Path path) throws IOException {
+        final Path key = path.toAbsolutePath().normalize();
+        BuildFile buildFile = buildFiles.get(key);
+        if (buildFile == null) {
+            buildFile = new BuildFile(key, BuildFileIO.read(key));
+            buildFiles.put(key, buildFile);
+        }
+        return buildFile;
+    }
+
+    /**
+     * Plans copying a file. If the destination already exists with the same content (same size and
+     * {@link ContentHash}), nothing is planned, so copying the same file again is a no-op. If it exists with a
+     * different content, it is replaced on {@link #commit()}. The hash of a source is computed only once per
+     * transaction.
+     *
+     * @param source      the path of the file to copy.
+     * @param destination the path to copy to.
+     * @return {@code true} if the copy has been planned, {@code false} if the destination is already up to date.
+     * @throws IOException when any I/O error occurs with the files.
+     */
+    boolean copy(final Path source, final Path destination) throws IOException {
+        if (Files.isRegularFile(destination) && Files.size(destination) == Files.size(source)
+                && MessageDigest.isEqual(ContentHash.of(destination), getSourceHash(source))) {
+            return false;
+        }
+        copies.put(destination.toAbsolutePath().normalize(), source);
+        return true;
+    }
+
+    /**
+     * Plans writing a file with the given content, for files that are generated by the step instead of copied. If the
+     * destination already exists with the same content (same size and {@link ContentHash}), nothing is planned.
+     *
+     * @param destination the path of the file.
+     * @param content     the content of the file, it is written with UTF-8 encoding.
+     * @return {@code true} if the write has been planned, {@code false} if the destination is already up to date.
+     * @throws IOException when any I/O error occurs with the file.
+     */
+    boolean write(final Path destination, final String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (Files.isRegularFile(destination) && Files.size(destination) == bytes.length
+                && MessageDigest.isEqual(ContentHash.of(destination), ContentHash.of(bytes))) {
+            return false;
+        }
+        generatedFiles.put(destination.toAbsolutePath().normalize(), bytes);
+        return true;
+    }
+
+    /**
+     * Gets the hash of the given source file, computed on the first call for a given path.
+     *
+     * @param source the path of the file.
+     * @return the hash.
+     * @throws IOException when any I/O error occurs with the file on the path.
+     */
+    private byte[] getSourceHash(final Path source) throws IOException {
+        final Path key = source.toAbsolutePath().normalize();
+        byte[] hash = sourceHashes.get(key);
+        if (hash == null) {
+            hash = ContentHash.of(key);
+            sourceHashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the path, that the planned content of the given build file is staged to by {@link #stage()}: a file next
+     * to the build file, so the staged file can replace it with a move.
+     *
+     * @param path the path of the build file.
+     * @return the path of the staged file.
+     */
+    static Path getStagedPath(final Path path) {
+        final Path key = path.toAbsolutePath().normalize();
+        return key.resolveSibling(key.getFileName() + STAGED_FILE_SUFFIX);
+    }
+
+    /**
+     * Writes the planned content of the edited build files to their staged paths (see {@link #getStagedPath(Path)})
+     * instead of the build files, so several transactions, for example of parallel workers, can prepare their edits,
+     * and a single transaction replaces the build files only after all of them have succeeded, see
+     * {@link #publish(Path)}. A staged file is written to a temporary file and moved to the staged path, so it is
+     * either complete or missing. Build files whose content would not change are not staged. Planned copies and
+     * generated files are not staged, they are kept for {@link #commit()}.
+     *
+     * @return the number of the staged files.
+     * @throws IOException when any I/O error occurs with the files.
+     */
+    int stage() throws IOException {
+        int stagedFiles = 0;
+        writtenBytes = 0;
+        for (final BuildFile buildFile : buildFiles.values()) {
+            if (buildFile.hasChanges()) {
+                writtenBytes += buildFile.write(getStagedPath(buildFile.getPath()));
+                stagedFiles++;
+            }
+        }
+        buildFiles.clear();
+        return stagedFiles;
+    }
+
+    /**
+     * Plans replacing the given build file with its content staged by {@link #stage()}. The staged file is moved over
+     * the build file on {@link #commit()}. If there is no staged content (the build file would not change), nothing is
+     * planned.
+     *
+     * @param path the path of the build file.
+     * @return {@code true} if the replace has been planned, {@code false} if there is no staged content.
+     */
+    boolean publish(final Path path) {
+        final Path stagedPath = getStagedPath(path);
+        if (!Files.isRegularFile(stagedPath)) {
+            return false;
+        }
+        stagedFiles.put(path.toAbsolutePath().normalize(), stagedPath);
+        return true;
+    }
+
+    /**
+     * Deletes the content of the given build file staged by {@link #stage()}, if there is any. Used when the edits of
+     * the build files are abandoned, and before staging, so a staged file left behind by an earlier run is not
+     * published.
+     *
+     * @param path the path of the build file.
+     * @throws IOException when any I/O error occurs with the staged file.
+     */
+    static void discard(final Path path) throws IOException {
+        Files.deleteIfExists(getStagedPath(path));
+    }
+
+    /**
+     * Writes all the planned changes to the disk. Each file is replaced atomically, files whose content would not
+     * change are not written. Staged files are moved over their build files, see {@link #publish(Path)}.
+     *
+     * @return the number of the written files.
+     * @throws IOException when any I/O error occurs with the files.
+     */
+    int commit() throws IOException {
+        int writtenFiles = 0;
+        writtenBytes = 0;
+        for (final Map.Entry<Path, Path> copy : copies.entrySet()) {
+            final Path tempPath = BuildFileIO.createTempFileFor(copy.getKey());
+            try {
+                Files.copy(copy.getValue(), tempPath, StandardCopyOption.REPLACE_EXISTING);
+                try (final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                    writtenBytes += channel.size();
+                }
+                moveAtomically(tempPath, copy.getKey());
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            writtenFiles++;
+        }
+        for (final Map.Entry<Path, byte[]> generatedFile : generatedFiles.entrySet()) {
+            final Path tempPath = BuildFileIO.createTempFileFor(generatedFile.getKey());
+            try {
+                try (final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                    final ByteBuffer buffer = ByteBuffer.wrap(generatedFile.getValue());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                moveAtomically(tempPath, generatedFile.getKey());
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            writtenBytes += generatedFile.getValue().length;
+            writtenFiles++;
+        }
+        for (final Map.Entry<Path, Path> stagedFile : stagedFiles.entrySet()) {
+            writtenBytes += Files.size(stagedFile.getValue());
+            moveAtomically(stagedFile.getValue(), stagedFile.getKey());
+            writtenFiles++;
+        }
+        for (final BuildFile buildFile : buildFiles.values()) {
+            if (buildFile.hasChanges()) {
+                writtenBytes += buildFile.write(buildFile.getPath());
+                writtenFiles++;
+            }
+        }
+        copies.clear();
+        generatedFiles.clear();
+        stagedFiles.clear();
+        buildFiles.clear();
+        return writtenFiles;
+    }
+
+    /**
+     * Gets the number of bytes written by the last {@link #commit()} or {@link #stage()}.
+     *
+     * @return the number of bytes.
+     */
+    long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * Moves the given file to the given target, replacing the target atomically. Falls back to a simple replace, when
+     * the file system does not support atomic moves.
+     *
+     * @param source the file to move.
+     * @param target the target path.
+     * @throws IOException when any I/O error occurs with the files.
+     */
+    private static void moveAtomically(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A build file with its content and tokens. The edits are applied to an in-memory {@link BuildFileDocument}, so
+     * every edit sees the result of the previous ones and offsets always refer to the current content. The file on the
+     * disk is only changed on {@link #commit()}.
+     */
+    static class BuildFile {
+        private final Path path;
+        private final int originalLength;
+        private final BuildFileDocument document;
+
+        private BuildFile(final Path path, final CharBuffer content) {
+            this.path = path;
+            this.originalLength = content.remaining();
+            this.document = new BuildFileDocument(content, BuildScriptLexer.Dialect.of(path.toString()));
+        }
+
+        /**
+         * Gets the path of the file.
+         *
+         * @return the path.
+         */
+        Path getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the current content of the file, including the edits.
+         *
+         * @return the content.
+         */
+        CharSequence getContent() {
+            return document;
+        }
+
+        /**
+         * Gets the tokens of the current content of the file. The file is tokenized on the first call, after edits
+         * only the changed region is tokenized again. Tokens returned before an edit should not be used after it.
+         *
+         * @return the tokens.
+         */
+        BuildScriptTokens getTokens() {
+            return document.getTokens();
+        }
+
+        /**
+         * Replaces the given range of the current content with the given text.
+         *
+         * @param start the start offset (inclusive) of the range.
+         * @param end   the end offset (exclusive) of the range.
+         * @param text  the text to insert.
+         */
+        void replace(final int start, final int end, final String text) {
+            if (start < 0 || end > document.length() || start > end) {
+                throw new IndexOutOfBoundsException(String.format("Invalid range [%d, %d) for \"%s\".", start, end,
+                        path));
+            }
+            document.replace(start, end, text);
+        }
+
+        /**
+         * Inserts the given text on the given offset of the current content.
+         *
+         * @param offset the offset.
+         * @param text   the text to insert.
+         */
+        void insert(final int offset, final String text) {
+            replace(offset, offset, text);
+        }
+
+        /**
+         * Deletes the given range of the current content.
+         *
+         * @param start the start offset (inclusive) of the range.
+         * @param end   the end offset (exclusive) of the range.
+         */
+        void delete(final int start, final int end) {
+            replace(start, end, "");
+        }
+
+        /**
+         * Inserts the given text to the beginning of the file.
+         *
+         * @param text the text to insert.
+         */
+        void prepend(final String text) {
+            insert(0, text);
+        }
+
+        /**
+         * Inserts the given text to the end of the file.
+         *
+         * @param text the text to insert.
+         */
+        void append(final String text) {
+            insert(document.length(), text);
+        }
+
+        /**
+         * Checks if the file has been edited.
+         *
+         * @return {@code true} if it has been, {@code false} otherwise.
+         */
+        boolean isModified() {
+            return document.isModified();
+        }
+
+        /**
+         * Checks if the planned content differs from the content of the file. Edits that do not change the length can
+         * still result in the same content (for example replacing a text with itself), in that case the
+         * {@link ContentHash} of the planned content is compared with the one of the file.
+         *
+         * @return {@code true} if the content differs, {@code false} otherwise.
+         * @throws IOException when any I/O error occurs with the file.
+         */
+        boolean hasChanges() throws IOException {
+            if (!isModified()) {
+                return false;
+            }
+            if (document.length() != originalLength) {
+                return true;
+            }
+            return !MessageDigest.isEqual(ContentHash.of(this), ContentHash.of(path));
+        }
+
+        /**
+         * Writes the edited content to the given Writer, piece by piece.
+         *
+         * @param writer the Writer to write to.
+         * @throws IOException when any I/O error occurs with the Writer.
+         */
+        void writeTo(final Writer writer) throws IOException {
+            document.appendTo(writer, 0, document.length());
+        }
+
+        /**
+         * Writes the edited content to a temporary file, syncs it, and moves it to the given target: the original
+         * file, or its staged path, see {@link #stage()}.
+         *
+         * @param target the path to move the written file to.
+         * @return the number of the written bytes.
+         * @throws IOException when any I/O error occurs with the files.
+         */
+        private long write(final Path target) throws IOException {
+            final Path tempPath = BuildFileIO.createTempFileFor(path);
+            try {
+                final long writtenBytes;
+                try (final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                    final Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(),
+                            BuildFileIO.BUFFER_SIZE);
+                    writeTo(writer);
+                    writer.flush();
+                    channel.force(true);
+                    writtenBytes = channel.size();
+                }
+                moveAtomically(tempPath, target);
+                return writtenBytes;
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+}
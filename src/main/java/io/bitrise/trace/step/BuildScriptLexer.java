@@ -0,0 +1,429 @@
+package io.bitrise.trace.step;
+
+/**
+ * Single pass lexer for Gradle build scripts written in Groovy or in Kotlin DSL. Recognises comments, every kind of
+ * String literal (single, double and triple quoted, Groovy slashy and dollar slashy Strings, Kotlin raw Strings,
+ * including nested template expressions such as {@code "${foo("}")}"}), identifiers, numbers and braces. The text is
+ * read exactly once, every injection step should work on the resulting {@link BuildScriptTokens} instead of scanning
+ * the text again.
+ * <p>
+ * The lexer is lenient: unterminated comments and multiline Strings end at the end of the text, unterminated single
+ * line Strings end at the end of the line.
+ */
+class BuildScriptLexer {
+
+    /**
+     * The language of a Gradle build script.
+     */
+    enum Dialect {
+        GROOVY,
+        KOTLIN;
+
+        /**
+         * Gets the Dialect of the given Gradle build file based on its extension.
+         *
+         * @param path the path of the build file.
+         * @return the Dialect of the file.
+         */
+        static Dialect of(final String path) {
+            return path.endsWith(".kts") ? KOTLIN : GROOVY;
+        }
+    }
+
+    private static final MarkerScanner LINE_BREAKS = MarkerScanner.of("\n\r");
+    private static final MarkerScanner GROOVY_BLOCK_COMMENT = MarkerScanner.of("*");
+    private static final MarkerScanner KOTLIN_BLOCK_COMMENT = MarkerScanner.of("*/");
+    private static final MarkerScanner DOUBLE_QUOTED_STRING = MarkerScanner.of("\"\\$\n\r");
+    private static final MarkerScanner SINGLE_QUOTED_STRING = MarkerScanner.of("'\\$\n\r");
+    private static final MarkerScanner SLASHY_STRING = MarkerScanner.of("\\$/");
+    private static final MarkerScanner DOLLAR_SLASHY_STRING = MarkerScanner.of("$/");
+    private static final MarkerScanner TEMPLATE_EXPRESSION = MarkerScanner.of("/\"'{}");
+
+    private final CharSequence text;
+    private final Dialect dialect;
+    private final int length;
+
+    private BuildScriptLexer(final CharSequence text, final Dialect dialect) {
+        this.text = text;
+        this.dialect = dialect;
+        this.length = text.length();
+    }
+
+    /**
+     * Tokenizes the given text.
+     *
+     * @param text    the content of the build script.
+     * @param dialect the language of the build script.
+     * @return the tokens of the text.
+     */
+    static BuildScriptTokens tokenize(final CharSequence text, final Dialect dialect) {
+        final BuildScriptTokens tokens = new BuildScriptTokens(text);
+        new BuildScriptLexer(text, dialect).lex(0, null, (char) 0, tokens, null);
+        return tokens;
+    }
+
+    /**
+     * Updates the tokens of a text after a region of it has been edited. Only the edited region is tokenized again:
+     * tokens before the region are kept, lexing restarts from the last token that may be affected by the edit, and
+     * stops as soon as it produces a token that is identical (shifted with the length change) to an existing token
+     * after the region. The remaining tokens are copied with shifted offsets.
+     *
+     * @param previous the tokens of the text before the edit.
+     * @param text     the edited text.
+     * @param dialect  the language of the build script.
+     * @param start    the start offset of the edited region, same in the old and in the new text.
+     * @param oldEnd   the end offset (exclusive) of the edited region in the old text.
+     * @param newEnd   the end offset (exclusive) of the edited region in the new text.
+     * @return the tokens of the edited text.
+     */
+    static BuildScriptTokens retokenize(final BuildScriptTokens previous, final CharSequence text,
+                                        final Dialect dialect, final int start, final int oldEnd, final int newEnd) {
+        // Lexing a token reads at most one character after its end, so tokens ending before the edit are unaffected
+        final int firstAffected = previous.firstEndingAtOrAfter(start);
+        final BuildScriptTokens tokens = new BuildScriptTokens(text, previous.size() + 16);
+        tokens.addAll(previous, 0, firstAffected, 0);
+
+        final int previousCodeToken = previous.previousCodeToken(firstAffected);
+        final BuildScriptTokens.Type previousType = previousCodeToken >= 0 ? previous.type(previousCodeToken) : null;
+        final char previousSymbol = previousCodeToken >= 0 ? text.charAt(previous.start(previousCodeToken)) : 0;
+        final int restart = firstAffected < previous.size()
+                ? Math.min(previous.start(firstAffected), start)
+                : start;
+        final Resync resync = new Resync(previous, firstAffected, oldEnd, newEnd);
+        new BuildScriptLexer(text, dialect).lex(restart, previousType, previousSymbol, tokens, resync);
+        return tokens;
+    }
+
+    /**
+     * Runs the main loop of the lexer from the given offset.
+     *
+     * @param from           the offset to start from, it must be the start of a token or a whitespace.
+     * @param previousType   the type of the last non-comment token before the offset, {@code null} if there is no
+     *                       such.
+     * @param previousSymbol the first character of the last non-comment token before the offset.
+     * @param tokens         the tokens to add to.
+     * @param resync         the state for stopping early when the text has been tokenized before, {@code null} for
+     *                       tokenizing until the end of the text.
+     */
+    private void lex(final int from, BuildScriptTokens.Type previousType, char previousSymbol,
+                     final BuildScriptTokens tokens, final Resync resync) {
+        int i = from;
+        while (i < length) {
+            final char c = text.charAt(i);
+            final int start = i;
+            final BuildScriptTokens.Type type;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            } else if (c == '/' && peek(i + 1) == '/') {
+                type = BuildScriptTokens.Type.LINE_COMMENT;
+                i = skipLineComment(i);
+            } else if (c == '/' && peek(i + 1) == '*') {
+                type = BuildScriptTokens.Type.BLOCK_COMMENT;
+                i = skipBlockComment(i);
+            } else if (c == '"' || c == '\'') {
+                type = BuildScriptTokens.Type.STRING;
+                i = skipQuotedString(i);
+            } else if (c == '/' && dialect == Dialect.GROOVY && isSlashyStringAllowed(previousType, previousSymbol)) {
+                type = BuildScriptTokens.Type.STRING;
+                i = skipSlashyString(i);
+            } else if (c == '$' && peek(i + 1) == '/' && dialect == Dialect.GROOVY) {
+                type = BuildScriptTokens.Type.STRING;
+                i = skipDollarSlashyString(i);
+            } else if (isIdentifierStart(c)) {
+                type = BuildScriptTokens.Type.IDENTIFIER;
+                i = skipIdentifier(i);
+            } else if (c >= '0' && c <= '9') {
+                type = BuildScriptTokens.Type.NUMBER;
+                i = skipIdentifier(i);
+            } else if (c == '{') {
+                type = BuildScriptTokens.Type.OPEN_BRACE;
+                i++;
+            } else if (c == '}') {
+                type = BuildScriptTokens.Type.CLOSE_BRACE;
+                i++;
+            } else {
+                type = BuildScriptTokens.Type.SYMBOL;
+                i++;
+            }
+            tokens.add(type, start, i);
+            if (!type.isComment()) {
+                previousType = type;
+                previousSymbol = c;
+                if (resync != null && resync.isSynchronized(type, start, i)) {
+                    resync.copyRemaining(tokens);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides if a '/' character starts a slashy String or it is a division operator, based on the previous token
+     * that is not a comment. A slashy String can only be where a value is expected.
+     *
+     * @param previousType   the type of the previous token, {@code null} if there is no such.
+     * @param previousSymbol the first character of the previous token.
+     * @return {@code true} if it is a slashy String, {@code false} otherwise.
+     */
+    private static boolean isSlashyStringAllowed(final BuildScriptTokens.Type previousType,
+                                                 final char previousSymbol) {
+        if (previousType == null || previousType == BuildScriptTokens.Type.OPEN_BRACE) {
+            return true;
+        }
+        return previousType == BuildScriptTokens.Type.SYMBOL && "([,=:;!&|?+-*%<>~^".indexOf(previousSymbol) >= 0;
+    }
+
+    /**
+     * Gets the character on the given index, or {@code 0} if the index is out of bounds.
+     *
+     * @param index the index of the character.
+     * @return the character.
+     */
+    private char peek(final int index) {
+        return index < length ? text.charAt(index) : 0;
+    }
+
+    /**
+     * Checks if the text has the given value starting from the given index.
+     *
+     * @param index the index to check from.
+     * @param value the value to look for.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    private boolean startsWith(final int index, final String value) {
+        if (index + value.length() > length) {
+            return false;
+        }
+        for (int j = 0; j < value.length(); j++) {
+            if (text.charAt(index + j) != value.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierStart(final char c) {
+        return Character.isJavaIdentifierStart(c);
+    }
+
+    private int skipIdentifier(final int start) {
+        int i = start + 1;
+        while (i < length && Character.isJavaIdentifierPart(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skips a line comment starting on the given index. The line break is not part of the comment.
+     *
+     * @param start the index of the comment start.
+     * @return the index after the comment.
+     */
+    private int skipLineComment(final int start) {
+        return LINE_BREAKS.indexOf(text, start + 2, length);
+    }
+
+    /**
+     * Skips a block comment starting on the given index. Kotlin block comments can be nested, Groovy ones can not.
+     *
+     * @param start the index of the comment start.
+     * @return the index after the comment.
+     */
+    private int skipBlockComment(final int start) {
+        final MarkerScanner scanner = dialect == Dialect.KOTLIN ? KOTLIN_BLOCK_COMMENT : GROOVY_BLOCK_COMMENT;
+        int depth = 1;
+        int i = start + 2;
+        while ((i = scanner.indexOf(text, i, length)) < length) {
+            final char c = text.charAt(i);
+            if (c == '*' && peek(i + 1) == '/') {
+                i += 2;
+                if (--depth == 0) {
+                    return i;
+                }
+            } else if (c == '/' && peek(i + 1) == '*' && dialect == Dialect.KOTLIN) {
+                i += 2;
+                depth++;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Skips a String or char literal starting with a single or double quote on the given index. Handles triple
+     * quoted Strings, escapes and template expressions where the language allows them.
+     *
+     * @param start the index of the opening quote.
+     * @return the index after the literal.
+     */
+    private int skipQuotedString(final int start) {
+        final char quote = text.charAt(start);
+        final boolean isTripleQuoted = peek(start + 1) == quote && peek(start + 2) == quote;
+        final boolean isTemplate = quote == '"' || dialect == Dialect.KOTLIN;
+        // Kotlin raw Strings do not have escapes
+        final boolean hasEscapes = !(isTripleQuoted && dialect == Dialect.KOTLIN);
+        final MarkerScanner scanner = quote == '"' ? DOUBLE_QUOTED_STRING : SINGLE_QUOTED_STRING;
+        int i = start + (isTripleQuoted ? 3 : 1);
+        while ((i = scanner.indexOf(text, i, length)) < length) {
+            final char c = text.charAt(i);
+            if (c == '\\' && hasEscapes) {
+                i += 2;
+            } else if (c == '$' && isTemplate && peek(i + 1) == '{') {
+                i = skipTemplateExpression(i + 2);
+            } else if (c == quote) {
+                if (!isTripleQuoted) {
+                    return i + 1;
+                }
+                if (peek(i + 1) == quote && peek(i + 2) == quote) {
+                    i += 3;
+                    // Kotlin allows additional quotes at the end of a raw String, they are part of the content
+                    while (peek(i) == quote) {
+                        i++;
+                    }
+                    return i;
+                }
+                i++;
+            } else if ((c == '\n' || c == '\r') && !isTripleQuoted) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Skips a Groovy slashy String starting on the given index. Only the closing slash can be escaped.
+     *
+     * @param start the index of the opening slash.
+     * @return the index after the literal.
+     */
+    private int skipSlashyString(final int start) {
+        int i = start + 1;
+        while ((i = SLASHY_STRING.indexOf(text, i, length)) < length) {
+            final char c = text.charAt(i);
+            if (c == '\\' && peek(i + 1) == '/') {
+                i += 2;
+            } else if (c == '$' && peek(i + 1) == '{') {
+                i = skipTemplateExpression(i + 2);
+            } else if (c == '/') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Skips a Groovy dollar slashy String starting on the given index. '$' is the escape character.
+     *
+     * @param start the index of the opening "$/".
+     * @return the index after the literal.
+     */
+    private int skipDollarSlashyString(final int start) {
+        int i = start + 2;
+        while ((i = DOLLAR_SLASHY_STRING.indexOf(text, i, length)) < length) {
+            if (startsWith(i, "/$")) {
+                return i + 2;
+            } else if (startsWith(i, "$$") || startsWith(i, "$/")) {
+                i += 2;
+            } else if (startsWith(i, "${")) {
+                i = skipTemplateExpression(i + 2);
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Skips the code of a template expression ("${...}") in a String literal. The expression may contain nested
+     * blocks, Strings and comments.
+     *
+     * @param start the index after the opening "${".
+     * @return the index after the closing brace.
+     */
+    private int skipTemplateExpression(final int start) {
+        int depth = 0;
+        int i = start;
+        while ((i = TEMPLATE_EXPRESSION.indexOf(text, i, length)) < length) {
+            final char c = text.charAt(i);
+            if (c == '/' && peek(i + 1) == '/') {
+                i = skipLineComment(i);
+            } else if (c == '/' && peek(i + 1) == '*') {
+                i = skipBlockComment(i);
+            } else if (c == '"' || c == '\'') {
+                i = skipQuotedString(i);
+            } else if (c == '{') {
+                depth++;
+                i++;
+            } else if (c == '}') {
+                i++;
+                if (depth-- == 0) {
+                    return i;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * State of an incremental tokenization: the tokens from before the edit, and the position of the edited region.
+     * The lexer is synchronized with the previous tokens, when it produces a non-comment token after the edited region
+     * that is the same as a previous token shifted with the length change. From that point the lexer would be in the
+     * same state as it was before, so it would produce the same tokens.
+     */
+    private static class Resync {
+        private final BuildScriptTokens previous;
+        private final int oldEnd;
+        private final int newEnd;
+        private final int delta;
+        private int candidate;
+
+        private Resync(final BuildScriptTokens previous, final int firstAffected, final int oldEnd,
+                       final int newEnd) {
+            this.previous = previous;
+            this.oldEnd = oldEnd;
+            this.newEnd = newEnd;
+            this.delta = newEnd - oldEnd;
+            this.candidate = firstAffected;
+        }
+
+        /**
+         * Checks if the given new token is the same as a previous one.
+         *
+         * @param type  the type of the new token.
+         * @param start the start offset of the new token.
+         * @param end   the end offset of the new token.
+         * @return {@code true} if it is, {@code false} otherwise.
+         */
+        private boolean isSynchronized(final BuildScriptTokens.Type type, final int start, final int end) {
+            if (start < newEnd) {
+                return false;
+            }
+            while (candidate < previous.size() &&
+                    (previous.start(candidate) < oldEnd || previous.start(candidate) + delta < start)) {
+                candidate++;
+            }
+            return candidate < previous.size() &&
+                    previous.start(candidate) + delta == start &&
+                    previous.end(candidate) + delta == end &&
+                    previous.type(candidate) == type;
+        }
+
+        /**
+         * Copies the previous tokens after the synchronized one to the given tokens.
+         *
+         * @param tokens the tokens to add to.
+         */
+        private void copyRemaining(final BuildScriptTokens tokens) {
+            tokens.addAll(previous, candidate + 1, previous.size(), delta);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package io.bitrise.trace.step;
+
+import java.util.Arrays;
+
+/**
+ * The token stream of a Gradle build script, as produced by {@link BuildScriptLexer}. Tokens are stored in parallel
+ * primitive arrays (type, start offset and end offset) in the order they appear in the text, the offsets refer to
+ * the original text. Whitespace is not part of the stream, every other character belongs to exactly one token.
+ */
+class BuildScriptTokens {
+
+    /**
+     * The types of the tokens.
+     */
+    enum Type {
+        IDENTIFIER,
+        NUMBER,
+        STRING,
+        LINE_COMMENT,
+        BLOCK_COMMENT,
+        OPEN_BRACE,
+        CLOSE_BRACE,
+        SYMBOL;
+
+        /**
+         * Checks if the given type is a comment or not.
+         *
+         * @return {@code true} if it is, {@code false} otherwise.
+         */
+        boolean isComment() {
+            return this == LINE_COMMENT || this == BLOCK_COMMENT;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final CharSequence text;
+    private Type[] types;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+    private IntervalIndex comments;
+    private BlockIndex blocks;
+
+    BuildScriptTokens(final CharSequence text) {
+        this(text, INITIAL_CAPACITY);
+    }
+
+    BuildScriptTokens(final CharSequence text, final int capacity) {
+        this.text = text;
+        this.types = new Type[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+    }
+
+    /**
+     * Adds a new token to the end of the stream.
+     *
+     * @param type  the type of the token.
+     * @param start the start offset (inclusive) of the token.
+     * @param end   the end offset (exclusive) of the token.
+     */
+    void add(final Type type, final int start, final int end) {
+        ensureCapacity(size + 1);
+        types[size] = type;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+        comments = null;
+        blocks = null;
+    }
+
+    /**
+     * Adds a range of the given tokens to the end of the stream, shifting their offsets with the given value.
+     *
+     * @param other the tokens to copy from.
+     * @param from  the index of the first token to copy (inclusive).
+     * @param to    the index of the last token to copy (exclusive).
+     * @param shift the value to add to the offsets.
+     */
+    void addAll(final BuildScriptTokens other, final int from, final int to, final int shift) {
+        final int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+        ensureCapacity(size + count);
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.starts, from, starts, size, count);
+        System.arraycopy(other.ends, from, ends, size, count);
+        if (shift != 0) {
+            for (int i = size; i < size + count; i++) {
+                starts[i] += shift;
+                ends[i] += shift;
+            }
+        }
+        size += count;
+        comments = null;
+        blocks = null;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > types.length) {
+            final int newCapacity = Math.max(capacity, types.length * 2);
+            types = Arrays.copyOf(types, newCapacity);
+            starts = Arrays.copyOf(starts, newCapacity);
+            ends = Arrays.copyOf(ends, newCapacity);
+        }
+    }
+
+    /**
+     * Gets the text the tokens were created from.
+     *
+     * @return the text.
+     */
+    CharSequence getText() {
+        return text;
+    }
+
+    /**
+     * Gets the number of tokens.
+     *
+     * @return the number of tokens.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the type of the token on the given index.
+     *
+     * @param index the index of the token.
+     * @return the type of the token.
+     */
+    Type type(final int index) {
+        return types[index];
+    }
+
+    /**
+     * Gets the start offset (inclusive) of the token on the given index.
+     *
+     * @param index the index of the token.
+     * @return the start offset.
+     */
+    int start(final int index) {
+        return starts[index];
+    }
+
+    /**
+     * Gets the end offset (exclusive) of the token on the given index.
+     *
+     * @param index the index of the token.
+     * @return the end offset.
+     */
+    int end(final int index) {
+        return ends[index];
+    }
+
+    /**
+     * Gets the text of the token on the given index.
+     *
+     * @param index the index of the token.
+     * @return the text of the token.
+     */
+    String text(final int index) {
+        return text.subSequence(starts[index], ends[index]).toString();
+    }
+
+    /**
+     * Checks if the token on the given index has exactly the given text, without creating a substring for it.
+     *
+     * @param index the index of the token.
+     * @param value the expected text.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    boolean textEquals(final int index, final String value) {
+        final int start = starts[index];
+        if (ends[index] - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (text.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the index of the last token before the given index that is not a comment.
+     *
+     * @param index the index to start before.
+     * @return the index of the previous non-comment token, or {@code -1} if there is no such.
+     */
+    int previousCodeToken(final int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            if (!types[i].isComment()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the index of the first token that ends at or after the given offset.
+     *
+     * @param offset the offset.
+     * @return the index of the token, or {@link #size()} if there is no such.
+     */
+    int firstEndingAtOrAfter(final int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (ends[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets the positions of the comments, both line and block comments.
+     *
+     * @return the {@link IntervalIndex} of the comments.
+     */
+    IntervalIndex getComments() {
+        if (comments == null) {
+            final IntervalIndex.Builder builder = new IntervalIndex.Builder();
+            for (int i = 0; i < size; i++) {
+                if (types[i].isComment()) {
+                    builder.add(starts[i], ends[i]);
+                }
+            }
+            comments = builder.build();
+        }
+        return comments;
+    }
+
+    /**
+     * Gets the {@link BlockIndex} of the text. It is built on the first call, later calls return the same instance,
+     * so every step working on the same tokens shares it.
+     *
+     * @return the BlockIndex.
+     */
+    BlockIndex getBlocks() {
+        if (blocks == null) {
+            blocks = BlockIndex.of(this);
+        }
+        return blocks;
+    }
+
+    /**
+     * Gets the code of the text, that is the text without the comments. The text between the comments of
+     * {@link #getComments()} is copied run by run. The code is only searched: the edits are spliced into the original
+     * text at the offsets of the tokens, so the offsets of the code do not have to be mapped back to the text.
+     *
+     * @return the code.
+     */
+    String getCode() {
+        final IntervalIndex comments = getComments();
+        final StringBuilder code = new StringBuilder(text.length());
+        int offset = 0;
+        for (int i = 0; i < comments.size(); i++) {
+            code.append(text, offset, comments.start(i));
+            offset = comments.end(i);
+        }
+        return code.append(text, offset, text.length()).toString();
+    }
+
+    /**
+     * Checks if the text has the given statement on its own, that is the code tokens of the statement follow each
+     * other in the text (comments between them are skipped), and the match is not a part of a longer expression:
+     * both before and after it there is a line break, a ';', a brace, or the start or end of the text. As a string
+     * literal is a single token, a statement that is only mentioned in a string literal does not match.
+     *
+     * @param statement the tokens of the statement, tokenized with the same dialect.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    boolean containsStatement(final BuildScriptTokens statement) {
+        final int[] codeTokens = new int[statement.size()];
+        int count = 0;
+        for (int i = 0; i < statement.size(); i++) {
+            if (!statement.type(i).isComment()) {
+                codeTokens[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (types[i].isComment() || !isStatementBoundary(previousCodeToken(i), i)) {
+                continue;
+            }
+            int matched = 0;
+            int index = i;
+            while (index < size && matched < count && statement.type(codeTokens[matched]) == types[index]
+                    && textEquals(index, statement.text(codeTokens[matched]))) {
+                matched++;
+                index = nextCodeToken(index);
+            }
+            if (matched == count && isStatementBoundary(previousCodeToken(index), index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the index of the first token after the given index that is not a comment.
+     *
+     * @param index the index to start after.
+     * @return the index of the next non-comment token, or {@link #size()} if there is no such.
+     */
+    private int nextCodeToken(final int index) {
+        for (int i = index + 1; i < size; i++) {
+            if (!types[i].isComment()) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Checks if a statement may end after the given code token and start on the other given code token, that is
+     * either of them is missing, one of them is a ';' or a brace, or there is a line break between them.
+     *
+     * @param previous the index of the code token before the boundary, or {@code -1} if there is no such.
+     * @param next     the index of the code token after the boundary, or {@link #size()} if there is no such.
+     * @return {@code true} if it can, {@code false} otherwise.
+     */
+    private boolean isStatementBoundary(final int previous, final int next) {
+        if (previous < 0 || next >= size || textEquals(previous, ";") || textEquals(next, ";")
+                || types[previous] == Type.OPEN_BRACE || types[previous] == Type.CLOSE_BRACE
+                || types[next] == Type.CLOSE_BRACE) {
+            return true;
+        }
+        for (int i = ends[previous]; i < starts[next]; i++) {
+            final char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,218 @@
+package io.bitrise.trace.step;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the versions of modules, that are already in the local Gradle cache (the "caches/modules-2/files-2.1"
+ * directory of the Gradle user home). {@link InjectTraceTask} uses it to pin the dynamic "+" versions of Trace to the
+ * newest cached version: a dynamic version makes Gradle list the versions of the module again every time the dynamic
+ * version cache expires, which adds remote metadata requests to otherwise warm builds, and fails with --offline.
+ * <p>
+ * The cache is only read, nothing is resolved. A version is considered to be cached, if its directory contains a jar
+ * or an aar file, and not only the metadata of the module.
+ */
+class CachedVersionResolver {
+
+    /**
+     * The directory of the cached files of the modules, relative to the Gradle user home. The files of a module
+     * version are in "group/name/version/sha1/" in it.
+     */
+    static final String FILES_CACHE_DIR = "caches/modules-2/files-2.1";
+
+    /**
+     * Matches the parts of a version: the runs of digits and the runs of other characters, separated by '.', '-',
+     * '_' or '+', the same way as Gradle splits versions.
+     */
+    private static final Pattern VERSION_PART_PATTERN = Pattern.compile("[0-9]+|[^0-9.\\-_+]+");
+
+    /**
+     * The non-numeric parts of versions that are higher than the other non-numeric parts, in increasing order. "dev"
+     * is lower than any other part. The order is the same as Gradle's.
+     */
+    private static final List<String> SPECIAL_PARTS = Arrays.asList("rc", "snapshot", "final", "ga", "release",
+            "sp");
+
+    private final Path filesCacheDir;
+
+    /**
+     * Constructor for class.
+     *
+     * @param gradleUserHomeDir the Gradle user home directory.
+     */
+    CachedVersionResolver(final File gradleUserHomeDir) {
+        this.filesCacheDir = gradleUserHomeDir.toPath().resolve(FILES_CACHE_DIR);
+    }
+
+    /**
+     * Finds the newest version of the given module in the cache.
+     *
+     * @param group the group of the module.
+     * @param name  the name of the module.
+     * @return the version, or {@code null} if no version of the module is cached.
+     */
+    String findNewestVersion(final String group, final String name) {
+        final Path moduleDir = filesCacheDir.resolve(group).resolve(name);
+        if (!Files.isDirectory(moduleDir)) {
+            return null;
+        }
+        String newestVersion = null;
+        try (final DirectoryStream<Path> versionDirs = Files.newDirectoryStream(moduleDir, Files::isDirectory)) {
+            for (final Path versionDir : versionDirs) {
+                final String version = versionDir.getFileName().toString();
+                if ((newestVersion == null || compareVersions(version, newestVersion) > 0)
+                        && hasArtifact(versionDir)) {
+                    newestVersion = version;
+                }
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(String.format("Failed to list the cached versions of \"%s:%s\".", group,
+                    name), e);
+        }
+        return newestVersion;
+    }
+
+    /**
+     * Checks if the given version directory of the cache contains a jar or an aar file.
+     *
+     * @param versionDir the directory of the version.
+     * @return {@code true} if it does, {@code false} otherwise.
+     * @throws IOException when any I/O error occurs with the directories.
+     */
+    private static boolean hasArtifact(final Path versionDir) throws IOException {
+        try (final DirectoryStream<Path> hashDirs = Files.newDirectoryStream(versionDir, Files::isDirectory)) {
+            for (final Path hashDir : hashDirs) {
+                try (final DirectoryStream<Path> files = Files.newDirectoryStream(hashDir, "*.{jar,aar}")) {
+                    if (files.iterator().hasNext()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the given versions the way Gradle orders them:
+     * <ul>
+     *     <li>the parts are compared one by one, numeric parts numerically, and a numeric part is higher than a
+     *     non-numeric one</li>
+     *     <li>non-numeric parts are compared alphabetically, except for "dev" and the {@link #SPECIAL_PARTS}</li>
+     *     <li>when all the parts of the shorter version are equal, an extra numeric part makes a version higher
+     *     ("1.2.1" &gt; "1.2"), an extra non-numeric part makes it lower ("1.2-beta" &lt; "1.2")</li>
+     * </ul>
+     *
+     * @param first  the first version.
+     * @param second the second version.
+     * @return a negative number, zero or a positive number, if the first version is lower than, equal to or higher
+     * than the second one.
+     */
+    static int compareVersions(final String first, final String second) {
+        final List<String> firstParts = getVersionParts(first);
+        final List<String> secondParts = getVersionParts(second);
+        final int commonParts = Math.min(firstParts.size(), secondParts.size());
+        for (int i = 0; i < commonParts; i++) {
+            final int result = compareVersionParts(firstParts.get(i), secondParts.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        if (firstParts.size() == secondParts.size()) {
+            return 0;
+        }
+        if (firstParts.size() > secondParts.size()) {
+            return isNumeric(firstParts.get(commonParts)) ? 1 : -1;
+        }
+        return isNumeric(secondParts.get(commonParts)) ? -1 : 1;
+    }
+
+    /**
+     * Splits the given version to parts, see {@link #VERSION_PART_PATTERN}.
+     *
+     * @param version the version.
+     * @return the List of the parts.
+     */
+    private static List<String> getVersionParts(final String version) {
+        final List<String> parts = new ArrayList<>();
+        final Matcher matcher = VERSION_PART_PATTERN.matcher(version);
+        while (matcher.find()) {
+            parts.add(matcher.group());
+        }
+        return parts;
+    }
+
+    /**
+     * Compares two parts of versions, see {@link #compareVersions(String, String)}.
+     *
+     * @param first  the first part.
+     * @param second the second part.
+     * @return a negative number, zero or a positive number, if the first part is lower than, equal to or higher than
+     * the second one.
+     */
+    private static int compareVersionParts(final String first, final String second) {
+        final boolean firstNumeric = isNumeric(first);
+        final boolean secondNumeric = isNumeric(second);
+        if (firstNumeric && secondNumeric) {
+            final String firstNumber = stripLeadingZeros(first);
+            final String secondNumber = stripLeadingZeros(second);
+            return firstNumber.length() != secondNumber.length()
+                    ? Integer.compare(firstNumber.length(), secondNumber.length())
+                    : firstNumber.compareTo(secondNumber);
+        }
+        if (firstNumeric != secondNumeric) {
+            return firstNumeric ? 1 : -1;
+        }
+        final int result = Integer.compare(getSpecialRank(first), getSpecialRank(second));
+        return result != 0 ? result : first.compareTo(second);
+    }
+
+    /**
+     * Gets the rank of the given non-numeric part: -1 for "dev", 0 for the parts that are not special, and a positive
+     * number for the {@link #SPECIAL_PARTS}.
+     *
+     * @param part the part.
+     * @return the rank.
+     */
+    private static int getSpecialRank(final String part) {
+        final String lowerCasePart = part.toLowerCase(Locale.ROOT);
+        if ("dev".equals(lowerCasePart)) {
+            return -1;
+        }
+        return SPECIAL_PARTS.indexOf(lowerCasePart) + 1;
+    }
+
+    /**
+     * Checks if the given part of a version is numeric. Parts are never empty, and contain either only digits, or no
+     * digits at all.
+     *
+     * @param part the part.
+     * @return {@code true} if it is, {@code false} otherwise.
+     */
+    private static boolean isNumeric(final String part) {
+        return Character.isDigit(part.charAt(0));
+    }
+
+    /**
+     * Removes the leading zeros of the given number, so numbers of any size can be compared by their length first.
+     *
+     * @param number the digits of the number.
+     * @return the number without the leading zeros, or "0".
+     */
+    private static String stripLeadingZeros(final String number) {
+        int start = 0;
+        while (start < number.length() - 1 && number.charAt(start) == '0') {
+            start++;
+        }
+        return number.substring(start);
+    }
+}
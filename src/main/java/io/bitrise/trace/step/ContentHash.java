@@ -0,0 +1,105 @@
+package io.bitrise.trace.step;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helper for computing the SHA-256 hash of file contents. {@link BuildFileTransaction} uses it to skip writing files
+ * whose content would not change: rewriting a build file with the same content still changes its modification time,
+ * which makes Gradle compile the build script again and snapshot the inputs of the build again. Both files and planned
+ * contents are hashed in a streaming way, with a buffer of {@link BuildFileIO#BUFFER_SIZE}.
+ */
+class ContentHash {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    /**
+     * OutputStream that discards the written bytes, the target of the {@link DigestOutputStream}, that only has to
+     * update the digest. Java 8 has no such stream yet (OutputStream.nullOutputStream() is from Java 11).
+     */
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(final int b) {
+            // Discard
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            // Discard
+        }
+    };
+
+    private ContentHash() {
+        // Static helper
+    }
+
+    /**
+     * Gets the hash of the content of the given file.
+     *
+     * @param path the path of the file.
+     * @return the hash.
+     * @throws IOException when any I/O error occurs with the file on the path.
+     */
+    static byte[] of(final Path path) throws IOException {
+        final MessageDigest digest = newDigest();
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BuildFileIO.BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Gets the hash of the given bytes.
+     *
+     * @param content the bytes.
+     * @return the hash.
+     */
+    static byte[] of(final byte[] content) {
+        return newDigest().digest(content);
+    }
+
+    /**
+     * Gets the hash of the UTF-8 encoded content of the given build file, including the planned edits. This is the
+     * hash the file would have after {@link BuildFileTransaction#commit()}.
+     *
+     * @param buildFile the {@link BuildFileTransaction.BuildFile}.
+     * @return the hash.
+     * @throws IOException when any I/O error occurs during the encoding.
+     */
+    static byte[] of(final BuildFileTransaction.BuildFile buildFile) throws IOException {
+        final MessageDigest digest = newDigest();
+        final Writer writer = Channels.newWriter(Channels.newChannel(new DigestOutputStream(NULL_OUTPUT_STREAM, digest)),
+                StandardCharsets.UTF_8.newEncoder(), BuildFileIO.BUFFER_SIZE);
+        buildFile.writeTo(writer);
+        writer.flush();
+        return digest.digest();
+    }
+
+    /**
+     * Creates a new {@link MessageDigest} for {@link #ALGORITHM}, which every Java platform has to support.
+     *
+     * @return the MessageDigest.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(String.format("%s is not supported.", ALGORITHM), e);
+        }
+    }
+}
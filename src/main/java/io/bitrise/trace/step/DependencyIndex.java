@@ -0,0 +1,224 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ConfigurationContainer;
+import org.gradle.api.artifacts.Dependency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Immutable index of the declared dependencies of a module, from the {@link Scope} and "group:name" to the version and
+ * the names of the configurations that declare it. Built in a single pass with a {@link Builder}, which is shared by
+ * all the presence checks of a module instead of walking {@link Configuration#getAllDependencies()} of every
+ * configuration for every checked dependency. The scopes are kept apart, so a dependency of the module is never
+ * mistaken for a dependency on the buildscript classpath, or the other way around.
+ * <p>
+ * Only the configurations with matching names are realized, and every configuration (including the ones they extend
+ * from, like 'implementation') is visited only once, no matter how many variants extend from it. When all the awaited
+ * dependencies are found, the rest of the configurations are skipped, so the index is only complete for the awaited
+ * dependencies in that case.
+ */
+class DependencyIndex {
+
+    /**
+     * The scopes of the configurations.
+     */
+    enum Scope {
+        /**
+         * The configurations of the buildscript, that is the classpath of the build file.
+         */
+        BUILDSCRIPT,
+        /**
+         * The configurations of the module itself.
+         */
+        MODULE
+    }
+
+    private final Map<String, Entry> entries;
+
+    private DependencyIndex(final Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Gets the number of the indexed dependencies.
+     *
+     * @return the number of the dependencies.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks if the given dependency is declared by any of the indexed configurations of the given scope.
+     *
+     * @param scope the {@link Scope} of the configurations.
+     * @param group the group of the dependency.
+     * @param name  the name of the dependency.
+     * @return {@code true} if it is declared, {@code false} otherwise.
+     */
+    boolean contains(final Scope scope, final String group, final String name) {
+        return entries.containsKey(getKey(scope, group, name));
+    }
+
+    /**
+     * Gets the version of the given dependency, as declared by the first configuration of the given scope that
+     * declares it.
+     *
+     * @param scope the {@link Scope} of the configurations.
+     * @param group the group of the dependency.
+     * @param name  the name of the dependency.
+     * @return the version, or {@code null} if the dependency is not declared or has no version.
+     */
+    String getVersion(final Scope scope, final String group, final String name) {
+        final Entry entry = entries.get(getKey(scope, group, name));
+        return entry == null ? null : entry.version;
+    }
+
+    /**
+     * Gets the names of the configurations of the given scope that declare the given dependency, in the order they
+     * were visited.
+     *
+     * @param scope the {@link Scope} of the configurations.
+     * @param group the group of the dependency.
+     * @param name  the name of the dependency.
+     * @return the List of the configuration names, empty if the dependency is not declared.
+     */
+    List<String> getConfigurationNames(final Scope scope, final String group, final String name) {
+        final Entry entry = entries.get(getKey(scope, group, name));
+        return entry == null ? Collections.<String>emptyList() : Collections.unmodifiableList(entry.configurations);
+    }
+
+    /**
+     * Gets the key of a dependency in the index.
+     *
+     * @param scope the {@link Scope} of the configurations that declare the dependency.
+     * @param group the group of the dependency, can be {@code null}.
+     * @param name  the name of the dependency.
+     * @return the key.
+     */
+    static String getKey(final Scope scope, final String group, final String name) {
+        return scope + ":" + group + ":" + name;
+    }
+
+    /**
+     * Checks if the given text contains the given part, ignoring the case, without creating lower case copies.
+     *
+     * @param text the text to search in.
+     * @param part the part to search for.
+     * @return {@code true} if the text contains the part, {@code false} otherwise.
+     */
+    static boolean containsIgnoreCase(final String text, final String part) {
+        for (int i = 0; i + part.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The indexed data of a dependency.
+     */
+    private static class Entry {
+        private final String version;
+        private final List<String> configurations = new ArrayList<>(4);
+
+        private Entry(final String version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * Builder for {@link DependencyIndex}.
+     */
+    static class Builder {
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final Set<Configuration> visited = new HashSet<>();
+        private final Set<String> awaited = new HashSet<>();
+
+        /**
+         * Constructor for class.
+         *
+         * @param awaitedKeys the keys (see {@link #getKey(Scope, String, String)}) of the dependencies, after which no
+         *                    more configurations have to be visited.
+         */
+        Builder(final String... awaitedKeys) {
+            Collections.addAll(awaited, awaitedKeys);
+        }
+
+        /**
+         * Checks if all the awaited dependencies have been found.
+         *
+         * @return {@code true} if they have been found, {@code false} otherwise.
+         */
+        boolean isComplete() {
+            return !awaited.isEmpty() && entries.keySet().containsAll(awaited);
+        }
+
+        /**
+         * Indexes the configurations of the given container that have a matching name. The configurations are
+         * filtered by their names, so the ones that do not match are not realized.
+         *
+         * @param scope          the {@link Scope} of the configurations.
+         * @param configurations the {@link ConfigurationContainer}.
+         * @param nameFilter     the filter for the names of the configurations to index.
+         * @return this Builder.
+         */
+        Builder addAll(final Scope scope, final ConfigurationContainer configurations,
+                       final Predicate<String> nameFilter) {
+            for (final String configurationName : configurations.getNames()) {
+                if (isComplete()) {
+                    break;
+                }
+                if (nameFilter.test(configurationName)) {
+                    add(scope, configurations.getByName(configurationName));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Indexes the declared dependencies of the given configuration and of the configurations it extends from.
+         * Configurations that have already been visited are skipped.
+         *
+         * @param scope         the {@link Scope} of the configuration.
+         * @param configuration the {@link Configuration}.
+         * @return this Builder.
+         */
+        Builder add(final Scope scope, final Configuration configuration) {
+            if (isComplete() || !visited.add(configuration)) {
+                return this;
+            }
+            for (final Dependency dependency : configuration.getDependencies()) {
+                final String key = getKey(scope, dependency.getGroup(), dependency.getName());
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(dependency.getVersion());
+                    entries.put(key, entry);
+                }
+                entry.configurations.add(configuration.getName());
+            }
+            for (final Configuration parent : configuration.getExtendsFrom()) {
+                add(scope, parent);
+            }
+            return this;
+        }
+
+        /**
+         * Builds the DependencyIndex.
+         *
+         * @return the new DependencyIndex.
+         */
+        DependencyIndex build() {
+            return new DependencyIndex(new HashMap<>(entries));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * Work action that applies the planned Trace injection of a single Android module. {@link InjectTraceTask} checks the
+ * modules on the task thread and submits one action per module that needs changes, the actions run in parallel on the
+ * Gradle workers (up to --max-workers). The action does not touch the {@link org.gradle.api.Project} model, it only
+ * gets the paths and the planned edits in its {@link Parameters}, and edits the build file of the module in its own
+ * {@link BuildFileTransaction}. The action only stages the edited content (see {@link BuildFileTransaction#stage()}),
+ * the task replaces the build files in a single transaction after every action has succeeded, so a failing module
+ * does not leave the other modules edited. The applied Gradle files are shared by the modules, they are written by
+ * the task in the same transaction.
+ * <p>
+ * Note: the class and the parameters are public, as Gradle generates the implementations of them.
+ */
+public abstract class InjectModuleWorkAction implements WorkAction<InjectModuleWorkAction.Parameters> {
+
+    /**
+     * The parameters of the {@link InjectModuleWorkAction}.
+     */
+    public interface Parameters extends WorkParameters {
+
+        /**
+         * @return the path of the module (for example ":apps:app"), used for logging.
+         */
+        Property<String> getProjectPath();
+
+        /**
+         * @return the build file of the module.
+         */
+        RegularFileProperty getBuildFile();
+
+        /**
+         * @return whether the dependency on 'trace-sdk' has to be added.
+         */
+        Property<Boolean> getAddTraceSdkDependency();
+
+        /**
+         * @return whether the buildscript dependency on 'trace-gradle-plugin' has to be added.
+         */
+        Property<Boolean> getAddTraceGradlePluginDependency();
+
+        /**
+         * @return whether 'trace-gradle-plugin' has to be applied.
+         */
+        Property<Boolean> getApplyTraceGradlePlugin();
+
+        /**
+         * @return the version of 'trace-sdk' to inject.
+         */
+        Property<String> getTraceSdkVersion();
+
+        /**
+         * @return the version of 'trace-gradle-plugin' to inject.
+         */
+        Property<String> getTraceGradlePluginVersion();
+
+        /**
+         * @return the URL of the local Maven repository of the Trace artifacts, not present when they are resolved
+         * from Maven Central.
+         */
+        Property<String> getLocalRepositoryUrl();
+
+        /**
+         * @return the URL of the local Maven repository to add to the repositories of the module, not present when
+         * the settings do not allow repositories in the projects.
+         */
+        Property<String> getProjectRepositoryUrl();
+    }
+
+    @Override
+    public void execute() {
+        final Parameters parameters = getParameters();
+        final Path buildFilePath = parameters.getBuildFile().get().getAsFile().toPath();
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        try {
+            final BuildFileTransaction.BuildFile buildFile = transaction.edit(buildFilePath);
+            if (parameters.getAddTraceSdkDependency().get()) {
+                InjectTraceTask.addTraceSdkDependency(buildFile, parameters.getTraceSdkVersion().get(),
+                        parameters.getProjectRepositoryUrl().getOrNull());
+            }
+            if (parameters.getAddTraceGradlePluginDependency().get()) {
+                InjectTraceTask.addTraceGradlePluginDependency(buildFile,
+                        parameters.getTraceGradlePluginVersion().get(), parameters.getLocalRepositoryUrl().getOrNull());
+            }
+            if (parameters.getApplyTraceGradlePlugin().get()) {
+                InjectTraceTask.injectTraceGradlePluginApply(buildFile);
+            }
+            final int stagedFiles = transaction.stage();
+            InjectTraceTask.LOGGER.info("Staged {} file(s) ({} bytes) for project \"{}\".", stagedFiles,
+                    transaction.getWrittenBytes(), parameters.getProjectPath().get());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(
+                    String.format("Failed to inject Trace into project \"%s\".", parameters.getProjectPath().get()), e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.util.GradleVersion;
+
+/**
+ * Plugin that adds the {@link InjectTraceTask} to the root project. The step applies it in the root build file, the
+ * task itself does not touch the other projects. The plugin collects the Android modules with the
+ * {@link PluginModuleCollector} while the root project is evaluated, so the callbacks are registered (and with
+ * configure on demand the candidate projects are configured) before the other projects, independently of when the
+ * task is created. The task is registered lazily, and the collected modules are turned into
+ * {@link ModuleInjection}s only when the planned injections are needed (when the configuration cache entry is stored,
+ * or right before the task action without the configuration cache).
+ * <p>
+ * Note: the callbacks on the other projects and the planning read the model of the other projects from the root
+ * project, so the plugin is not compatible with isolated projects, only with the configuration cache.
+ * <p>
+ * The plugin needs at least {@link #MINIMUM_GRADLE_VERSION}: the injected repositories use exclusive content with
+ * filters, and the task reads the Gradle properties and the build files through the provider API.
+ */
+public class InjectTracePlugin implements Plugin<Project> {
+
+    /**
+     * The name of the registered {@link InjectTraceTask}.
+     */
+    static final String TASK_NAME = "injectTraceTask";
+
+    /**
+     * The oldest Gradle version that supports everything the plugin uses, such as the filters of exclusive content
+     * and {@link org.gradle.api.provider.ProviderFactory#gradleProperty(String)}.
+     */
+    static final GradleVersion MINIMUM_GRADLE_VERSION = GradleVersion.version("6.2");
+
+    @Override
+    public void apply(final Project project) {
+        checkGradleVersion(GradleVersion.current());
+        if (project != project.getRootProject()) {
+            throw new IllegalStateException(String.format("%s has to be applied to the root project, not to " +
+                    "\"%s\".", InjectTracePlugin.class.getSimpleName(), project.getPath()));
+        }
+        final PluginModuleCollector pluginModuleCollector = PluginModuleCollector.register(project,
+                InjectTraceTask.APPLICATION_PLUGIN_ID, InjectTraceTask.DYNAMIC_FEATURE_PLUGIN_ID);
+        project.getTasks().register(TASK_NAME, InjectTraceTask.class, task -> task.getModuleInjections().set(
+                project.getProviders().provider(
+                        () -> task.planModuleInjections(project, pluginModuleCollector.getProjects()))));
+    }
+
+    /**
+     * Checks that the given Gradle version is at least the {@link #MINIMUM_GRADLE_VERSION}, so an older Gradle fails
+     * with a clear message, instead of a missing method or an unknown block in the injected build files.
+     *
+     * @param gradleVersion the version of Gradle that runs the build.
+     * @throws IllegalStateException when the version is older than the {@link #MINIMUM_GRADLE_VERSION}.
+     */
+    static void checkGradleVersion(final GradleVersion gradleVersion) {
+        if (gradleVersion.getBaseVersion().compareTo(MINIMUM_GRADLE_VERSION) < 0) {
+            throw new IllegalStateException(String.format("%s needs %s or newer, but the project uses %s. Please " +
+                            "update the Gradle wrapper of the project.", InjectTracePlugin.class.getSimpleName(),
+                    MINIMUM_GRADLE_VERSION, gradleVersion));
+        }
+    }
+}
@@ -2,23 +2,37 @@ package io.bitrise.trace.step;
 
 import org.gradle.api.DefaultTask;
 import org.gradle.api.Project;
-import org.gradle.api.artifacts.Configuration;
-import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.ProviderFactory;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFiles;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.options.Option;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.Locale;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -26,17 +40,406 @@ import java.util.regex.Pattern;
 import javax.inject.Inject;
 
 /**
- * Task will inject the required gradle file changes to add Trace to the given Android application. For the versions
- * see 'traceSdk.gradle' and {@link #TRACE_GRADLE_PLUGIN_VERSION}.
+ * Task will inject the required gradle file changes to add Trace to the Android applications (and their dynamic
+ * features) of the project. For the versions see {@link #getTraceSdkVersion()} and
+ * {@link #getTraceGradlePluginVersion()}.
+ * <p>
+ * Groovy build files apply the shared 'traceSdk.gradle' and 'tracePlugin.gradle' scripts. Kotlin build files are
+ * edited directly (the dependency is added to their dependencies block, the plugin is applied by id), so a Kotlin
+ * only build does not have to compile Groovy scripts for Trace.
  */
-public class InjectTraceTask extends DefaultTask {
+public abstract class InjectTraceTask extends DefaultTask {
 
-    static Logger logger;
+    static final Logger LOGGER = Logging.getLogger(InjectTraceTask.class);
 
+    private final WorkerExecutor workerExecutor;
+    private final File rootDir;
+    private final File sharedScriptDir;
+
+    /**
+     * The ways of detecting if a module already has dependency on {@link #TRACE_SDK_DEPENDENCY_NAME}.
+     */
+    public enum SdkDetectionMode {
+        /**
+         * Only the declared dependencies of the classpath configurations are checked, nothing is resolved.
+         */
+        DECLARED,
+        /**
+         * When the dependency is not declared, the dependency graph of one representative variant is resolved and
+         * checked as well, so transitive dependencies are found too. See {@link ResolvedGraphDetector}.
+         */
+        RESOLVED
+    }
+
+    /**
+     * The buildscript classpaths {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} is added to.
+     */
+    public enum PluginClasspath {
+        /**
+         * The plugin is added to the buildscript classpath of each application module, that does not have it yet.
+         */
+        MODULE,
+        /**
+         * The plugin is added once to the buildscript classpath of the root project, which is the parent of the
+         * classpaths of all the modules, and the application modules only apply it by id. This way the plugin is
+         * resolved and loaded only once per build. Falls back to {@link #MODULE}, when the root project has no build
+         * file.
+         */
+        ROOT
+    }
+
+    /**
+     * The ways of choosing the versions of {@link #TRACE_SDK_DEPENDENCY_NAME} and
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} to inject, when no version is set explicitly.
+     */
+    public enum VersionResolution {
+        /**
+         * The dynamic {@link InjectTraceTask#DYNAMIC_VERSION} is injected, so every build uses the newest version.
+         * Gradle lists the versions of the modules again, whenever its dynamic version cache expires.
+         */
+        DYNAMIC,
+        /**
+         * The newest version, that is already in the local Gradle cache, is injected, see
+         * {@link CachedVersionResolver}. The builds do not list the versions again, and work with --offline. Falls
+         * back to {@link #DYNAMIC}, when no version of the module is cached.
+         */
+        CACHED
+    }
+
+    /**
+     * Constructor for class. The inputs of the task are wired here as lazy values, only the planned
+     * {@link #getModuleInjections()} are set by the {@link InjectTracePlugin}, which collects the Android modules. The
+     * default versions are {@link VersionResolutionSource}s, so they are chosen when the task is executed.
+     *
+     * @param workerExecutor the {@link WorkerExecutor} to run the per-module injections with.
+     * @param providers      the {@link ProviderFactory} of the project.
+     */
     @Inject
-    public InjectTraceTask() {
+    public InjectTraceTask(final WorkerExecutor workerExecutor, final ProviderFactory providers) {
         super();
-        logger = getProject().getLogger();
+        this.workerExecutor = workerExecutor;
+        this.rootDir = getProject().getRootDir();
+        this.sharedScriptDir = new File(rootDir, SHARED_SCRIPT_DIR);
+        getSdkDetectionMode().convention(SdkDetectionMode.DECLARED);
+        getPluginClasspath().convention(PluginClasspath.MODULE);
+        getVersionResolution().convention(providers.gradleProperty(VERSION_RESOLUTION_PROPERTY)
+                .map(value -> VersionResolution.valueOf(value.toUpperCase(Locale.ROOT)))
+                .orElse(VersionResolution.DYNAMIC));
+        final File gradleUserHomeDir = getProject().getGradle().getGradleUserHomeDir();
+        getTraceSdkVersion().convention(providers.gradleProperty(TRACE_SDK_VERSION_PROPERTY)
+                .orElse(getResolvedVersion(providers, gradleUserHomeDir, TRACE_SDK_DEPENDENCY_GROUP_NAME,
+                        TRACE_SDK_DEPENDENCY_NAME)));
+        getTraceSdkVersion().finalizeValueOnRead();
+        getTraceGradlePluginVersion().convention(providers.gradleProperty(TRACE_GRADLE_PLUGIN_VERSION_PROPERTY)
+                .orElse(getResolvedVersion(providers, gradleUserHomeDir, TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME,
+                        TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME)));
+        getTraceGradlePluginVersion().finalizeValueOnRead();
+        getLocalRepository().convention(providers.gradleProperty(LOCAL_REPOSITORY_PROPERTY));
+        getProjectRepositoriesAllowed().convention(getProjectRepositoriesAllowedBySettings(providers));
+        getStepSourceDir().convention(providers.environmentVariable(BITRISE_STEP_SRC_ENV));
+        getModuleInjections().finalizeValueOnRead();
+        getGradleFiles().from(getStepSourceDir()
+                .map(dir -> Arrays.asList(new File(dir, TRACE_SDK_GRADLE_FILE_NAME),
+                        new File(dir, TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME)))
+                .orElse(Collections.emptyList()));
+        getEditedFiles().from(getModuleInjections().map(injections -> getEditedFiles(injections, sharedScriptDir)));
+    }
+
+    /**
+     * Gets the version of the given module chosen by the {@link #getVersionResolution()}, as a
+     * {@link VersionResolutionSource}.
+     *
+     * @param providers         the {@link ProviderFactory} of the project.
+     * @param gradleUserHomeDir the Gradle user home directory.
+     * @param group             the group of the module.
+     * @param name              the name of the module.
+     * @return the Provider of the version.
+     */
+    private Provider<String> getResolvedVersion(final ProviderFactory providers, final File gradleUserHomeDir,
+                                                final String group, final String name) {
+        return providers.of(VersionResolutionSource.class, spec -> {
+            spec.getParameters().getVersionResolution().set(getVersionResolution());
+            spec.getParameters().getGradleUserHomeDir().set(gradleUserHomeDir);
+            spec.getParameters().getGroup().set(group);
+            spec.getParameters().getModuleName().set(name);
+        });
+    }
+
+    /**
+     * Gets the {@link SdkDetectionMode} of the task, can be set from the command line with "--sdk-detection".
+     *
+     * @return the Property of the mode of detecting {@link #TRACE_SDK_DEPENDENCY_NAME}.
+     */
+    @Input
+    @Option(option = "sdk-detection", description = "How to detect an existing dependency on the Trace SDK: " +
+            "DECLARED (default) or RESOLVED, which resolves one variant to find transitive dependencies as well.")
+    public abstract Property<SdkDetectionMode> getSdkDetectionMode();
+
+    /**
+     * Gets the {@link PluginClasspath} of the task, can be set from the command line with "--plugin-classpath".
+     *
+     * @return the Property of the buildscript classpath to add {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} to.
+     */
+    @Input
+    @Option(option = "plugin-classpath", description = "Where to add the Trace Gradle plugin: MODULE (default), to " +
+            "the buildscript of each application module, or ROOT, once to the buildscript of the root project.")
+    public abstract Property<PluginClasspath> getPluginClasspath();
+
+    /**
+     * Gets the source directory of the step, that contains the Gradle files to copy. By default it is the value of
+     * the {@link #BITRISE_STEP_SRC_ENV} environment variable.
+     *
+     * The path itself is not an input, as it can change between runs (for example on CI), only the content of the
+     * files in it, see {@link #getGradleFiles()}.
+     *
+     * @return the Property of the path of the directory.
+     */
+    @Internal
+    public abstract Property<String> getStepSourceDir();
+
+    /**
+     * Gets the planned injections of the Android modules, see {@link #planModuleInjections(Project, Collection)}, set
+     * by the {@link InjectTracePlugin}. The
+     * planned edits are not inputs: they are derived from the build files, which are tracked as outputs, see
+     * {@link #getEditedFiles()}.
+     *
+     * @return the ListProperty of the {@link ModuleInjection}s.
+     */
+    @Internal
+    public abstract ListProperty<ModuleInjection> getModuleInjections();
+
+    /**
+     * Gets the paths of the Android modules to inject.
+     *
+     * @return the Provider of the List of the module paths.
+     */
+    @Input
+    public Provider<List<String>> getModulePaths() {
+        return getModuleInjections().map(injections -> {
+            final List<String> modulePaths = new ArrayList<>(injections.size());
+            for (final ModuleInjection injection : injections) {
+                modulePaths.add(injection.getProjectPath());
+            }
+            return modulePaths;
+        });
+    }
+
+    /**
+     * Gets the {@link VersionResolution} of the task, can be set from the command line with "--version-resolution",
+     * or with the {@link #VERSION_RESOLUTION_PROPERTY} Gradle property.
+     *
+     * @return the Property of the way of choosing the injected versions.
+     */
+    @Input
+    @Option(option = "version-resolution", description = "How to choose the injected Trace versions: DYNAMIC " +
+            "(default), the '+' version, or CACHED, the newest version in the local Gradle cache.")
+    public abstract Property<VersionResolution> getVersionResolution();
+
+    /**
+     * Gets the version of {@link #TRACE_SDK_DEPENDENCY_NAME} that is injected: it is written into Kotlin build files,
+     * and into the shared {@link #TRACE_SDK_GRADLE_FILE_NAME} for Groovy build files. Can be set from the command line
+     * with "--trace-sdk-version", or with the {@link #TRACE_SDK_VERSION_PROPERTY} Gradle property, otherwise it is
+     * chosen by the {@link #getVersionResolution()}.
+     *
+     * @return the Property of the version.
+     */
+    @Input
+    @Option(option = "trace-sdk-version", description = "The version of the Trace SDK to inject.")
+    public abstract Property<String> getTraceSdkVersion();
+
+    /**
+     * Gets the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} that is injected. Can be set from the command
+     * line with "--trace-gradle-plugin-version", or with the {@link #TRACE_GRADLE_PLUGIN_VERSION_PROPERTY} Gradle
+     * property, otherwise it is chosen by the {@link #getVersionResolution()}.
+     *
+     * @return the Property of the version.
+     */
+    @Input
+    @Option(option = "trace-gradle-plugin-version", description = "The version of the Trace Gradle plugin to inject.")
+    public abstract Property<String> getTraceGradlePluginVersion();
+
+    /**
+     * Gets the path of a local, file based Maven repository, that the Trace artifacts are resolved from instead of
+     * Maven Central. The injected repositories declare it as the exclusive repository of the Trace groups, so on a
+     * cold build the Trace artifacts are resolved from the local disk, without any remote request. Can be set from the
+     * command line with "--local-repository", or with the {@link #LOCAL_REPOSITORY_PROPERTY} Gradle property. The
+     * path is written into the build files (relative to the root project, if the directory is in it), so the
+     * directory has to be kept for the builds of the project.
+     *
+     * @return the Property of the path of the repository.
+     */
+    @Input
+    @Optional
+    @Option(option = "local-repository", description = "The path of a local Maven repository to resolve the Trace " +
+            "artifacts from, instead of Maven Central.")
+    public abstract Property<String> getLocalRepository();
+
+    /**
+     * Gets the URL of the given local Maven repository, that is written into the injected repositories. When the
+     * repository is in the given root project directory (for example the tarball of the repository has been
+     * extracted there by the step), the URL is relative to it, so the build files do not depend on the location of
+     * the project on the machine, see {@link #getExclusiveContent(String, String)}.
+     *
+     * @param localRepository the path of the repository, see {@link #getLocalRepository()}.
+     * @param rootDir         the directory of the root project.
+     * @return the URL, or {@code null} if the path is {@code null}.
+     * @throws IllegalStateException when the path is not a directory.
+     */
+    static String getLocalRepositoryUrl(final String localRepository, final File rootDir) {
+        if (localRepository == null) {
+            return null;
+        }
+        final File repositoryDir = new File(localRepository).getAbsoluteFile();
+        if (!repositoryDir.isDirectory()) {
+            throw new IllegalStateException(String.format("The local repository \"%s\" is not a directory, " +
+                    "aborting build.", repositoryDir));
+        }
+        for (final String group : TRACE_GROUPS) {
+            if (!new File(repositoryDir, group.replace('.', File.separatorChar)).isDirectory()) {
+                LOGGER.warn("The local repository \"{}\" does not have any artifacts of the group \"{}\".",
+                        repositoryDir, group);
+            }
+        }
+        return rootDir.getAbsoluteFile().toURI().relativize(repositoryDir.toURI()).toString();
+    }
+
+    /**
+     * Gets whether the settings of the build allow the projects to declare repositories. When the dependency
+     * resolution management of the settings sets the repositories mode to "FAIL_ON_PROJECT_REPOS" or
+     * "PREFER_SETTINGS", Gradle fails the build on, or ignores the repositories of the projects. Then the local Maven
+     * repository is not injected into the repositories of the Android modules, only into their buildscript
+     * repositories, that the mode does not affect: the repository has to be declared in the settings for
+     * {@link #TRACE_SDK_DEPENDENCY_NAME}. By default it is detected from the settings file of the root project, see
+     * {@link #allowsProjectRepositories(CharSequence, BuildScriptLexer.Dialect)}.
+     *
+     * @return the Property of whether the projects can declare repositories.
+     */
+    @Input
+    public abstract Property<Boolean> getProjectRepositoriesAllowed();
+
+    /**
+     * Gets whether the settings file of the root project allows the projects to declare repositories, see
+     * {@link #getProjectRepositoriesAllowed()}. The settings file is read as a provider, so a changed file is detected
+     * by the configuration cache as well.
+     *
+     * @param providers the {@link ProviderFactory} of the project.
+     * @return the Provider of whether the projects can declare repositories, {@code true} if there is no settings
+     * file.
+     */
+    private Provider<Boolean> getProjectRepositoriesAllowedBySettings(final ProviderFactory providers) {
+        Provider<Boolean> allowed = null;
+        for (final String settingsFileName : SETTINGS_FILE_NAMES) {
+            final BuildScriptLexer.Dialect dialect = BuildScriptLexer.Dialect.of(settingsFileName);
+            final Provider<Boolean> fileAllowed = providers
+                    .fileContents(getProject().getLayout().getProjectDirectory().file(settingsFileName))
+                    .getAsText()
+                    .map(content -> allowsProjectRepositories(content, dialect));
+            allowed = allowed == null ? fileAllowed : allowed.orElse(fileAllowed);
+        }
+        return allowed.orElse(true);
+    }
+
+    /**
+     * Checks if the given content of a settings file allows the projects to declare repositories: it does not, if it
+     * refers to any of the {@link #SETTINGS_REPOSITORIES_MODES} outside of the comments and the String literals.
+     *
+     * @param content the content of the settings file.
+     * @param dialect the {@link BuildScriptLexer.Dialect} of the settings file.
+     * @return {@code true} if the projects can declare repositories, {@code false} otherwise.
+     */
+    static boolean allowsProjectRepositories(final CharSequence content, final BuildScriptLexer.Dialect dialect) {
+        final BuildScriptTokens tokens = BuildScriptLexer.tokenize(content, dialect);
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) == BuildScriptTokens.Type.IDENTIFIER
+                    && SETTINGS_REPOSITORIES_MODES.contains(tokens.text(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the URL of the local Maven repository to inject into the repositories of the Android modules.
+     *
+     * @param localRepositoryUrl         the URL of the local Maven repository, or {@code null}.
+     * @param projectRepositoriesAllowed whether the projects can declare repositories, see
+     *                                   {@link #getProjectRepositoriesAllowed()}.
+     * @return the URL, or {@code null} if there is no local Maven repository, or the projects cannot declare
+     * repositories.
+     */
+    static String getProjectRepositoryUrl(final String localRepositoryUrl, final boolean projectRepositoriesAllowed) {
+        if (localRepositoryUrl == null || projectRepositoriesAllowed) {
+            return localRepositoryUrl;
+        }
+        LOGGER.warn("The settings of the build do not allow repositories in the projects, the local repository " +
+                "\"{}\" is only added to the buildscript repositories. Declare it in the " +
+                "dependencyResolutionManagement block of the settings to resolve \"{}\" from it.", localRepositoryUrl,
+                TRACE_SDK_DEPENDENCY_NAME);
+        return null;
+    }
+
+    /**
+     * Chooses the version of the given module to inject with the given {@link VersionResolution}.
+     *
+     * @param versionResolution     the VersionResolution.
+     * @param cachedVersionResolver the {@link CachedVersionResolver} to use with {@link VersionResolution#CACHED}.
+     * @param group                 the group of the module.
+     * @param name                  the name of the module.
+     * @return the version.
+     */
+    static String resolveVersion(final VersionResolution versionResolution,
+                                 final CachedVersionResolver cachedVersionResolver, final String group,
+                                 final String name) {
+        if (versionResolution == VersionResolution.CACHED) {
+            final String cachedVersion = cachedVersionResolver.findNewestVersion(group, name);
+            if (cachedVersion != null) {
+                LOGGER.lifecycle("Using version \"{}\" of \"{}\" from the Gradle cache.", cachedVersion, name);
+                return cachedVersion;
+            }
+            LOGGER.lifecycle("No version of \"{}\" is in the Gradle cache, using version \"{}\".", name,
+                    DYNAMIC_VERSION);
+        }
+        return DYNAMIC_VERSION;
+    }
+
+    /**
+     * Gets the Gradle files that are copied from the step source directory to {@link #SHARED_SCRIPT_DIR}. Only the
+     * content of them is an input, not their location.
+     *
+     * @return the ConfigurableFileCollection of {@link #TRACE_SDK_GRADLE_FILE_NAME} and
+     * {@link #TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME} in the step source directory.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getGradleFiles();
+
+    /**
+     * Gets the files that the task may edit or create, see {@link #getEditedFiles(List, File)}. The build files are
+     * edited in place, so they are outputs (and not inputs as well): when they are changed outside of the task, it
+     * runs again, otherwise a re-run on an already injected workspace is up-to-date.
+     *
+     * @return the ConfigurableFileCollection of the files.
+     */
+    @OutputFiles
+    public abstract ConfigurableFileCollection getEditedFiles();
+
+    /**
+     * Gets the files that may be edited or created by the given injections: the build file of each module, and the
+     * shared Gradle files. The files do not depend on the planned edits, so the outputs are the same before and after
+     * the injection.
+     *
+     * @param injections      the {@link ModuleInjection}s.
+     * @param sharedScriptDir the directory of the shared Gradle files, see {@link #SHARED_SCRIPT_DIR}.
+     * @return the List of the files.
+     */
+    static List<File> getEditedFiles(final List<ModuleInjection> injections, final File sharedScriptDir) {
+        final List<File> files = new ArrayList<>(injections.size() + 2);
+        for (final ModuleInjection injection : injections) {
+            files.add(injection.getBuildFile());
+        }
+        files.add(new File(sharedScriptDir, TRACE_SDK_GRADLE_FILE_NAME));
+        files.add(new File(sharedScriptDir, TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME));
+        return files;
     }
 
     //region Constants
@@ -55,6 +458,89 @@ public class InjectTraceTask extends DefaultTask {
      */
     private static final String TRACE_SDK_GRADLE_FILE_NAME = "traceSdk.gradle";
 
+    /**
+     * The dynamic version, that is injected for {@link #TRACE_SDK_DEPENDENCY_NAME} and
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} with {@link VersionResolution#DYNAMIC}. It is the version in
+     * {@link #TRACE_SDK_GRADLE_FILE_NAME} as well.
+     */
+    static final String DYNAMIC_VERSION = "+";
+
+    /**
+     * The Gradle property for setting the {@link VersionResolution}, for example
+     * "-Pbitrise.trace.versionResolution=cached".
+     */
+    static final String VERSION_RESOLUTION_PROPERTY = "bitrise.trace.versionResolution";
+
+    /**
+     * The Gradle property for setting the version of {@link #TRACE_SDK_DEPENDENCY_NAME}.
+     */
+    static final String TRACE_SDK_VERSION_PROPERTY = "bitrise.trace.sdkVersion";
+
+    /**
+     * The Gradle property for setting the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     */
+    static final String TRACE_GRADLE_PLUGIN_VERSION_PROPERTY = "bitrise.trace.gradlePluginVersion";
+
+    /**
+     * The Gradle property for setting the path of the local Maven repository, see {@link #getLocalRepository()}.
+     */
+    static final String LOCAL_REPOSITORY_PROPERTY = "bitrise.trace.localRepository";
+
+    /**
+     * The id of the {@link InjectedRegion} of the local Maven repository in a Kotlin build file, see
+     * {@link #getLocalRepository()}.
+     */
+    static final String TRACE_SDK_REPOSITORY_REGION = "trace-sdk repository";
+
+    /**
+     * The names of the settings files of the root project, see {@link #getProjectRepositoriesAllowed()}.
+     */
+    static final String[] SETTINGS_FILE_NAMES = {"settings.gradle", "settings.gradle.kts"};
+
+    /**
+     * The repositories modes of the settings, that do not allow the projects to declare repositories, see
+     * {@link #getProjectRepositoriesAllowed()}.
+     */
+    static final List<String> SETTINGS_REPOSITORIES_MODES = Arrays.asList("FAIL_ON_PROJECT_REPOS", "PREFER_SETTINGS");
+
+    /**
+     * The indentation of the regions, that are inserted into a block.
+     */
+    private static final String BLOCK_INDENT = "    ";
+
+    /**
+     * Matches the dependency on {@link #TRACE_SDK_DEPENDENCY_NAME} in {@link #TRACE_SDK_GRADLE_FILE_NAME}, the version
+     * is the second group.
+     */
+    private static final Pattern TRACE_SDK_DEPENDENCY_PATTERN = Pattern.compile(
+            "([\"']io\\.bitrise\\.trace:trace-sdk:)([^\"']*)(?=[\"'])");
+
+    /**
+     * The id of the {@link InjectedRegion} of the dependency on {@link #TRACE_SDK_DEPENDENCY_NAME} in a Kotlin build
+     * file, inserted into an existing dependencies block.
+     */
+    static final String TRACE_SDK_DEPENDENCY_REGION = "trace-sdk dependency";
+
+    /**
+     * The id of the {@link InjectedRegion} of the dependencies block with the dependency on
+     * {@link #TRACE_SDK_DEPENDENCY_NAME} in a Kotlin build file, added when the file does not have a dependencies
+     * block.
+     */
+    static final String TRACE_SDK_DEPENDENCIES_REGION = "trace-sdk dependencies";
+
+    /**
+     * The id of the {@link InjectedRegion} of the apply of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} in a Kotlin
+     * build file.
+     */
+    static final String TRACE_GRADLE_PLUGIN_APPLY_REGION = "trace-gradle-plugin apply";
+
+    /**
+     * The directory, relative to the root project, that {@link #TRACE_SDK_GRADLE_FILE_NAME} and
+     * {@link #TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME} are copied to. Every module applies the same copy, so Gradle
+     * compiles each script only once per build, instead of once per module.
+     */
+    static final String SHARED_SCRIPT_DIR = "gradle";
+
     /**
      * The name of the  dependency for the 'trace-gradle-plugin'.
      */
@@ -65,6 +551,20 @@ public class InjectTraceTask extends DefaultTask {
      */
     private static final String TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME = "io.bitrise.trace.plugin";
 
+    /**
+     * The groups of the Trace artifacts, that are the exclusive content of Maven Central, or of the local Maven
+     * repository when {@link #getLocalRepository()} is set.
+     */
+    private static final String[] TRACE_GROUPS = {TRACE_SDK_DEPENDENCY_GROUP_NAME,
+            TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME};
+
+    /**
+     * The regular expressions of the groups, that are hosted on Google's Maven repository. The google repository added
+     * to the buildscript is filtered to these groups, and they are filtered out from the Maven Central repository.
+     */
+    private static final String[] GOOGLE_MAVEN_GROUP_REGEXES = {"com\\.android\\..*", "androidx\\..*",
+            "com\\.google\\.android\\..*"};
+
     /**
      * The name of the Gradle file that contains the dependency for the {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}
      * project.
@@ -72,281 +572,732 @@ public class InjectTraceTask extends DefaultTask {
     private static final String TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME = "tracePlugin.gradle";
 
     /**
-     * The version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}, which will be injected project. Note: for the
-     * version of {@link #TRACE_SDK_DEPENDENCY_NAME} check traceSdk.gradle.
+     * The id of the {@link InjectedRegion} of the dependency on {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}, inserted
+     * into an existing buildscript block.
+     */
+    static final String TRACE_GRADLE_PLUGIN_CLASSPATH_REGION = "trace-gradle-plugin classpath";
+
+    /**
+     * The id of the {@link InjectedRegion} of the buildscript block with the dependency on
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}, added when the build file does not have a buildscript block.
+     */
+    static final String TRACE_GRADLE_PLUGIN_BUILDSCRIPT_REGION = "trace-gradle-plugin buildscript";
+
+    /**
+     * The ids of the {@link InjectedRegion}s of the dependency on {@link #TRACE_SDK_DEPENDENCY_NAME}, in Groovy and
+     * Kotlin build files.
+     */
+    private static final String[] TRACE_SDK_REGIONS = {TRACE_SDK_GRADLE_FILE_NAME, TRACE_SDK_DEPENDENCY_REGION,
+            TRACE_SDK_DEPENDENCIES_REGION, TRACE_SDK_REPOSITORY_REGION};
+
+    /**
+     * The ids of the {@link InjectedRegion}s of the buildscript dependency on
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     */
+    private static final String[] TRACE_GRADLE_PLUGIN_CLASSPATH_REGIONS = {TRACE_GRADLE_PLUGIN_CLASSPATH_REGION,
+            TRACE_GRADLE_PLUGIN_BUILDSCRIPT_REGION};
+
+    /**
+     * The ids of the {@link InjectedRegion}s of the apply of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}, in Groovy
+     * and Kotlin build files.
      */
-    private static final String TRACE_GRADLE_PLUGIN_VERSION = "+";
+    private static final String[] TRACE_GRADLE_PLUGIN_APPLY_REGIONS = {TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME,
+            TRACE_GRADLE_PLUGIN_APPLY_REGION};
 
     /**
      * Environment variable name for the source code of the step.
      */
     private static final String BITRISE_STEP_SRC_ENV = "BITRISE_STEP_SOURCE_DIR";
+
+    /**
+     * The id of the plugin of the Android application modules.
+     */
+    static final String APPLICATION_PLUGIN_ID = "com.android.application";
+
+    /**
+     * The id of the plugin of the Android dynamic feature modules.
+     */
+    static final String DYNAMIC_FEATURE_PLUGIN_ID = "com.android.dynamic-feature";
     //endregion
 
     //region Task action
 
     /**
-     * The action that will be performed when this task is run. Does the following:
-     * <ul>
-     *     <li>ensures {@link #TRACE_SDK_DEPENDENCY_NAME} is a dependency to the app module</li>
-     *     <li>ensures {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} is a buildscript dependency for the app module</li>
-     *     <li>ensures that {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} is applied as a plugin on the app</li>
-     * </ul>
+     * The action that will be performed when this task is run. Takes the {@link ModuleInjection}s planned by
+     * {@link #planModuleInjections(Project, Collection)}, plans copying the required Gradle files once to
+     * {@link #SHARED_SCRIPT_DIR}, and submits the edits of each module as an {@link InjectModuleWorkAction}, which only
+     * gets the paths and the planned edits. The actions run in parallel on the Gradle workers, each module has its own
+     * {@link BuildFileTransaction}, that only stages the edited build file. When every action has succeeded, the
+     * staged build files and the shared Gradle files are written in a single transaction on the task thread. When any
+     * of them fails, the staged build files are discarded, so no file is changed. Every build file is read once and
+     * written once. The action does not touch the {@link Project} model.
      *
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @throws IOException when any I/O error occurs with the files.
      */
     @TaskAction
     public void taskAction() throws IOException {
-        final Project rootProject = getProject();
-        final Project applicationModule = getApplicationModule(rootProject.getSubprojects());
+        final List<ModuleInjection> injections = getModuleInjections().get();
+        final String traceSdkVersion = getTraceSdkVersion().get();
+        final String traceGradlePluginVersion = getTraceGradlePluginVersion().get();
+        final String localRepositoryUrl = getLocalRepositoryUrl(getLocalRepository().getOrNull(), rootDir);
+        final boolean projectRepositoriesAllowed = getProjectRepositoriesAllowed().get();
+        final String projectRepositoryUrl = getProjectRepositoryUrl(localRepositoryUrl, projectRepositoriesAllowed);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        planSharedScripts(injections, traceSdkVersion, projectRepositoryUrl, projectRepositoriesAllowed, transaction);
+        final List<Path> buildFiles = new ArrayList<>();
+        final WorkQueue workQueue = workerExecutor.noIsolation();
+        for (final ModuleInjection injection : injections) {
+            if (!injection.hasEdits()) {
+                LOGGER.info("Nothing to inject for project \"{}\".", injection.getProjectPath());
+                continue;
+            }
+            final Path buildFile = injection.getBuildFile().toPath();
+            BuildFileTransaction.discard(buildFile);
+            buildFiles.add(buildFile);
+            workQueue.submit(InjectModuleWorkAction.class, parameters -> {
+                parameters.getProjectPath().set(injection.getProjectPath());
+                parameters.getBuildFile().set(injection.getBuildFile());
+                parameters.getAddTraceSdkDependency().set(injection.isAddTraceSdkDependency());
+                parameters.getAddTraceGradlePluginDependency().set(injection.isAddTraceGradlePluginDependency());
+                parameters.getApplyTraceGradlePlugin().set(injection.isApplyTraceGradlePlugin());
+                parameters.getTraceSdkVersion().set(traceSdkVersion);
+                parameters.getTraceGradlePluginVersion().set(traceGradlePluginVersion);
+                parameters.getLocalRepositoryUrl().set(localRepositoryUrl);
+                parameters.getProjectRepositoryUrl().set(projectRepositoryUrl);
+            });
+        }
+        try {
+            workQueue.await();
+        } catch (final RuntimeException e) {
+            LOGGER.error("Failed to inject Trace, discarding the edits of every project.");
+            for (final Path buildFile : buildFiles) {
+                try {
+                    BuildFileTransaction.discard(buildFile);
+                } catch (final IOException discardException) {
+                    e.addSuppressed(discardException);
+                }
+            }
+            throw e;
+        }
+        for (final Path buildFile : buildFiles) {
+            transaction.publish(buildFile);
+        }
+        final int writtenFiles = transaction.commit();
+        LOGGER.info("Written {} file(s) ({} bytes).", writtenFiles, transaction.getWrittenBytes());
+    }
+
+    /**
+     * Plans copying the Gradle files, that are applied by any of the given injections of Groovy build files, from the
+     * step source directory to {@link #SHARED_SCRIPT_DIR}. The copies are planned on the task thread, and written
+     * together with the build files of the modules, so the workers do not race for the same files.
+     *
+     * @param injections          the {@link ModuleInjection}s.
+     * @param traceSdkVersion     the version of {@link #TRACE_SDK_DEPENDENCY_NAME} to write into
+     *                            {@link #TRACE_SDK_GRADLE_FILE_NAME}.
+     * @param localRepositoryUrl  the URL of the local Maven repository to write into
+     *                            {@link #TRACE_SDK_GRADLE_FILE_NAME}, or {@code null}.
+     * @param repositoriesAllowed whether the projects can declare repositories, see
+     *                            {@link #getProjectRepositoriesAllowed()}.
+     * @param transaction         the {@link BuildFileTransaction} to plan the copies in.
+     * @throws IOException when any I/O error occurs with the files.
+     */
+    private void planSharedScripts(final List<ModuleInjection> injections, final String traceSdkVersion,
+                                   final String localRepositoryUrl, final boolean repositoriesAllowed,
+                                   final BuildFileTransaction transaction) throws IOException {
+        boolean copyTraceSdkGradleFile = false;
+        boolean copyTraceGradlePluginGradleFile = false;
+        for (final ModuleInjection injection : injections) {
+            if (BuildScriptLexer.Dialect.of(injection.getBuildFile().getPath()) == BuildScriptLexer.Dialect.GROOVY) {
+                copyTraceSdkGradleFile |= injection.isAddTraceSdkDependency();
+                copyTraceGradlePluginGradleFile |= injection.isApplyTraceGradlePlugin();
+            }
+        }
+        if (!copyTraceSdkGradleFile && !copyTraceGradlePluginGradleFile) {
+            return;
+        }
+        final Path stepSourceDir = new File(getRequiredStepSourceDir()).toPath();
+        if (copyTraceSdkGradleFile) {
+            copyTraceSdkGradleFile(stepSourceDir, sharedScriptDir.toPath(), traceSdkVersion, localRepositoryUrl,
+                    repositoriesAllowed, transaction);
+        }
+        if (copyTraceGradlePluginGradleFile) {
+            copyGradleFile(stepSourceDir, sharedScriptDir.toPath(), TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME,
+                    transaction);
+        }
+    }
+
+    /**
+     * Plans the injections of the Android modules among the given projects. For each Android application and dynamic
+     * feature module (see {@link #getAndroidModules(Collection)}) checks the following:
+     * <ul>
+     *     <li>if {@link #TRACE_SDK_DEPENDENCY_NAME} has to be added as a dependency to the module</li>
+     *     <li>if {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} has to be added as a buildscript dependency for the
+     *     application modules</li>
+     *     <li>if {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} has to be applied as a plugin on the application
+     *     modules</li>
+     * </ul>
+     * An edit is planned as well, when the build file already has the {@link InjectedRegion} of it from an earlier
+     * run, so the region is updated to the current versions and local repository. The injected dependencies are
+     * declared, so they would be skipped otherwise.
+     * <p>
+     * With {@link PluginClasspath#ROOT} the buildscript dependency is planned for the root project instead of the
+     * application modules, as a separate {@link ModuleInjection} before the ones of the modules. It is planned even if
+     * there is nothing to add, so the planned paths (and the inputs of the task) are the same before and after the
+     * injection.
+     *
+     * @param rootProject the root {@link Project}.
+     * @param projects    the projects collected by the {@link PluginModuleCollector}.
+     * @return the List of the {@link ModuleInjection}s, in the order of the given projects.
+     */
+    List<ModuleInjection> planModuleInjections(final Project rootProject, final Collection<Project> projects) {
+        final List<Project> androidModules = getAndroidModules(projects);
+        final ResolvedGraphDetector resolvedGraphDetector = new ResolvedGraphDetector();
+        final List<ModuleInjection> injections = new ArrayList<>(androidModules.size() + 1);
+        final boolean rootClasspath = isRootClasspathUsable(getPluginClasspath().get(), rootProject, androidModules);
+        if (rootClasspath) {
+            injections.add(new ModuleInjection(rootProject.getPath(), rootProject.getBuildFile(), false,
+                    ensureTraceGradlePluginDependency(rootProject, getDependencyIndex(rootProject),
+                            getInjectedRegionIds(rootProject.getBuildFile())), false));
+        }
+
+        for (final Project androidModule : androidModules) {
+            final boolean applicationModule = isApplicationModule(androidModule);
+            final DependencyIndex dependencyIndex = getDependencyIndex(androidModule);
+            final Set<String> injectedRegionIds = getInjectedRegionIds(androidModule.getBuildFile());
+            final boolean addTraceSdkDependency = ensureTraceSdkDependency(androidModule, dependencyIndex,
+                    resolvedGraphDetector, injectedRegionIds);
+            final boolean addTraceGradlePluginDependency = applicationModule && !rootClasspath
+                    && ensureTraceGradlePluginDependency(androidModule, dependencyIndex, injectedRegionIds);
+            final boolean applyTraceGradlePlugin = applicationModule
+                    && ensureTraceGradlePluginIsApplied(androidModule, injectedRegionIds);
+            injections.add(new ModuleInjection(androidModule.getPath(), androidModule.getBuildFile(),
+                    addTraceSdkDependency, addTraceGradlePluginDependency, applyTraceGradlePlugin));
+        }
+        return injections;
+    }
+
+    /**
+     * Gets the ids of the {@link InjectedRegion}s in the given build file, that have been injected by an earlier run
+     * of the step.
+     *
+     * @param buildFile the build file of a project.
+     * @return the Set of the ids, empty if the file does not exist.
+     * @throws UncheckedIOException when the file cannot be read.
+     */
+    static Set<String> getInjectedRegionIds(final File buildFile) {
+        if (!buildFile.isFile()) {
+            return Collections.emptySet();
+        }
+        try {
+            return InjectedRegion.findIds(BuildScriptLexer.tokenize(BuildFileIO.read(buildFile.toPath()),
+                    BuildScriptLexer.Dialect.of(buildFile.getPath())));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(String.format("Failed to read \"%s\".", buildFile), e);
+        }
+    }
 
-        // TODO check prerequirements: APM-2341 (example: com.android.tools.build:gradle)
-        ensureTraceSdkDependency(applicationModule);
-        ensureTraceGradlePluginDependency(applicationModule);
-        ensureTraceGradlePluginIsApplied(applicationModule);
+    /**
+     * Checks if any of the given region ids is among the given injected ones.
+     *
+     * @param injectedRegionIds the ids of the injected regions of a build file, see
+     *                          {@link #getInjectedRegionIds(File)}.
+     * @param ids               the ids to look for.
+     * @return {@code true} if any of them is injected, {@code false} otherwise.
+     */
+    static boolean hasInjectedRegion(final Set<String> injectedRegionIds, final String... ids) {
+        for (final String id : ids) {
+            if (injectedRegionIds.contains(id)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Gets the application module. Throws IllegalStateException when there is no such.
+     * Checks if {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} should be added to the buildscript classpath of the root
+     * project: if {@link PluginClasspath#ROOT} is set, the root project has a build file, and it is not one of the
+     * given Android modules (in that case the module classpath is the root classpath).
      *
-     * @param projectSet the Set of the {@link Project}s which should contain the application.
-     * @return the Project that is the application.
+     * @param pluginClasspath the {@link PluginClasspath} set for the task.
+     * @param rootProject     the root {@link Project}.
+     * @param androidModules  the Android modules.
+     * @return {@code true} if it should be, {@code false} otherwise.
      */
-    private Project getApplicationModule(final Set<Project> projectSet) {
-        for (final Project project : projectSet) {
-            final String projectName = project.getName();
-            logger.debug("Checking project \"{}\" if it is an Android application", projectName);
-            if (project.getPlugins().hasPlugin("com.android.application")) {
-                logger.lifecycle(
+    static boolean isRootClasspathUsable(final PluginClasspath pluginClasspath, final Project rootProject,
+                                         final List<Project> androidModules) {
+        if (pluginClasspath != PluginClasspath.ROOT || androidModules.contains(rootProject)) {
+            return false;
+        }
+        if (!rootProject.getBuildFile().isFile()) {
+            LOGGER.warn("The root project has no build file, adding \"{}\" to the application modules instead.",
+                    TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the Android application and dynamic feature modules from the given projects, in the order of the given
+     * Collection. The given projects are the ones collected by the {@link PluginModuleCollector}, including the nested
+     * modules, and have to be configured already. Throws IllegalStateException when there is no application module
+     * among them.
+     *
+     * @param projects the Collection of the {@link Project}s which should contain the application(s).
+     * @return the List of the Projects that are applications or dynamic features.
+     */
+    static List<Project> getAndroidModules(final Collection<Project> projects) {
+        final List<Project> androidModules = new ArrayList<>();
+        boolean hasApplicationModule = false;
+        for (final Project project : projects) {
+            final String projectPath = project.getPath();
+            LOGGER.debug("Checking project \"{}\" if it is an Android application or dynamic feature", projectPath);
+            if (isApplicationModule(project)) {
+                LOGGER.lifecycle(
                         "Project \"{}\" is an Android application! Task will ensure it has all the required Trace" +
-                                " dependencies", projectName);
-                return project;
+                                " dependencies", projectPath);
+                androidModules.add(project);
+                hasApplicationModule = true;
+            } else if (project.getPlugins().hasPlugin(DYNAMIC_FEATURE_PLUGIN_ID)) {
+                LOGGER.lifecycle(
+                        "Project \"{}\" is an Android dynamic feature! Task will ensure it has dependency on \"{}\"",
+                        projectPath, TRACE_SDK_DEPENDENCY_NAME);
+                androidModules.add(project);
+            } else {
+                LOGGER.debug("Project \"{}\" is not an Android application or dynamic feature!", projectPath);
             }
-            logger.debug("Project \"{}\" is not an Android application!", projectName);
         }
-        throw new IllegalStateException("No module with \"com.android.application\" plugin found. You must have at " +
-                "least one Android application module in your project to install Trace SDK!");
+        if (!hasApplicationModule) {
+            throw new IllegalStateException("No module with \"" + APPLICATION_PLUGIN_ID + "\" plugin found. You " +
+                    "must have at least one Android application module in your project to install Trace SDK!");
+        }
+        return androidModules;
+    }
+
+    /**
+     * Checks if the given {@link Project} is an Android application or not.
+     *
+     * @param project the given Project.
+     * @return {@code true} if it has the {@link #APPLICATION_PLUGIN_ID} plugin applied, {@code false} otherwise.
+     */
+    private static boolean isApplicationModule(final Project project) {
+        return project.getPlugins().hasPlugin(APPLICATION_PLUGIN_ID);
+    }
+
+    /**
+     * Gets the {@link DependencyIndex} of the given module for the presence checks of
+     * {@link #TRACE_SDK_DEPENDENCY_NAME} and {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}. The index is built in one
+     * pass over the buildscript configurations and the classpath configurations (see
+     * {@link #isClasspathConfiguration(String)}) of the module, and stops as soon as the SDK is found among the
+     * module configurations and the plugin among the buildscript configurations.
+     *
+     * @param module the {@link Project} of the module.
+     * @return the DependencyIndex.
+     */
+    private static DependencyIndex getDependencyIndex(final Project module) {
+        return new DependencyIndex.Builder(
+                DependencyIndex.getKey(DependencyIndex.Scope.MODULE, TRACE_SDK_DEPENDENCY_GROUP_NAME,
+                        TRACE_SDK_DEPENDENCY_NAME),
+                DependencyIndex.getKey(DependencyIndex.Scope.BUILDSCRIPT, TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME,
+                        TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME))
+                .addAll(DependencyIndex.Scope.BUILDSCRIPT, module.getBuildscript().getConfigurations(), name -> true)
+                .addAll(DependencyIndex.Scope.MODULE, module.getConfigurations(),
+                        InjectTraceTask::isClasspathConfiguration)
+                .build();
+    }
+
+    /**
+     * Checks if the configuration with the given name is a compile or runtime classpath, that should have
+     * {@link #TRACE_SDK_DEPENDENCY_NAME} as a dependency.
+     *
+     * @param configurationName the name of the configuration.
+     * @return {@code true} if it is, {@code false} otherwise.
+     */
+    static boolean isClasspathConfiguration(final String configurationName) {
+        return DependencyIndex.containsIgnoreCase(configurationName, "compileclasspath") ||
+                DependencyIndex.containsIgnoreCase(configurationName, "runtimeclasspath");
     }
     //endregion
 
     //region Ensure dependency for 'trace-sdk'
 
     /**
-     * Ensures that the given module has dependency on {@link #TRACE_SDK_DEPENDENCY_NAME}.
+     * Ensures that the given module has dependency on {@link #TRACE_SDK_DEPENDENCY_NAME}: checks if the dependency
+     * has to be injected, or updated when it has been injected by an earlier run.
      *
-     * @param appModule the {@link Project} of the app.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param appModule             the {@link Project} of the app.
+     * @param dependencyIndex       the {@link DependencyIndex} of the app.
+     * @param resolvedGraphDetector the {@link ResolvedGraphDetector} shared by the modules.
+     * @param injectedRegionIds     the ids of the injected regions of the build file of the app.
+     * @return {@code true} if {@link #addTraceSdkDependency(BuildFileTransaction.BuildFile, String, String)} has to
+     * be called for the module, {@code false} otherwise.
      */
-    private void ensureTraceSdkDependency(final Project appModule) throws IOException {
-        if (hasTraceSdkDependency(appModule)) {
-            logger.lifecycle(
+    private boolean ensureTraceSdkDependency(final Project appModule, final DependencyIndex dependencyIndex,
+                                             final ResolvedGraphDetector resolvedGraphDetector,
+                                             final Set<String> injectedRegionIds) {
+        if (hasInjectedRegion(injectedRegionIds, TRACE_SDK_REGIONS)) {
+            LOGGER.lifecycle("Project \"{}\" already has the injected dependency on \"{}\", updating it.",
+                    appModule.getName(), TRACE_SDK_DEPENDENCY_NAME);
+            return true;
+        }
+        if (hasDependency(dependencyIndex, DependencyIndex.Scope.MODULE, TRACE_SDK_DEPENDENCY_NAME,
+                TRACE_SDK_DEPENDENCY_GROUP_NAME) ||
+                hasResolvedTraceSdkDependency(appModule, resolvedGraphDetector)) {
+            LOGGER.lifecycle(
                     "Skipping injecting the dependency. Please make sure that in your build.gradle files the " +
                             "dependency is defined for all the required configurations! For more information please " +
                             "check the README.md of \"trace-android-sdk\" " +
                             "(https://github.com/bitrise-io/trace-android-sdk/blob/main/README.md)");
-        } else {
-            logger.lifecycle("Adding dependency on  \"{}\" for project \"{}\".", TRACE_SDK_DEPENDENCY_NAME,
-                    appModule.getName());
-            addTraceSdkDependency(appModule);
+            return false;
         }
+        LOGGER.lifecycle("Adding dependency on  \"{}\" for project \"{}\".", TRACE_SDK_DEPENDENCY_NAME,
+                appModule.getName());
+        return true;
     }
 
     /**
-     * Checks if the given {@link Project} has dependency on {@link #TRACE_SDK_DEPENDENCY_NAME} or not. If any
-     * {@link org.gradle.api.artifacts.Configuration} that should have it as a dependency do have it, {@code true} is
-     * returned.
+     * Checks if the resolved dependency graph of the given {@link Project} contains {@link #TRACE_SDK_DEPENDENCY_NAME},
+     * when the {@link SdkDetectionMode} is {@link SdkDetectionMode#RESOLVED}.
      *
-     * @param appModule the given Project.
-     * @return {@code true} if it has, {@code false} otherwise.
+     * @param appModule             the given Project.
+     * @param resolvedGraphDetector the {@link ResolvedGraphDetector} to use.
+     * @return {@code true} if it does, {@code false} if it does not, or if resolving is not enabled.
      */
-    private boolean hasTraceSdkDependency(final Project appModule) {
-        for (final Configuration configuration : appModule.getConfigurations()) {
-            logger.debug("Checking configuration \"{}\" for dependency on \"{}\".", configuration.getName(),
+    private boolean hasResolvedTraceSdkDependency(final Project appModule,
+                                                  final ResolvedGraphDetector resolvedGraphDetector) {
+        if (getSdkDetectionMode().get() != SdkDetectionMode.RESOLVED) {
+            return false;
+        }
+        if (resolvedGraphDetector.hasDependency(appModule, TRACE_SDK_DEPENDENCY_GROUP_NAME,
+                TRACE_SDK_DEPENDENCY_NAME)) {
+            LOGGER.info("Project \"{}\" already has \"{}\" as a transitive dependency.", appModule.getPath(),
                     TRACE_SDK_DEPENDENCY_NAME);
-            final String configurationNameLc = configuration.getName().toLowerCase();
-            if (configurationNameLc.contains("compileclasspath") || configurationNameLc.contains("runtimeclasspath")) {
-                if (hasDependency(configuration, TRACE_SDK_DEPENDENCY_NAME, TRACE_SDK_DEPENDENCY_GROUP_NAME)) {
-                    return true;
-                }
-            }
+            return true;
         }
         return false;
     }
 
     /**
      * Injects the code for adding {@link #TRACE_SDK_DEPENDENCY_NAME} as a dependency to the given Android
-     * application and copies {@link #TRACE_SDK_GRADLE_FILE_NAME} to the project.
+     * module: Groovy build files apply the shared {@link #TRACE_SDK_GRADLE_FILE_NAME}, Kotlin build files get the
+     * dependency directly, see {@link #insertTraceSdkDependency(BuildFileTransaction.BuildFile, String, String)}.
      *
-     * @param appModule the {@link Project} of the Android app.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param buildFile          the {@link BuildFileTransaction.BuildFile} of the build file of the Android module.
+     * @param version            the version of {@link #TRACE_SDK_DEPENDENCY_NAME}, for Kotlin build files. The
+     *                           version for Groovy build files is in the shared {@link #TRACE_SDK_GRADLE_FILE_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, for Kotlin build files, or {@code null}.
      */
-    private void addTraceSdkDependency(final Project appModule) throws IOException {
-        copyGradleFile(appModule.getProjectDir().getPath(), TRACE_SDK_GRADLE_FILE_NAME);
-        appendTraceDependency(appModule.getBuildFile().getPath(), TRACE_SDK_GRADLE_FILE_NAME);
+    static void addTraceSdkDependency(final BuildFileTransaction.BuildFile buildFile, final String version,
+                                      final String localRepositoryUrl) {
+        if (isKotlinBuildFile(buildFile)) {
+            insertTraceSdkDependency(buildFile, version, localRepositoryUrl);
+        } else {
+            appendTraceDependency(buildFile, TRACE_SDK_GRADLE_FILE_NAME);
+        }
+    }
+
+    /**
+     * Injects the dependency on {@link #TRACE_SDK_DEPENDENCY_NAME} into the given Kotlin build file. The dependency is
+     * inserted after the opening brace of the top level dependencies block, or if there is no such block, a new one
+     * is appended. The dependency is added with the String invoke syntax of the configuration, as the type-safe
+     * accessors are not generated when the Android plugin is applied with "apply(plugin = ...)".
+     * <p>
+     * The markers of the inserted dependency are indented like the dependency.
+     * <p>
+     * With a local Maven repository, a repositories block is appended as well, that declares the repository as the
+     * exclusive repository of the Trace groups. It is removed, when the repository is not set anymore, or the
+     * settings do not allow repositories in the projects, see {@link #getProjectRepositoriesAllowed()}.
+     *
+     * @param buildFile          the {@link BuildFileTransaction.BuildFile} of the Kotlin build file.
+     * @param version            the version of {@link #TRACE_SDK_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
+     */
+    static void insertTraceSdkDependency(final BuildFileTransaction.BuildFile buildFile, final String version,
+                                         final String localRepositoryUrl) {
+        removeInjectedRegion(buildFile, TRACE_SDK_GRADLE_FILE_NAME);
+        if (localRepositoryUrl == null) {
+            removeInjectedRegion(buildFile, TRACE_SDK_REPOSITORY_REGION);
+        } else {
+            final String repositories = "\nrepositories {\n" + getExclusiveContent(localRepositoryUrl, "    ") + "\n}";
+            if (!updateInjectedRegion(buildFile, TRACE_SDK_REPOSITORY_REGION, repositories)) {
+                buildFile.append("\n" + InjectedRegion.wrap(TRACE_SDK_REPOSITORY_REGION, repositories));
+            }
+        }
+        final String dependency = String.format("\n    \"implementation\"(\"%s:%s:%s\")",
+                TRACE_SDK_DEPENDENCY_GROUP_NAME, TRACE_SDK_DEPENDENCY_NAME, version);
+        final String dependenciesBlock = "\ndependencies {" + dependency + "\n}";
+        if (updateInjectedRegion(buildFile, TRACE_SDK_DEPENDENCY_REGION, dependency, BLOCK_INDENT)
+                || updateInjectedRegion(buildFile, TRACE_SDK_DEPENDENCIES_REGION, dependenciesBlock)) {
+            return;
+        }
+        final BlockIndex blocks = buildFile.getTokens().getBlocks();
+        final int block = blocks.find("dependencies");
+        if (block >= 0 && blocks.isClosed(block)) {
+            LOGGER.debug("Inserting to the dependencies block of \"{}\": \"{}\"", buildFile.getPath(), dependency);
+            buildFile.insert(blocks.bodyStart(block),
+                    "\n" + InjectedRegion.wrap(TRACE_SDK_DEPENDENCY_REGION, dependency, BLOCK_INDENT));
+        } else {
+            LOGGER.debug("\"{}\" does not have a dependencies block, adding it.", buildFile.getPath());
+            buildFile.append("\n" + InjectedRegion.wrap(TRACE_SDK_DEPENDENCIES_REGION, dependenciesBlock));
+        }
     }
     //endregion
 
     //region Ensure dependency for 'trace-gradle-plugin'
 
     /**
-     * Ensures that the given module has dependency on {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * Ensures that the given module has dependency on {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}: checks if the
+     * dependency has to be injected. It has to be updated, when it has been injected by an earlier run. It does not
+     * have to be injected, when it is declared in the buildscript of the module, when the plugin is already applied
+     * (for example from the plugins block), or when the plugin is already on the buildscript classpath of the module
+     * from a parent classloader, see {@link #isTraceGradlePluginOnClasspath(Project)}. Adding it again would resolve
+     * and load the plugin twice.
      *
-     * @param appModule the {@link Project} of the app.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param appModule         the {@link Project} of the app.
+     * @param dependencyIndex   the {@link DependencyIndex} of the app.
+     * @param injectedRegionIds the ids of the injected regions of the build file of the app.
+     * @return {@code true} if
+     * {@link #addTraceGradlePluginDependency(BuildFileTransaction.BuildFile, String, String)} has to be called for the
+     * module, {@code false} otherwise.
      */
-    private void ensureTraceGradlePluginDependency(final Project appModule) throws IOException {
-        if (hasTraceGradlePluginDependency(appModule)) {
-            logger.lifecycle(
+    private boolean ensureTraceGradlePluginDependency(final Project appModule, final DependencyIndex dependencyIndex,
+                                                      final Set<String> injectedRegionIds) {
+        if (hasInjectedRegion(injectedRegionIds, TRACE_GRADLE_PLUGIN_CLASSPATH_REGIONS)) {
+            LOGGER.lifecycle("Project \"{}\" already has the injected dependency on \"{}\", updating it.",
+                    appModule.getName(), TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME);
+            return true;
+        }
+        if (hasDependency(dependencyIndex, DependencyIndex.Scope.BUILDSCRIPT, TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME,
+                TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME)) {
+            LOGGER.lifecycle(
                     "Skipping injecting the dependency. Please make sure that in your build.gradle files the " +
                             "dependency is defined for all the required configurations! For more information please " +
                             "check the README.md of \"trace-android-sdk\"");
-        } else {
-            logger.lifecycle("Adding dependency on  \"{}\" for project \"{}\".", TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME,
-                    appModule.getName());
-            addTraceGradlePluginDependency(appModule.getBuildFile().getPath());
+            return false;
+        }
+        if (isTraceGradlePluginApplied(appModule)) {
+            LOGGER.lifecycle("Project \"{}\" has already applied \"{}\", skipping injecting the dependency.",
+                    appModule.getName(), TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME);
+            return false;
         }
+        if (isTraceGradlePluginOnClasspath(appModule)) {
+            LOGGER.lifecycle("\"{}\" is already on the buildscript classpath of project \"{}\" (from a parent " +
+                            "project, the settings or buildSrc), skipping injecting the dependency.",
+                    TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME, appModule.getName());
+            return false;
+        }
+        LOGGER.lifecycle("Adding dependency on  \"{}\" for project \"{}\".", TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME,
+                appModule.getName());
+        return true;
     }
 
     /**
-     * Checks if the given {@link Project} has dependency on {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} or not. If any
-     * {@link org.gradle.api.artifacts.Configuration} that should have it as a dependency do not have it, {@code
-     * false} is returned.
+     * Checks if {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} is on the buildscript classpath of the given project.
+     * The buildscript classloader of a project delegates to the classloaders of its parent projects, the settings
+     * (including the plugins of pluginManagement) and buildSrc, so looking up the plugin descriptor through it finds
+     * the plugin no matter which of them provides it. The classloader is already created when the project has been
+     * configured, so nothing is resolved for the check.
      *
-     * @param appModule the given Project.
+     * @param project the {@link Project}.
+     * @return {@code true} if it is, {@code false} otherwise.
+     */
+    private static boolean isTraceGradlePluginOnClasspath(final Project project) {
+        return hasPluginDescriptor(project.getBuildscript().getClassLoader(),
+                TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME);
+    }
+
+    /**
+     * Checks if the given ClassLoader (or any of its parents) has the descriptor of the plugin with the given id, that
+     * is the "META-INF/gradle-plugins/&lt;id&gt;.properties" resource.
+     *
+     * @param classLoader the ClassLoader.
+     * @param pluginId    the id of the plugin.
      * @return {@code true} if it has, {@code false} otherwise.
      */
-    private boolean hasTraceGradlePluginDependency(final Project appModule) {
-        for (final Configuration configuration : appModule.getBuildscript().getConfigurations()) {
-            if (hasDependency(configuration, TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME,
-                    TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME)) {
-                return true;
-            }
-        }
-        return false;
+    static boolean hasPluginDescriptor(final ClassLoader classLoader, final String pluginId) {
+        return classLoader.getResource("META-INF/gradle-plugins/" + pluginId + ".properties") != null;
     }
 
     /**
      * Injects the code for adding {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} as a plugin to the given Android
      * application.
      *
-     * @param buildGradlePath the path of the build.gradle file in the app module.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param buildFile          the {@link BuildFileTransaction.BuildFile} of the build.gradle file in the app module.
+     * @param version            the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
      */
-    private void addTraceGradlePluginDependency(final String buildGradlePath) throws IOException {
-        if (updateBuildScriptContent(buildGradlePath)) {
-            logger.info("Updated buildscript block of \"{}\".", buildGradlePath);
+    static void addTraceGradlePluginDependency(final BuildFileTransaction.BuildFile buildFile, final String version,
+                                               final String localRepositoryUrl) {
+        if (updateInjectedRegion(buildFile, TRACE_GRADLE_PLUGIN_CLASSPATH_REGION,
+                getBuildScriptContentToInsert(version, localRepositoryUrl))
+                || updateInjectedRegion(buildFile, TRACE_GRADLE_PLUGIN_BUILDSCRIPT_REGION,
+                getBuildScriptClosureContent(version, localRepositoryUrl))) {
+            return;
+        }
+        if (updateBuildScriptContent(buildFile, version, localRepositoryUrl)) {
+            LOGGER.info("Updated buildscript block of \"{}\".", buildFile.getPath());
         } else {
-            logger.debug(" \"{}\" does not have a buildscript block, adding it.", buildGradlePath);
-            insertDependencyWithBuildScriptClosure(buildGradlePath);
+            LOGGER.debug(" \"{}\" does not have a buildscript block, adding it.", buildFile.getPath());
+            insertDependencyWithBuildScriptClosure(buildFile, version, localRepositoryUrl);
         }
     }
 
     /**
      * When adding {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} to the given project and it does have a buildscript
      * block in it's build.gradle, this method updates the buildscript closure. Injects the dependency on the
-     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} and adds mavenCentral as repository. If the buildscript closure is not
-     * present does nothing and returns {@code false}.
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} and adds the repositories of
+     * {@link #getBuildScriptRepositoryContent(String)}. If the buildscript closure is not present does nothing and
+     * returns {@code false}. Works on the {@link BlockIndex} of the file, the new content is
+     * inserted after the opening brace of the top level block as an {@link InjectedRegion}, every other character of
+     * the file (including the comments) is kept.
      *
-     * @param path the path of the file.
+     * @param buildFile          the {@link BuildFileTransaction.BuildFile} to plan the changes in.
+     * @param version            the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
      * @return {@code true} if the buildscript block has been updated, {@code false otherwise}.
-     * @throws IOException when any I/O error occurs with the file on the path.
-     */
-    static boolean updateBuildScriptContent(final String path) throws IOException {
-        final String codeContent = getCodeContent(path);
-        final String regex = "buildscript[ \\t\\n\\r]*\\{";
-        final Pattern pattern = Pattern.compile(regex);
-        final Matcher matcher = pattern.matcher(codeContent);
-        final List<Range> literalsPos = findStringLiterals(codeContent);
-        if (matcher.find()) {
-            boolean matcherFindResult = true;
-            while (literalsPos.stream().anyMatch(it -> it.intersect(matcher.start()))) {
-                matcherFindResult = matcher.find();
-            }
-            if (!matcherFindResult) {
-                return false;
-            }
-
-            final String updatedContent = codeContent.substring(0,
-                    matcher.start()) + getUpdatedBuildScriptContent() + codeContent.substring(matcher.end());
-            try (final FileWriter fileWriter = new FileWriter(path, false)) {
-                logger.debug("Updating \"{}\" with new content: \n\"{}\"", path, updatedContent);
-                fileWriter.append(updatedContent);
-            }
-            return true;
+     */
+    static boolean updateBuildScriptContent(final BuildFileTransaction.BuildFile buildFile, final String version,
+                                            final String localRepositoryUrl) {
+        final BlockIndex blocks = buildFile.getTokens().getBlocks();
+        final int buildScriptBlock = blocks.find("buildscript");
+        if (buildScriptBlock < 0) {
+            return false;
         }
-        return false;
+
+        final int insertOffset = blocks.bodyStart(buildScriptBlock);
+        final String buildScriptContent = "\n" + InjectedRegion.wrap(TRACE_GRADLE_PLUGIN_CLASSPATH_REGION,
+                getBuildScriptContentToInsert(version, localRepositoryUrl));
+        LOGGER.debug("Updating \"{}\", inserting to the buildscript block: \n\"{}\"", buildFile.getPath(),
+                buildScriptContent);
+        buildFile.insert(insertOffset, buildScriptContent);
+        return true;
     }
 
     /**
-     * Finds and returns the positions of String literals in a given code content.
+     * When adding {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} to the given project and it does not have a
+     * buildscript block in it's build.gradle, this method updates the given build.gradle file, inserts the dependency
+     * for {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} with a new buildscript closure.
      *
-     * @param codeContent the code content to examine.
-     * @return a List of {@link Range}s.
+     * @param buildFile          the {@link BuildFileTransaction.BuildFile} of the build.gradle.
+     * @param version            the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
      */
-    static List<Range> findStringLiterals(final String codeContent) {
-        final List<Range> literalPos = new ArrayList<>();
-        final String regex = "(['\"])(?:(?!(?:\\\\|\\1)).|\\\\.)*\\1";
-        final Pattern pattern = Pattern.compile(regex);
-        final Matcher matcher = pattern.matcher(codeContent);
-
-        while (matcher.find()) {
-            literalPos.add(new Range(matcher.start(), matcher.end()));
-        }
-        return literalPos;
+    private static void insertDependencyWithBuildScriptClosure(final BuildFileTransaction.BuildFile buildFile,
+                                                               final String version,
+                                                               final String localRepositoryUrl) {
+        appendContentToTop(buildFile, InjectedRegion.wrap(TRACE_GRADLE_PLUGIN_BUILDSCRIPT_REGION,
+                getBuildScriptClosureContent(version, localRepositoryUrl)) + "\n");
     }
 
     /**
-     * When adding {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} to the given project and it does not have a
-     * buildscript block in it's build.gradle, this method updates the given build.gradle file, inserts the dependency
-     * for {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} with a new buildscript closure.
+     * Gets the content of a new buildscript closure with the dependency on
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
      *
-     * @param buildGradlePath the path of the build.gradle.
-     * @throws IOException when any I/O error occurs with the file on the buildGradlePath.
+     * @param version            the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
+     * @return the content that should be in the build.gradle.
      */
-    private void insertDependencyWithBuildScriptClosure(final String buildGradlePath) throws IOException {
+    private static String getBuildScriptClosureContent(final String version, final String localRepositoryUrl) {
         final String buildscriptClosure = "\nbuildscript {\n" +
                 "%s\n" +
                 "%s\n" +
-                "}\n";
-        appendContentToTop(buildGradlePath, String.format(buildscriptClosure,
-                getTraceGradlePluginDependency(), getBuildScriptRepositoryContent()));
+                "}";
+        return String.format(buildscriptClosure, getTraceGradlePluginDependency(version),
+                getBuildScriptRepositoryContent(localRepositoryUrl));
     }
 
 
     /**
      * Gets the content for updating the buildscript with a new dependency on
-     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}. It is inserted right after the opening brace of the block.
      *
-     * @return @return the content that should be in the build.gradle.
+     * @param version            the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
+     * @return the content that should be in the build.gradle.
      */
-    private static String getUpdatedBuildScriptContent() {
-        return String.format("buildscript {" +
-                        "%s" +
-                        "%s"
-                , getTraceGradlePluginDependency(), getBuildScriptRepositoryContent());
+    private static String getBuildScriptContentToInsert(final String version, final String localRepositoryUrl) {
+        return getTraceGradlePluginDependency(version) + getBuildScriptRepositoryContent(localRepositoryUrl);
     }
 
     /**
      * Gets the content for adding a buildscript dependency on {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
      *
+     * @param version the version of {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}.
      * @return the content that should be in the build.gradle.
      */
-    static String getTraceGradlePluginDependency() {
+    static String getTraceGradlePluginDependency(final String version) {
         return String.format(
                 "\n   dependencies.add(\"classpath\", \"io.bitrise.trace.plugin:trace-gradle-plugin:%s\")\n",
-                TRACE_GRADLE_PLUGIN_VERSION);
+                version);
     }
 
     /**
-     * Gets the content for adding repositories to the buildscript.
+     * Gets the content for adding repositories to the buildscript. The Trace groups are declared as exclusive content
+     * of Maven Central, so Gradle looks them up only there, and never in the other repositories of the buildscript.
+     * Google's Maven repository and Maven Central are also added for the transitive dependencies of
+     * {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME}. The google repository is filtered to the groups it hosts, and these
+     * groups are filtered out from Maven Central, so resolving for example the Android Gradle plugin queries only
+     * Google's Maven repository, and every other group queries only Maven Central. The filters need Gradle 6.2 or
+     * newer, and work in both Groovy and Kotlin build files. With a local Maven repository, the Trace groups are its
+     * exclusive content instead of Maven Central's.
      *
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
      * @return the content that should be in the build.gradle.
      */
-    static String getBuildScriptRepositoryContent() {
-        return "   repositories {\n" +
-                "      mavenCentral()\n" +
-                "      google()\n" +
-                "    }";
+    static String getBuildScriptRepositoryContent(final String localRepositoryUrl) {
+        final StringBuilder content = new StringBuilder("   repositories {\n")
+                .append(getExclusiveContent(localRepositoryUrl, "      "))
+                .append("\n");
+        appendGoogleMavenGroupFilter(content, "google", "includeGroupByRegex");
+        appendGoogleMavenGroupFilter(content, "mavenCentral", "excludeGroupByRegex");
+        return content.append("    }").toString();
+    }
+
+    /**
+     * Appends the declaration of the given repository to the given content, with a content filter on the groups of
+     * {@link #GOOGLE_MAVEN_GROUP_REGEXES}.
+     *
+     * @param content    the StringBuilder to append the declaration to.
+     * @param repository the name of the repository, e.g. "google".
+     * @param filter     the name of the filter method, e.g. "includeGroupByRegex".
+     */
+    private static void appendGoogleMavenGroupFilter(final StringBuilder content, final String repository,
+                                                     final String filter) {
+        content.append("      ").append(repository).append(" {\n")
+                .append("         content {\n");
+        for (final String groupRegex : GOOGLE_MAVEN_GROUP_REGEXES) {
+            content.append(String.format("            %s(\"%s\")\n", filter, groupRegex.replace("\\", "\\\\")));
+        }
+        content.append("         }\n")
+                .append("      }\n");
+    }
+
+    /**
+     * Gets the declaration of the exclusive repository of the Trace groups: the local Maven repository if it is set,
+     * Maven Central otherwise. A relative URL of the local repository is resolved against the directory of the root
+     * project, see {@link #getLocalRepositoryUrl(String, File)}.
+     *
+     * @param localRepositoryUrl the URL of the local Maven repository, or {@code null}.
+     * @param indent             the indentation of the declaration.
+     * @return the declaration, without a line break at the end.
+     */
+    static String getExclusiveContent(final String localRepositoryUrl, final String indent) {
+        final String repository;
+        if (localRepositoryUrl == null) {
+            repository = "mavenCentral()";
+        } else if (URI.create(localRepositoryUrl).isAbsolute()) {
+            repository = String.format("maven { url = uri(\"%s\") }", localRepositoryUrl);
+        } else {
+            repository = String.format("maven { url = uri(rootProject.file(\"%s\")) }",
+                    URI.create(localRepositoryUrl).getPath());
+        }
+        final StringBuilder content = new StringBuilder(indent).append("exclusiveContent {\n")
+                .append(indent).append("   forRepository { ").append(repository).append(" }\n")
+                .append(indent).append("   filter {\n");
+        for (final String group : TRACE_GROUPS) {
+            content.append(indent).append(String.format("      includeGroup(\"%s\")\n", group));
+        }
+        return content.append(indent).append("   }\n")
+                .append(indent).append("}").toString();
     }
 
     //endregion
@@ -354,22 +1305,30 @@ public class InjectTraceTask extends DefaultTask {
     //region Ensure to apply 'trace-gradle-plugin'
 
     /**
-     * Ensures that the given module has applied {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} as a plugin.
+     * Ensures that the given module has applied {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} as a plugin: checks if
+     * the plugin apply has to be injected, or updated when it has been injected by an earlier run.
      *
-     * @param appModule the {@link Project} of the app.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param appModule         the {@link Project} of the app.
+     * @param injectedRegionIds the ids of the injected regions of the build file of the app.
+     * @return {@code true} if {@link #injectTraceGradlePluginApply(BuildFileTransaction.BuildFile)} has to be called
+     * for the module, {@code false} otherwise.
      */
-    private void ensureTraceGradlePluginIsApplied(final Project appModule) throws IOException {
+    private boolean ensureTraceGradlePluginIsApplied(final Project appModule, final Set<String> injectedRegionIds) {
+        if (hasInjectedRegion(injectedRegionIds, TRACE_GRADLE_PLUGIN_APPLY_REGIONS)) {
+            LOGGER.lifecycle("Project \"{}\" already has the injected apply of \"{}\", updating it.",
+                    appModule.getName(), TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME);
+            return true;
+        }
         if (isTraceGradlePluginApplied(appModule)) {
-            logger.lifecycle(
+            LOGGER.lifecycle(
                     "Project \"{}\" has already applied \"{}\" as a plugin, skipping injecting the plugin apply. " +
                             "For more information please check the README.md of \"trace-android-sdk\"",
                     appModule.getName(), TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME);
-        } else {
-            injectTraceGradlePluginApply(appModule);
-            logger.lifecycle("Applied plugin \"{}\" on project \"{}\"", TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME,
-                    appModule.getName());
+            return false;
         }
+        LOGGER.lifecycle("Applying plugin \"{}\" on project \"{}\"", TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME,
+                appModule.getName());
+        return true;
     }
 
     /**
@@ -384,308 +1343,336 @@ public class InjectTraceTask extends DefaultTask {
     }
 
     /**
-     * Injects the code for adding {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} as a dependency to the given Android
-     * application.
+     * Injects the code for applying {@link #TRACE_GRADLE_PLUGIN_DEPENDENCY_NAME} as a plugin to the given Android
+     * application: Groovy build files apply the shared {@link #TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME}, Kotlin build
+     * files apply the plugin by id.
+     * <p>
+     * Note: the plugin is applied with "apply(plugin = ...)" and not in the plugins block, as it is on the buildscript
+     * classpath (see {@link #addTraceGradlePluginDependency(BuildFileTransaction.BuildFile, String, String)}), and a
+     * request in the plugins block would have to be resolved from the plugin portal or the pluginManagement
+     * repositories.
      *
-     * @param appModule the {@link Project} of the Android app.
-     * @throws IOException when any I/O error occurs with the files on the path.
+     * @param buildFile the {@link BuildFileTransaction.BuildFile} of the build file of the Android app.
      */
-    private void injectTraceGradlePluginApply(final Project appModule) throws IOException {
-        copyGradleFile(appModule.getProjectDir().getPath(), TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME);
-        appendTraceDependency(appModule.getBuildFile().getPath(), TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME);
+    static void injectTraceGradlePluginApply(final BuildFileTransaction.BuildFile buildFile) {
+        if (!isKotlinBuildFile(buildFile)) {
+            appendTraceDependency(buildFile, TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME);
+            return;
+        }
+        removeInjectedRegion(buildFile, TRACE_GRADLE_PLUGIN_GRADLE_FILE_NAME);
+        final String content = String.format("\napply(plugin = \"%s\")", TRACE_GRADLE_PLUGIN_DEPENDENCY_GROUP_NAME);
+        if (!updateInjectedRegion(buildFile, TRACE_GRADLE_PLUGIN_APPLY_REGION, content)) {
+            LOGGER.debug("Appending to \"{}\" content:\n\"{}\"", buildFile.getPath(), content);
+            buildFile.append("\n" + InjectedRegion.wrap(TRACE_GRADLE_PLUGIN_APPLY_REGION, content));
+        }
     }
     //endregion
 
     //region Common helper
 
     /**
-     * Gets an environment variable. Throws IllegalStateException if the environment variable is not present.
+     * Gets the source directory of the step. Throws IllegalStateException if it is not set, which happens when the
+     * {@link #BITRISE_STEP_SRC_ENV} environment variable is not present.
      *
-     * @param envName the name of the environment variable.
-     * @return the value of the environment variable.
+     * @return the path of the directory.
      */
-    private static String getEnv(final String envName) {
-        final String env = System.getenv(envName);
-        if (env == null) {
+    private String getRequiredStepSourceDir() {
+        final String stepSourceDir = getStepSourceDir().getOrNull();
+        if (stepSourceDir == null) {
             throw new IllegalStateException(
                     String.format("%s is not set as env variable, aborting build. Please set it " +
-                            "as env variable before running this step", envName));
+                            "as env variable before running this step", BITRISE_STEP_SRC_ENV));
         }
-        logger.debug("Environment variable \"{}\" is present with value \"{}\".", envName, env);
-        return env;
+        LOGGER.debug("Step source directory is \"{}\".", stepSourceDir);
+        return stepSourceDir;
     }
 
     /**
-     * Copies the given Gradle file from the Bitrise step source directory to the given Android application.
+     * Plans copying the given Gradle file from the Bitrise step source directory to the given directory. The
+     * directory is created if it does not exist.
      *
-     * @param appModuleDir the path of the {@link Project} of the Android application.
+     * @param stepSourceDir  the source directory of the step.
+     * @param destinationDir the directory to copy to.
+     * @param buildFileName  the name of the Gradle file to copy.
+     * @param transaction    the {@link BuildFileTransaction} to plan the copy in.
      * @throws IOException when any I/O error occurs with the files on the path.
      */
-    private static void copyGradleFile(final String appModuleDir, final String buildFileName) throws IOException {
-        final Path traceSdkGradleFilePath = Paths.get(getEnv(BITRISE_STEP_SRC_ENV) + "/" + buildFileName);
-        final Path destinationPath = Paths.get(appModuleDir + "/" + buildFileName);
-        Files.copy(traceSdkGradleFilePath, destinationPath);
-        logger.debug("Copied \"{}\" to \"{}\".", traceSdkGradleFilePath, destinationPath);
+    static void copyGradleFile(final Path stepSourceDir, final Path destinationDir, final String buildFileName,
+                               final BuildFileTransaction transaction) throws IOException {
+        final Path sourcePath = stepSourceDir.resolve(buildFileName);
+        Files.createDirectories(destinationDir);
+        final Path destinationPath = destinationDir.resolve(buildFileName);
+        if (transaction.copy(sourcePath, destinationPath)) {
+            LOGGER.debug("Copying \"{}\" to \"{}\".", sourcePath, destinationPath);
+        } else {
+            LOGGER.debug("\"{}\" is already up to date.", destinationPath);
+        }
     }
 
     /**
-     * Appends the given Gradle build file the apply of the given Gradle build file.
+     * Plans copying {@link #TRACE_SDK_GRADLE_FILE_NAME} from the Bitrise step source directory to the given directory,
+     * with the given version of {@link #TRACE_SDK_DEPENDENCY_NAME} and local Maven repository. The file is copied as
+     * it is for {@link #DYNAMIC_VERSION} without a local repository, otherwise it is written with the version
+     * replaced, see {@link #setTraceSdkVersion(String, String)}, and the repository added, see
+     * {@link #addTraceSdkRepository(String, String)}. When the projects cannot declare repositories, the repositories
+     * block of the file is removed, see {@link #removeTraceSdkRepositories(String)}.
      *
-     * @param appBuildGradlePath the path of the Gradle build file, which should be extended.
-     * @param buildFileName      the given Gradle build file path to apply.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param stepSourceDir       the source directory of the step.
+     * @param destinationDir      the directory to copy to.
+     * @param version             the version of {@link #TRACE_SDK_DEPENDENCY_NAME}.
+     * @param localRepositoryUrl  the URL of the local Maven repository, or {@code null}.
+     * @param repositoriesAllowed whether the projects can declare repositories, see
+     *                            {@link #getProjectRepositoriesAllowed()}.
+     * @param transaction         the {@link BuildFileTransaction} to plan the copy in.
+     * @throws IOException when any I/O error occurs with the files on the path.
      */
-    private static void appendTraceDependency(final String appBuildGradlePath, final String buildFileName)
-            throws IOException {
-        appendContent(appBuildGradlePath, getContentToAppend(appBuildGradlePath, buildFileName));
+    static void copyTraceSdkGradleFile(final Path stepSourceDir, final Path destinationDir, final String version,
+                                       final String localRepositoryUrl, final boolean repositoriesAllowed,
+                                       final BuildFileTransaction transaction) throws IOException {
+        if (DYNAMIC_VERSION.equals(version) && localRepositoryUrl == null && repositoriesAllowed) {
+            copyGradleFile(stepSourceDir, destinationDir, TRACE_SDK_GRADLE_FILE_NAME, transaction);
+            return;
+        }
+        String content = BuildFileIO.read(stepSourceDir.resolve(TRACE_SDK_GRADLE_FILE_NAME)).toString();
+        content = setTraceSdkVersion(content, version);
+        if (!repositoriesAllowed) {
+            content = removeTraceSdkRepositories(content);
+        } else if (localRepositoryUrl != null) {
+            content = addTraceSdkRepository(content, localRepositoryUrl);
+        }
+        Files.createDirectories(destinationDir);
+        final Path destinationPath = destinationDir.resolve(TRACE_SDK_GRADLE_FILE_NAME);
+        if (transaction.write(destinationPath, content)) {
+            LOGGER.debug("Writing \"{}\" with version \"{}\".", destinationPath, version);
+        } else {
+            LOGGER.debug("\"{}\" is already up to date.", destinationPath);
+        }
     }
 
     /**
-     * Appends the given content to a given file.
+     * Replaces the version of the dependencies on {@link #TRACE_SDK_DEPENDENCY_NAME} in the given content of
+     * {@link #TRACE_SDK_GRADLE_FILE_NAME}.
      *
-     * @param path    the path of the file.
-     * @param content the content to append.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param content the content of the file.
+     * @param version the version.
+     * @return the content with the version replaced.
      */
-    private static void appendContent(final String path, final String content) throws IOException {
-        logger.debug("Appending to \"{}\" content:\n\"{}\"", path, content);
-        Files.write(Paths.get(path), content.getBytes(), StandardOpenOption.APPEND);
+    static String setTraceSdkVersion(final String content, final String version) {
+        final Matcher matcher = TRACE_SDK_DEPENDENCY_PATTERN.matcher(content);
+        if (!matcher.find()) {
+            LOGGER.warn("\"{}\" does not have a dependency on \"{}\", the version \"{}\" is not set.",
+                    TRACE_SDK_GRADLE_FILE_NAME, TRACE_SDK_DEPENDENCY_NAME, version);
+            return content;
+        }
+        return matcher.replaceAll("$1" + Matcher.quoteReplacement(version));
     }
 
     /**
-     * Appends the given content to the top of the given file.
+     * Adds the local Maven repository as the exclusive repository of the Trace groups to the given content of
+     * {@link #TRACE_SDK_GRADLE_FILE_NAME}: it is inserted after the opening brace of the top level repositories block,
+     * or if there is no such block, a new one is appended. The other repositories are kept for the transitive
+     * dependencies of {@link #TRACE_SDK_DEPENDENCY_NAME}.
      *
-     * @param path    the path of the file.
-     * @param content the content to append.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param content            the content of the file.
+     * @param localRepositoryUrl the URL of the local Maven repository.
+     * @return the content with the repository added.
      */
-    static void appendContentToTop(final String path, final String content) throws IOException {
-        logger.debug("Adding to the top of \"{}\" content:\n\"{}\"", path, content);
-        final List<String> originalContent = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
-        Files.write(Paths.get(path), content.getBytes(), StandardOpenOption.TRUNCATE_EXISTING);
-        Files.write(Paths.get(path), originalContent, StandardOpenOption.APPEND);
+    static String addTraceSdkRepository(final String content, final String localRepositoryUrl) {
+        final BlockIndex blocks = BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY).getBlocks();
+        final int block = blocks.find("repositories");
+        final String exclusiveContent = getExclusiveContent(localRepositoryUrl, "    ");
+        if (block >= 0 && blocks.isClosed(block)) {
+            final int insertOffset = blocks.bodyStart(block);
+            return content.substring(0, insertOffset) + "\n" + exclusiveContent + content.substring(insertOffset);
+        }
+        return content + "\n\nrepositories {\n" + exclusiveContent + "\n}\n";
     }
 
     /**
-     * Gets the content to append for the given Gradle build file based on the extension (language) of the file. The
-     * content is to apply the given Gradle build file, the name of this file is an argument.
+     * Removes the top level repositories block from the given content of {@link #TRACE_SDK_GRADLE_FILE_NAME},
+     * together with the whitespace after it, as the settings do not allow the projects to declare repositories, see
+     * {@link #getProjectRepositoriesAllowed()}.
      *
-     * @param appBuildGradlePath the path of the Gradle build file, which should be extended.
-     * @param buildFileName      the given Gradle build file path to apply.
-     * @return the content to append to the Gradle build file.
+     * @param content the content of the file.
+     * @return the content without the repositories block.
      */
-    static String getContentToAppend(final String appBuildGradlePath, final String buildFileName) {
-        if (appBuildGradlePath.endsWith(".kts")) {
-            logger.debug("\"{}\" is a Kotlin file.", appBuildGradlePath);
-            return String.format("\napply(\"%s\")", buildFileName);
-        } else if (appBuildGradlePath.endsWith(".gradle")) {
-            logger.debug("\"{}\" is a Groovy file.", appBuildGradlePath);
-            return String.format("\napply from: \"%s\"", buildFileName);
-        } else {
-            throw new IllegalStateException(String.format("Could not determine language for %s",
-                    appBuildGradlePath));
+    static String removeTraceSdkRepositories(final String content) {
+        final BlockIndex blocks = BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY).getBlocks();
+        final int block = blocks.find("repositories");
+        if (block < 0 || !blocks.isClosed(block)) {
+            return content;
         }
+        int end = blocks.end(block);
+        while (end < content.length() && Character.isWhitespace(content.charAt(end))) {
+            end++;
+        }
+        return content.substring(0, blocks.start(block)) + content.substring(end);
     }
 
     /**
-     * Checks if the given {@link Configuration} has dependency on the given dependency or not.
+     * Updates the body of the {@link InjectedRegion} with the given id in the given build file, if the file has such a
+     * region.
      *
-     * @param configuration       the given Configuration.
-     * @param dependencyName      the name of the dependency to check for.
-     * @param dependencyGroupName the group of the dependency to check for.
-     * @return {@code true} if it has, {@code false} otherwise.
+     * @param buildFile the {@link BuildFileTransaction.BuildFile} to plan the changes in.
+     * @param id        the id of the region.
+     * @param content   the content the region should have.
+     * @return {@code true} if the file has the region (updated or already up to date), {@code false} otherwise.
      */
-    static boolean hasDependency(final Configuration configuration, final String dependencyName,
-                                 final String dependencyGroupName) {
-        for (final Dependency dependency : configuration.getAllDependencies()) {
-            if (dependency.getName().equals(dependencyName) &&
-                    dependency.getGroup() != null &&
-                    dependency.getGroup().equals(dependencyGroupName)) {
-                logger.info("Configuration \"{}\" already contains \"{}\" as dependency with version {}.",
-                        configuration.getName(), dependencyName, dependency.getVersion());
-                return true;
-            }
-        }
-        logger.info("Configuration \"{}\" does not have a dependency on \"{}:{}\".", configuration.getName(),
-                dependencyGroupName, dependencyName);
-        return false;
+    static boolean updateInjectedRegion(final BuildFileTransaction.BuildFile buildFile, final String id,
+                                        final String content) {
+        return updateInjectedRegion(buildFile, id, content, "");
     }
 
     /**
-     * Removes all the commented code from a file and returns it as a String.
+     * Updates the body of the {@link InjectedRegion} with the given id and indentation in the given build file, if the
+     * file has such a region, see {@link InjectedRegion#wrap(String, String, String)}.
      *
-     * @param path the path of the file to get the code from.
-     * @return the String value of the code.
-     * @throws IOException when any I/O error occurs with the file on the path.
+     * @param buildFile the {@link BuildFileTransaction.BuildFile} to plan the changes in.
+     * @param id        the id of the region.
+     * @param content   the content the region should have.
+     * @param indent    the indentation of the markers of the region.
+     * @return {@code true} if the file has the region (updated or already up to date), {@code false} otherwise.
      */
-    private static String getCodeContent(final String path) throws IOException {
-        final List<String> lines = Files.readAllLines(new File(path).toPath());
-        return removeCommentedCode(lines);
+    static boolean updateInjectedRegion(final BuildFileTransaction.BuildFile buildFile, final String id,
+                                        final String content, final String indent) {
+        final InjectedRegion region = InjectedRegion.find(buildFile.getTokens(), id);
+        if (region == null) {
+            return false;
+        }
+        if (region.update(buildFile, content, indent)) {
+            LOGGER.info("Updated the injected \"{}\" region of \"{}\".", id, buildFile.getPath());
+        } else {
+            LOGGER.debug("The injected \"{}\" region of \"{}\" is up to date.", id, buildFile.getPath());
+        }
+        return true;
     }
 
     /**
-     * Removes all the commented code from a List of Strings.
+     * Removes the {@link InjectedRegion} with the given id, including its markers and the line break before it, from
+     * the given build file, if the file has such a region. Used to replace the apply of a Gradle file, that was
+     * injected into a Kotlin build file by an earlier version of the step.
      *
-     * @param lines the List of lines
-     * @return the String value of the code.
+     * @param buildFile the {@link BuildFileTransaction.BuildFile} to plan the changes in.
+     * @param id        the id of the region.
      */
-    static String removeCommentedCode(final List<String> lines) {
-        final String currentLineComment = "//";
-        final String greedyCommentStart = "/*";
-        final String greedyCommentEnd = "*/";
-        final Pattern pattern = getGreedyCommentBlockPattern();
-
-        final StringBuilder stringBuilder = new StringBuilder();
-        boolean isGreedyCommented = false;
-        for (final String line : lines) {
-            logger.debug("Removing comments from line \"{}\"", line);
-            String reducedLine = removeGreedyCommentBlocksFromLine(line, pattern);
-            logger.debug("Removed complete greedy comments: \"{}\"", reducedLine);
-            final int gceIndex = getIndexOfFromCode(reducedLine, greedyCommentEnd);
-            if (gceIndex >= 0) {
-                reducedLine = reducedLine.substring(reducedLine.indexOf(greedyCommentEnd) + greedyCommentEnd.length());
-                isGreedyCommented = false;
-                logger.debug("Removed greedy comment ends: \"{}\"", reducedLine);
-            } else {
-                if (isGreedyCommented) {
-                    logger.debug("Skipping full line as it is greedy commented.");
-                    continue;
-                }
-            }
-
-            final int clcIndex = getIndexOfFromCode(reducedLine, currentLineComment);
-            final int gcsIndex = getIndexOfFromCode(reducedLine, greedyCommentStart);
-            final int csIndex = getSmallestNonNegativeNumber(clcIndex, gcsIndex);
-            if (csIndex >= 0) {
-                if (csIndex == gcsIndex) {
-                    isGreedyCommented = true;
-                }
-                reducedLine = reducedLine.substring(0, csIndex);
-                logger.debug("Removed greedy comment starts and line comments: \"{}\"", reducedLine);
-            }
-
-            stringBuilder.append(reducedLine).append("\n");
+    static void removeInjectedRegion(final BuildFileTransaction.BuildFile buildFile, final String id) {
+        final InjectedRegion region = InjectedRegion.find(buildFile.getTokens(), id);
+        if (region == null) {
+            return;
         }
-        return stringBuilder.toString();
+        final int start = region.getStart() > 0 && buildFile.getContent().charAt(region.getStart() - 1) == '\n'
+                ? region.getStart() - 1 : region.getStart();
+        LOGGER.info("Removing the injected \"{}\" region of \"{}\".", id, buildFile.getPath());
+        buildFile.delete(start, region.getEnd());
     }
 
     /**
-     * Gets the index of a given substring from a given code line. Ignores String and char contents.
+     * Checks if the given build file is a Kotlin build file.
      *
-     * @param text      the String that will be checked.
-     * @param searchFor the substring to look for.
-     * @return the index of the start of the substring if there is a match, {@code -1} otherwise (similarly to
-     * {@link String#indexOf(int)}).
+     * @param buildFile the {@link BuildFileTransaction.BuildFile}.
+     * @return {@code true} if it is, {@code false} otherwise.
      */
-    static int getIndexOfFromCode(final String text, final String searchFor) {
-        final char[] searchForChars = searchFor.toCharArray();
-        boolean skipNext = false;
-        for (int i = 0; i < text.length(); i++) {
-            final char currentChar = text.charAt(i);
-            if (currentChar == '"' || currentChar == '\'') {
-                skipNext = !skipNext;
-                continue;
-            }
-
-            if (skipNext) {
-                continue;
-            }
-
-            boolean match = false;
-            for (int j = 0; j < searchForChars.length; j++) {
-                if (i + j >= text.length()) {
-                    break;
-                }
-                if (text.charAt(i + j) == searchForChars[j]) {
-                    match = true;
-                    continue;
-                }
-                match = false;
-                break;
-            }
-
-            if (match) {
-                return i;
-            }
-        }
-        return -1;
+    private static boolean isKotlinBuildFile(final BuildFileTransaction.BuildFile buildFile) {
+        return BuildScriptLexer.Dialect.of(buildFile.getPath().toString()) == BuildScriptLexer.Dialect.KOTLIN;
     }
 
     /**
-     * Removes complete greedy comment blocks from a line.
+     * Appends the given Gradle build file the apply of the given Gradle build file, wrapped in an
+     * {@link InjectedRegion}. If the build file already has the region, it is updated in place instead. An apply
+     * without the markers (for example from an earlier version of the step) is kept as it is, and no new one is added.
+     * The apply is looked up as a statement of its own in the tokens, so an apply that is only mentioned in a string
+     * literal or a comment, or is a part of a longer expression, does not count.
      *
-     * @param line    the given line.
-     * @param pattern the Pattern to use for removing.
-     * @return the line without greedy comment blocks.
+     * @param buildFile     the {@link BuildFileTransaction.BuildFile} of the Gradle build file, which should be
+     *                      extended.
+     * @param buildFileName the given Gradle build file path to apply.
      */
-    static String removeGreedyCommentBlocksFromLine(final String line, final Pattern pattern) {
-        final Matcher matcher = pattern.matcher(line);
-        if (matcher.find()) {
-            return matcher.replaceAll("");
+    private static void appendTraceDependency(final BuildFileTransaction.BuildFile buildFile,
+                                              final String buildFileName) {
+        final String content = getContentToAppend(buildFile.getPath().toString(), buildFileName);
+        if (updateInjectedRegion(buildFile, buildFileName, content)) {
+            return;
+        }
+        final BuildScriptTokens tokens = buildFile.getTokens();
+        final BuildScriptLexer.Dialect dialect = BuildScriptLexer.Dialect.of(buildFile.getPath().toString());
+        if (tokens.containsStatement(BuildScriptLexer.tokenize(content, dialect))
+                || tokens.containsStatement(BuildScriptLexer.tokenize(
+                getLegacyContentToAppend(buildFile.getPath().toString(), buildFileName), dialect))) {
+            LOGGER.info("\"{}\" already applies \"{}\".", buildFile.getPath(), buildFileName);
+            return;
         }
-        return line;
+        final String region = "\n" + InjectedRegion.wrap(buildFileName, content);
+        LOGGER.debug("Appending to \"{}\" content:\n\"{}\"", buildFile.getPath(), region);
+        buildFile.append(region);
     }
 
     /**
-     * Gets the Pattern for getting greedy comment blocks.
+     * Appends the given content to the top of the given file.
      *
-     * @return the compiled pattern.
+     * @param buildFile the {@link BuildFileTransaction.BuildFile} of the file.
+     * @param content   the content to append.
      */
-    static Pattern getGreedyCommentBlockPattern() {
-        final String regex = "/\\*.*?\\*/";
-        return Pattern.compile(regex);
+    static void appendContentToTop(final BuildFileTransaction.BuildFile buildFile, final String content) {
+        LOGGER.debug("Adding to the top of \"{}\" content:\n\"{}\"", buildFile.getPath(), content);
+        buildFile.prepend(content);
     }
 
     /**
-     * Gets the smallest non-negative number from the given numbers.
+     * Gets the content to append for the given Gradle build file based on the extension (language) of the file. The
+     * content is to apply the given Gradle build file from {@link #SHARED_SCRIPT_DIR} of the root project, the name of
+     * this file is an argument.
      *
-     * @param numbers the numbers.
-     * @return the smallest non-negative number, or -1 if there is no positive.
+     * @param appBuildGradlePath the path of the Gradle build file, which should be extended.
+     * @param buildFileName      the given Gradle build file path to apply.
+     * @return the content to append to the Gradle build file.
      */
-    static int getSmallestNonNegativeNumber(final int... numbers) {
-        return Arrays.stream(numbers).filter(i -> i >= 0).min().orElse(-1);
+    static String getContentToAppend(final String appBuildGradlePath, final String buildFileName) {
+        final String sharedScriptPath = SHARED_SCRIPT_DIR + "/" + buildFileName;
+        if (appBuildGradlePath.endsWith(".kts")) {
+            LOGGER.debug("\"{}\" is a Kotlin file.", appBuildGradlePath);
+            return String.format("\napply(from = rootProject.file(\"%s\"))", sharedScriptPath);
+        } else if (appBuildGradlePath.endsWith(".gradle")) {
+            LOGGER.debug("\"{}\" is a Groovy file.", appBuildGradlePath);
+            return String.format("\napply from: rootProject.file(\"%s\")", sharedScriptPath);
+        } else {
+            throw new IllegalStateException(String.format("Could not determine language for %s",
+                    appBuildGradlePath));
+        }
     }
-    //endregion
 
     /**
-     * Inner data class for a range value (which has a start and an end).
+     * Gets the apply of the given Gradle build file, as earlier versions of the step injected it: applying a copy next
+     * to the build file, without markers.
+     *
+     * @param appBuildGradlePath the path of the Gradle build file.
+     * @param buildFileName      the name of the applied Gradle build file.
+     * @return the apply, without a leading line break.
      */
-    static class Range {
-        private final int start;
-        private final int end;
-
-        public Range(final int start, final int end) {
-            this.start = start;
-            this.end = end;
-        }
-
-        public boolean intersect(final int value) {
-            return value <= end && value >= start;
-        }
-
-        @Override
-        public boolean equals(final Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (!(o instanceof Range)) {
-                return false;
-            }
-            final Range range = (Range) o;
-            return start == range.start && end == range.end;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(start, end);
-        }
+    private static String getLegacyContentToAppend(final String appBuildGradlePath, final String buildFileName) {
+        return String.format(appBuildGradlePath.endsWith(".kts") ? "apply(\"%s\")" : "apply from: \"%s\"",
+                buildFileName);
+    }
 
-        @Override
-        public String toString() {
-            return "Range{" +
-                    "start=" + start +
-                    ", end=" + end +
-                    '}';
+    /**
+     * Checks if the given {@link DependencyIndex} has the given dependency in the given scope or not.
+     *
+     * @param dependencyIndex     the given DependencyIndex.
+     * @param scope               the {@link DependencyIndex.Scope} of the configurations to check.
+     * @param dependencyName      the name of the dependency to check for.
+     * @param dependencyGroupName the group of the dependency to check for.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    static boolean hasDependency(final DependencyIndex dependencyIndex, final DependencyIndex.Scope scope,
+                                 final String dependencyName, final String dependencyGroupName) {
+        if (dependencyIndex.contains(scope, dependencyGroupName, dependencyName)) {
+            LOGGER.info("Configurations {} already contain \"{}\" as dependency with version {}.",
+                    dependencyIndex.getConfigurationNames(scope, dependencyGroupName, dependencyName),
+                    dependencyName, dependencyIndex.getVersion(scope, dependencyGroupName, dependencyName));
+            return true;
         }
+        LOGGER.info("No {} configuration has a dependency on \"{}:{}\".", scope.name().toLowerCase(Locale.ROOT),
+                dependencyGroupName, dependencyName);
+        return false;
     }
+    //endregion
 }
@@ -0,0 +1,216 @@
+package io.bitrise.trace.step;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A region of a build file, that has been injected by the step. Every injected content is wrapped in a begin and an
+ * end marker line comment with the id of the injection, for example:
+ * <pre>
+ * // Bitrise Trace begin: traceSdk.gradle
+ * apply from: "traceSdk.gradle"
+ * // Bitrise Trace end: traceSdk.gradle
+ * </pre>
+ * The markers are line comments, so they are valid in both Groovy and Kotlin build files. As the comments are already
+ * tokenized by {@link BuildScriptLexer}, finding a region does not need another pass over the text. When a region is
+ * found, its body is updated in place instead of injecting the content again, so running the step again on the same
+ * workspace does not add duplicate lines.
+ */
+class InjectedRegion {
+
+    /**
+     * The prefix of the begin markers.
+     */
+    private static final String BEGIN_MARKER_PREFIX = "// Bitrise Trace begin: ";
+
+    /**
+     * The prefix of the end markers.
+     */
+    private static final String END_MARKER_PREFIX = "// Bitrise Trace end: ";
+
+    private final int start;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private final int end;
+
+    private InjectedRegion(final int start, final int bodyStart, final int bodyEnd, final int end) {
+        this.start = start;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+        this.end = end;
+    }
+
+    /**
+     * Finds the first region with the given id in the given tokens.
+     *
+     * @param tokens the {@link BuildScriptTokens} of the build file.
+     * @param id     the id of the injection.
+     * @return the InjectedRegion, or {@code null} if there is no region with the id, or it has no end marker.
+     */
+    static InjectedRegion find(final BuildScriptTokens tokens, final String id) {
+        final String beginMarker = getBeginMarker(id);
+        final String endMarker = getEndMarker(id);
+        int begin = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) != BuildScriptTokens.Type.LINE_COMMENT) {
+                continue;
+            }
+            if (begin < 0) {
+                if (isMarker(tokens, i, beginMarker)) {
+                    begin = i;
+                }
+            } else if (isMarker(tokens, i, endMarker)) {
+                return new InjectedRegion(tokens.start(begin), tokens.end(begin), tokens.start(i), tokens.end(i));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the ids of the regions in the given tokens, that have both a begin and an end marker, in one pass.
+     *
+     * @param tokens the {@link BuildScriptTokens} of the build file.
+     * @return the Set of the ids, empty if there is no region.
+     */
+    static Set<String> findIds(final BuildScriptTokens tokens) {
+        final Set<String> beginIds = new HashSet<>();
+        final Set<String> ids = new HashSet<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) != BuildScriptTokens.Type.LINE_COMMENT) {
+                continue;
+            }
+            final String comment = tokens.text(i).trim();
+            if (comment.startsWith(BEGIN_MARKER_PREFIX)) {
+                beginIds.add(comment.substring(BEGIN_MARKER_PREFIX.length()));
+            } else if (comment.startsWith(END_MARKER_PREFIX)
+                    && beginIds.contains(comment.substring(END_MARKER_PREFIX.length()))) {
+                ids.add(comment.substring(END_MARKER_PREFIX.length()));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Checks if the line comment on the given index is the given marker. Trailing whitespace (for example the '\r' of
+     * Windows line breaks) is ignored.
+     *
+     * @param tokens the {@link BuildScriptTokens}.
+     * @param index  the index of the line comment token.
+     * @param marker the marker.
+     * @return {@code true} if it is, {@code false} otherwise.
+     */
+    private static boolean isMarker(final BuildScriptTokens tokens, final int index, final String marker) {
+        return tokens.end(index) - tokens.start(index) >= marker.length()
+                && tokens.text(index).trim().equals(marker);
+    }
+
+    /**
+     * Wraps the given content in the markers of the given id.
+     *
+     * @param id      the id of the injection.
+     * @param content the content, should start with a line break.
+     * @return the wrapped content.
+     */
+    static String wrap(final String id, final String content) {
+        return wrap(id, content, "");
+    }
+
+    /**
+     * Wraps the given content in the markers of the given id, that are indented with the given indentation. It is
+     * used for regions inside of a block, so the markers are aligned with the content of the block.
+     *
+     * @param id      the id of the injection.
+     * @param content the content, should start with a line break.
+     * @param indent  the indentation of the markers.
+     * @return the wrapped content.
+     */
+    static String wrap(final String id, final String content, final String indent) {
+        return indent + getBeginMarker(id) + getBody(content, indent) + getEndMarker(id);
+    }
+
+    /**
+     * Gets the body of a region for the given content, that is the text between the markers. The indentation of the
+     * end marker belongs to the body.
+     *
+     * @param content the content, should start with a line break.
+     * @param indent  the indentation of the markers.
+     * @return the body.
+     */
+    static String getBody(final String content, final String indent) {
+        return content + "\n" + indent;
+    }
+
+    /**
+     * Gets the begin marker of the given id.
+     *
+     * @param id the id of the injection.
+     * @return the begin marker.
+     */
+    static String getBeginMarker(final String id) {
+        return BEGIN_MARKER_PREFIX + id;
+    }
+
+    /**
+     * Gets the end marker of the given id.
+     *
+     * @param id the id of the injection.
+     * @return the end marker.
+     */
+    static String getEndMarker(final String id) {
+        return END_MARKER_PREFIX + id;
+    }
+
+    /**
+     * Replaces the body of the region with the body of the given content in the given build file, if it differs from
+     * the current one.
+     *
+     * @param buildFile the {@link BuildFileTransaction.BuildFile}, that contains the region.
+     * @param content   the new content, should start with a line break.
+     * @param indent    the indentation of the markers, see {@link #wrap(String, String, String)}.
+     * @return {@code true} if the body has been replaced, {@code false} if it was already up to date.
+     */
+    boolean update(final BuildFileTransaction.BuildFile buildFile, final String content, final String indent) {
+        final String body = getBody(content, indent);
+        if (body.contentEquals(buildFile.getContent().subSequence(bodyStart, bodyEnd))) {
+            return false;
+        }
+        buildFile.replace(bodyStart, bodyEnd, body);
+        return true;
+    }
+
+    /**
+     * Gets where the region starts, that is the start of its begin marker.
+     *
+     * @return the start offset (inclusive) of the begin marker.
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Gets where the body of the region starts.
+     *
+     * @return the end offset (exclusive) of the begin marker, that is the start of the body.
+     */
+    int getBodyStart() {
+        return bodyStart;
+    }
+
+    /**
+     * Gets where the body of the region ends.
+     *
+     * @return the start offset of the end marker, that is the end (exclusive) of the body.
+     */
+    int getBodyEnd() {
+        return bodyEnd;
+    }
+
+    /**
+     * Gets where the region ends, that is the end of its end marker.
+     *
+     * @return the end offset (exclusive) of the end marker.
+     */
+    int getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,89 @@
+package io.bitrise.trace.step;
+
+import java.util.Arrays;
+
+/**
+ * Immutable index of sorted, non-overlapping intervals, for example the positions of the comments in a build file. The
+ * intervals are half-open ([start, end)) and stored in primitive arrays.
+ */
+class IntervalIndex {
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int size;
+
+    private IntervalIndex(final int[] starts, final int[] ends, final int size) {
+        this.starts = starts;
+        this.ends = ends;
+        this.size = size;
+    }
+
+    /**
+     * Gets the number of intervals.
+     *
+     * @return the number of intervals.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the start (inclusive) of the interval on the given index.
+     *
+     * @param index the index of the interval.
+     * @return the start of the interval.
+     */
+    int start(final int index) {
+        return starts[index];
+    }
+
+    /**
+     * Gets the end (exclusive) of the interval on the given index.
+     *
+     * @param index the index of the interval.
+     * @return the end of the interval.
+     */
+    int end(final int index) {
+        return ends[index];
+    }
+
+    /**
+     * Builder for {@link IntervalIndex}. Intervals have to be added in ascending order.
+     */
+    static class Builder {
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int size;
+
+        /**
+         * Adds a new interval after the previously added ones.
+         *
+         * @param start the start (inclusive) of the interval.
+         * @param end   the end (exclusive) of the interval.
+         * @return this Builder.
+         */
+        Builder add(final int start, final int end) {
+            if (start > end || (size > 0 && start < ends[size - 1])) {
+                throw new IllegalArgumentException(String.format(
+                        "Interval [%d, %d) is not after the previously added intervals.", start, end));
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+            return this;
+        }
+
+        /**
+         * Builds the IntervalIndex.
+         *
+         * @return the new IntervalIndex.
+         */
+        IntervalIndex build() {
+            return new IntervalIndex(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), size);
+        }
+    }
+}
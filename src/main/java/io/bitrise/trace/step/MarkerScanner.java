@@ -0,0 +1,76 @@
+package io.bitrise.trace.step;
+
+/**
+ * Scanning kernel that finds the next occurrence of any of a fixed set of ASCII marker characters, for example the
+ * quotes, escapes and line breaks in the body of a String literal. The markers are stored as a 128 bit set in two
+ * longs, so testing a character picks one of the longs by the range of the character (non-ASCII characters are never
+ * markers) and tests its bit with a shift and a mask, instead of comparing the character with every marker.
+ * {@link #indexOf(CharSequence, int, int)} is a plain scalar loop, that tests the characters one by one.
+ * {@link BuildScriptLexer} uses it to skip the content of comments and literals in bulk, and only drops to its own
+ * logic around the hits.
+ * <p>
+ * Note: SWAR (comparing four UTF-16 chars packed into a long) was measured as well, but as packing needs a separate
+ * load for every char it was not faster than the scalar loop, see {@code MarkerScannerBenchmark}. The incubating
+ * Vector API is not an option, as this code has to compile on the Java 8 level of the buildSrc of the user.
+ */
+class MarkerScanner {
+
+    private final long lowMarkers;
+    private final long highMarkers;
+
+    private MarkerScanner(final long lowMarkers, final long highMarkers) {
+        this.lowMarkers = lowMarkers;
+        this.highMarkers = highMarkers;
+    }
+
+    /**
+     * Creates a MarkerScanner for the given characters.
+     *
+     * @param markers the characters to look for, all of them have to be ASCII characters.
+     * @return the new MarkerScanner.
+     */
+    static MarkerScanner of(final String markers) {
+        long lowMarkers = 0;
+        long highMarkers = 0;
+        for (int i = 0; i < markers.length(); i++) {
+            final char c = markers.charAt(i);
+            if (c >= 128) {
+                throw new IllegalArgumentException(String.format("Marker '%s' is not an ASCII character.", c));
+            }
+            if (c < 64) {
+                lowMarkers |= 1L << c;
+            } else {
+                highMarkers |= 1L << (c - 64);
+            }
+        }
+        return new MarkerScanner(lowMarkers, highMarkers);
+    }
+
+    /**
+     * Checks if the given character is one of the markers.
+     *
+     * @param c the character to check.
+     * @return {@code true} if it is, {@code false} otherwise.
+     */
+    boolean isMarker(final char c) {
+        // Shifts only use the lowest 6 bits of the distance, so c selects the bit in both longs
+        return ((c < 64 ? lowMarkers : c < 128 ? highMarkers : 0L) >>> c & 1L) != 0;
+    }
+
+    /**
+     * Gets the index of the first marker in the given range of the text.
+     *
+     * @param text the text to scan.
+     * @param from the start index (inclusive) of the range.
+     * @param to   the end index (exclusive) of the range.
+     * @return the index of the first marker, or {@code to} if there is no marker in the range.
+     */
+    int indexOf(final CharSequence text, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (isMarker(text.charAt(i))) {
+                return i;
+            }
+        }
+        return to;
+    }
+}
@@ -0,0 +1,124 @@
+package io.bitrise.trace.step;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The planned Trace injection of a single Android module: the paths of the module and the edits that have to be made.
+ * Created by {@link InjectTraceTask} from the {@link org.gradle.api.Project} model at configuration time, and only
+ * this serializable snapshot is used at execution time, so the task action does not touch the Project (and can be
+ * stored in the configuration cache).
+ */
+class ModuleInjection implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String projectPath;
+    private final File buildFile;
+    private final boolean addTraceSdkDependency;
+    private final boolean addTraceGradlePluginDependency;
+    private final boolean applyTraceGradlePlugin;
+
+    /**
+     * Constructor for class.
+     *
+     * @param projectPath                    the path of the module, for example ":apps:app".
+     * @param buildFile                      the build file of the module.
+     * @param addTraceSdkDependency          whether the dependency on 'trace-sdk' has to be added.
+     * @param addTraceGradlePluginDependency whether the buildscript dependency on 'trace-gradle-plugin' has to be
+     *                                       added.
+     * @param applyTraceGradlePlugin         whether 'trace-gradle-plugin' has to be applied.
+     */
+    ModuleInjection(final String projectPath, final File buildFile,
+                    final boolean addTraceSdkDependency, final boolean addTraceGradlePluginDependency,
+                    final boolean applyTraceGradlePlugin) {
+        this.projectPath = projectPath;
+        this.buildFile = buildFile;
+        this.addTraceSdkDependency = addTraceSdkDependency;
+        this.addTraceGradlePluginDependency = addTraceGradlePluginDependency;
+        this.applyTraceGradlePlugin = applyTraceGradlePlugin;
+    }
+
+    /**
+     * Gets the path of the module.
+     *
+     * @return the path of the module, for example ":apps:app".
+     */
+    String getProjectPath() {
+        return projectPath;
+    }
+
+    /**
+     * Gets the build file of the module, that the edits are made in.
+     *
+     * @return the build file.
+     */
+    File getBuildFile() {
+        return buildFile;
+    }
+
+    /**
+     * Checks if the dependency on 'trace-sdk' has to be added.
+     *
+     * @return {@code true} if it has to, {@code false} otherwise.
+     */
+    boolean isAddTraceSdkDependency() {
+        return addTraceSdkDependency;
+    }
+
+    /**
+     * Checks if the buildscript dependency on 'trace-gradle-plugin' has to be added.
+     *
+     * @return {@code true} if it has to, {@code false} otherwise.
+     */
+    boolean isAddTraceGradlePluginDependency() {
+        return addTraceGradlePluginDependency;
+    }
+
+    /**
+     * Checks if 'trace-gradle-plugin' has to be applied.
+     *
+     * @return {@code true} if it has to, {@code false} otherwise.
+     */
+    boolean isApplyTraceGradlePlugin() {
+        return applyTraceGradlePlugin;
+    }
+
+    /**
+     * Checks if any edit has to be made in the module.
+     *
+     * @return {@code true} if there is any, {@code false} otherwise.
+     */
+    boolean hasEdits() {
+        return addTraceSdkDependency || addTraceGradlePluginDependency || applyTraceGradlePlugin;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final ModuleInjection that = (ModuleInjection) o;
+        return addTraceSdkDependency == that.addTraceSdkDependency &&
+                addTraceGradlePluginDependency == that.addTraceGradlePluginDependency &&
+                applyTraceGradlePlugin == that.applyTraceGradlePlugin &&
+                projectPath.equals(that.projectPath) &&
+                buildFile.equals(that.buildFile);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(projectPath, buildFile, addTraceSdkDependency, addTraceGradlePluginDependency,
+                applyTraceGradlePlugin);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ModuleInjection{%s, sdk=%b, pluginDependency=%b, applyPlugin=%b}", projectPath,
+                addTraceSdkDependency, addTraceGradlePluginDependency, applyTraceGradlePlugin);
+    }
+}
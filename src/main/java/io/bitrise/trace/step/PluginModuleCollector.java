@@ -0,0 +1,154 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the projects that apply any of the given plugins, as the projects are configured. Instead of polling
+ * {@link org.gradle.api.plugins.PluginContainer#hasPlugin(String)} on every project, which needs every project to be
+ * configured, a {@link org.gradle.api.plugins.PluginManager#withPlugin} callback is registered on each project, and
+ * it is called when (or if already) the plugin is applied.
+ * <p>
+ * With configure on demand only the projects of the requested tasks are configured, so the callbacks of the other
+ * projects would never be called. In that case the build files are prefiltered with {@link BuildScriptLexer}: only
+ * the projects whose code (without the comments) mentions one of the plugins are configured with
+ * {@link Project#evaluationDependsOn(String)}. If no build file mentions them (for example when they are applied by a
+ * convention plugin), every project is configured.
+ */
+class PluginModuleCollector {
+
+    private final Map<String, Project> projects = new TreeMap<>();
+
+    private PluginModuleCollector() {
+        // Use register
+    }
+
+    /**
+     * Registers the callbacks on all the projects of the build of the given root project.
+     *
+     * @param rootProject the root {@link Project}.
+     * @param pluginIds   the ids of the plugins to look for.
+     * @return the PluginModuleCollector, which collects the projects as they are configured.
+     */
+    static PluginModuleCollector register(final Project rootProject, final String... pluginIds) {
+        final PluginModuleCollector collector = new PluginModuleCollector();
+        for (final Project project : rootProject.getAllprojects()) {
+            for (final String pluginId : pluginIds) {
+                project.getPluginManager().withPlugin(pluginId, plugin -> collector.add(project));
+            }
+        }
+        if (rootProject.getGradle().getStartParameter().isConfigureOnDemand()) {
+            configureCandidates(rootProject, pluginIds);
+        }
+        return collector;
+    }
+
+    /**
+     * Adds a project to the collected ones.
+     *
+     * @param project the {@link Project} to add.
+     */
+    private synchronized void add(final Project project) {
+        projects.put(project.getPath(), project);
+    }
+
+    /**
+     * Gets the collected projects.
+     *
+     * @return the List of the {@link Project}s that apply any of the plugins, ordered by their paths.
+     */
+    synchronized List<Project> getProjects() {
+        return new ArrayList<>(projects.values());
+    }
+
+    /**
+     * Configures the subprojects of the given root project, whose build file may apply any of the given plugins.
+     *
+     * @param rootProject the root {@link Project}.
+     * @param pluginIds   the ids of the plugins to look for.
+     */
+    private static void configureCandidates(final Project rootProject, final String... pluginIds) {
+        final List<String> markers = getMarkers(pluginIds);
+        final List<String> candidates = new ArrayList<>();
+        for (final Project project : rootProject.getSubprojects()) {
+            if (mayApplyPlugin(project.getBuildFile(), markers)) {
+                candidates.add(project.getPath());
+            }
+        }
+        if (candidates.isEmpty()) {
+            InjectTraceTask.LOGGER.info("No build file mentions the plugins {}, configuring all the projects.",
+                    (Object) pluginIds);
+            for (final Project project : rootProject.getSubprojects()) {
+                candidates.add(project.getPath());
+            }
+        }
+        for (final String candidate : candidates) {
+            InjectTraceTask.LOGGER.debug("Configuring project \"{}\" on demand.", candidate);
+            rootProject.evaluationDependsOn(candidate);
+        }
+    }
+
+    /**
+     * Checks if the code of the given build file mentions any of the given markers.
+     *
+     * @param buildFile the build file of a project.
+     * @param markers   the markers of the plugins, see {@link #getMarkers(String...)}.
+     * @return {@code true} if the file exists and mentions any of them, {@code false} otherwise.
+     */
+    private static boolean mayApplyPlugin(final File buildFile, final Collection<String> markers) {
+        if (!buildFile.isFile()) {
+            return false;
+        }
+        try {
+            return mayApplyPlugin(BuildScriptLexer.tokenize(BuildFileIO.read(buildFile.toPath()),
+                    BuildScriptLexer.Dialect.of(buildFile.getPath())).getCode(), markers);
+        } catch (final IOException e) {
+            InjectTraceTask.LOGGER.warn("Could not read \"{}\", configuring the project.", buildFile, e);
+            return true;
+        }
+    }
+
+    /**
+     * Checks if the given code mentions any of the given markers.
+     *
+     * @param code    the code of a build file, without the comments.
+     * @param markers the markers of the plugins, see {@link #getMarkers(String...)}.
+     * @return {@code true} if it mentions any of them, {@code false} otherwise.
+     */
+    static boolean mayApplyPlugin(final String code, final Collection<String> markers) {
+        for (final String marker : markers) {
+            if (code.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the texts that a build file applying any of the given plugins likely contains: the plugin id itself (for
+     * example "com.android.application"), and the version catalog accessor of it without the "com." prefix (for
+     * example "android.application" of "libs.plugins.android.application", or "android.dynamic.feature").
+     *
+     * @param pluginIds the ids of the plugins.
+     * @return the List of the markers.
+     */
+    static List<String> getMarkers(final String... pluginIds) {
+        final List<String> markers = new ArrayList<>();
+        for (final String pluginId : pluginIds) {
+            markers.add(pluginId);
+            final String accessor = (pluginId.startsWith("com.") ? pluginId.substring(4) : pluginId)
+                    .replace('-', '.');
+            if (!accessor.equals(pluginId)) {
+                markers.add(accessor);
+            }
+        }
+        return markers;
+    }
+}
@@ -0,0 +1,160 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ModuleVersionIdentifier;
+import org.gradle.api.artifacts.result.DependencyResult;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+import org.gradle.api.artifacts.result.ResolvedDependencyResult;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects dependencies in the resolved dependency graph of a module, so the transitive dependencies are found as well,
+ * not only the declared ones (see {@link DependencyIndex}). Resolving every classpath configuration of a module would
+ * be expensive, so only one representative configuration is resolved per module (see
+ * {@link #chooseRepresentativeConfiguration(Collection)}), its component graph is walked once, until the dependency
+ * is found, and the result is cached for the lifetime of the detector.
+ */
+class ResolvedGraphDetector {
+
+    /**
+     * The suffix of the names of the runtime classpath configurations.
+     */
+    private static final String RUNTIME_CLASSPATH_SUFFIX = "RuntimeClasspath";
+
+    /**
+     * The name of the runtime classpath configuration of the release variant, the preferred representative.
+     */
+    private static final String RELEASE_RUNTIME_CLASSPATH = "release" + RUNTIME_CLASSPATH_SUFFIX;
+
+    /**
+     * The name of the runtime classpath configuration of non-Android Java modules.
+     */
+    private static final String RUNTIME_CLASSPATH = "runtimeClasspath";
+
+    private final Map<String, Boolean> results = new HashMap<>();
+
+    /**
+     * Checks if the resolved dependency graph of the representative configuration of the given module contains the
+     * given dependency. The graph of a module is resolved and walked at most once per dependency, later calls return
+     * the cached result.
+     *
+     * @param module the {@link Project} of the module.
+     * @param group  the group of the dependency.
+     * @param name   the name of the dependency.
+     * @return {@code true} if the graph contains the dependency, {@code false} if it does not, or if the module has
+     * no resolvable runtime classpath configuration.
+     */
+    boolean hasDependency(final Project module, final String group, final String name) {
+        final String key = module.getPath() + "|" + DependencyIndex.getKey(DependencyIndex.Scope.MODULE, group, name);
+        Boolean result = results.get(key);
+        if (result == null) {
+            result = resolveAndFind(module, group, name);
+            results.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the representative configuration of the given module and walks its graph for the given dependency.
+     *
+     * @param module the {@link Project} of the module.
+     * @param group  the group of the dependency.
+     * @param name   the name of the dependency.
+     * @return {@code true} if the graph contains the dependency, {@code false} otherwise.
+     */
+    private static boolean resolveAndFind(final Project module, final String group, final String name) {
+        final String configurationName = chooseRepresentativeConfiguration(module.getConfigurations().getNames());
+        if (configurationName == null) {
+            InjectTraceTask.LOGGER.info("Project \"{}\" has no runtime classpath configuration to resolve.",
+                    module.getPath());
+            return false;
+        }
+        final Configuration configuration = module.getConfigurations().getByName(configurationName);
+        if (!configuration.isCanBeResolved()) {
+            InjectTraceTask.LOGGER.info("Configuration \"{}\" of project \"{}\" can not be resolved.",
+                    configurationName, module.getPath());
+            return false;
+        }
+        InjectTraceTask.LOGGER.info("Resolving configuration \"{}\" of project \"{}\" to look for \"{}:{}\".",
+                configurationName, module.getPath(), group, name);
+        return containsModule(configuration.getIncoming().getResolutionResult().getRoot(), group, name);
+    }
+
+    /**
+     * Chooses the configuration to resolve from the given configuration names: the runtime classpath of the release
+     * variant, or the first variant runtime classpath that is not a test one, or the runtime classpath of a non-Android
+     * module, in this order.
+     *
+     * @param configurationNames the names of the configurations of a module, in a stable order.
+     * @return the name of the chosen configuration, or {@code null} if there is no runtime classpath configuration.
+     */
+    static String chooseRepresentativeConfiguration(final Collection<String> configurationNames) {
+        String candidate = null;
+        for (final String configurationName : configurationNames) {
+            if (RELEASE_RUNTIME_CLASSPATH.equals(configurationName)) {
+                return configurationName;
+            }
+            if (candidate == null && configurationName.endsWith(RUNTIME_CLASSPATH_SUFFIX) &&
+                    !isTestConfiguration(configurationName)) {
+                candidate = configurationName;
+            }
+        }
+        if (candidate == null && configurationNames.contains(RUNTIME_CLASSPATH)) {
+            candidate = RUNTIME_CLASSPATH;
+        }
+        return candidate;
+    }
+
+    /**
+     * Checks if the configuration with the given name belongs to tests, like "debugUnitTestRuntimeClasspath" or
+     * "testRuntimeClasspath".
+     *
+     * @param configurationName the name of the configuration.
+     * @return {@code true} if it does, {@code false} otherwise.
+     */
+    private static boolean isTestConfiguration(final String configurationName) {
+        return configurationName.startsWith("test") || configurationName.contains("UnitTest") ||
+                configurationName.contains("AndroidTest");
+    }
+
+    /**
+     * Walks the resolved component graph from the given root breadth first, and stops at the first component with the
+     * given group and name. Every component is visited only once, the unresolved dependencies are skipped.
+     *
+     * @param root  the root {@link ResolvedComponentResult} of the graph.
+     * @param group the group of the dependency.
+     * @param name  the name of the dependency.
+     * @return {@code true} if the graph contains the dependency, {@code false} otherwise.
+     */
+    static boolean containsModule(final ResolvedComponentResult root, final String group, final String name) {
+        final Set<ResolvedComponentResult> visited = new HashSet<>();
+        final Deque<ResolvedComponentResult> queue = new ArrayDeque<>();
+        visited.add(root);
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            final ResolvedComponentResult component = queue.poll();
+            final ModuleVersionIdentifier moduleVersion = component.getModuleVersion();
+            if (moduleVersion != null && name.equals(moduleVersion.getName()) &&
+                    group.equals(moduleVersion.getGroup())) {
+                return true;
+            }
+            for (final DependencyResult dependency : component.getDependencies()) {
+                if (dependency instanceof ResolvedDependencyResult) {
+                    final ResolvedComponentResult selected = ((ResolvedDependencyResult) dependency).getSelected();
+                    if (visited.add(selected)) {
+                        queue.add(selected);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.ValueSource;
+import org.gradle.api.provider.ValueSourceParameters;
+
+/**
+ * Value source of a Trace version chosen by a {@link InjectTraceTask.VersionResolution}, see
+ * {@link InjectTraceTask#resolveVersion(InjectTraceTask.VersionResolution, CachedVersionResolver, String, String)}.
+ * The version is the default of the version inputs of {@link InjectTraceTask}, that are only read when the task is
+ * executed. As a value source is obtained again on every build, the local Gradle cache is scanned at execution time,
+ * and not when the configuration cache entry is stored: a version, that is cached later, is picked up by the builds
+ * that reuse the entry.
+ * <p>
+ * Note: the class and the parameters are public, as Gradle generates the implementations of them.
+ */
+public abstract class VersionResolutionSource implements ValueSource<String, VersionResolutionSource.Parameters> {
+
+    /**
+     * The parameters of the {@link VersionResolutionSource}.
+     */
+    public interface Parameters extends ValueSourceParameters {
+
+        /**
+         * @return the {@link InjectTraceTask.VersionResolution} to choose the version with.
+         */
+        Property<InjectTraceTask.VersionResolution> getVersionResolution();
+
+        /**
+         * @return the Gradle user home directory, that has the local Gradle cache.
+         */
+        DirectoryProperty getGradleUserHomeDir();
+
+        /**
+         * @return the group of the module.
+         */
+        Property<String> getGroup();
+
+        /**
+         * @return the name of the module.
+         */
+        Property<String> getModuleName();
+    }
+
+    @Override
+    public String obtain() {
+        final Parameters parameters = getParameters();
+        return InjectTraceTask.resolveVersion(parameters.getVersionResolution().get(),
+                new CachedVersionResolver(parameters.getGradleUserHomeDir().get().getAsFile()),
+                parameters.getGroup().get(), parameters.getModuleName().get());
+    }
+}
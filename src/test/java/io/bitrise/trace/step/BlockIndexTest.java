@@ -0,0 +1,116 @@
+package io.bitrise.trace.step;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Test cases for {@link BlockIndex}.
+ */
+public class BlockIndexTest {
+
+    private static final String DUMMY_CONTENT = "buildscript {\n" +
+            "    repositories { google() }\n" +
+            "    dependencies {\n" +
+            "        classpath \"com.android.tools.build:gradle:4.0.2\" // }\n" +
+            "    }\n" +
+            "}\n" +
+            "plugins { id 'com.android.application' }\n" +
+            "android {\n" +
+            "    buildTypes.all { it -> println \"{\" }\n" +
+            "    productFlavors.register(\"free\") { }\n" +
+            "}\n" +
+            "dependencies {\n" +
+            "    implementation \"io.bitrise.trace:trace-sdk:+\"\n" +
+            "}\n";
+
+    private static BlockIndex getBlocks(final String content) {
+        return BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY).getBlocks();
+    }
+
+    @Test
+    public void find_TopLevelBlocks() {
+        final BlockIndex blocks = getBlocks(DUMMY_CONTENT);
+        assertThat(blocks.start(blocks.find("buildscript")), is(0));
+        assertThat(blocks.start(blocks.find("plugins")), is(DUMMY_CONTENT.indexOf("plugins")));
+        assertThat(blocks.start(blocks.find("android")), is(DUMMY_CONTENT.indexOf("\nandroid") + 1));
+        assertThat(blocks.start(blocks.find("dependencies")), is(DUMMY_CONTENT.lastIndexOf("dependencies")));
+        assertThat(blocks.find("repositories"), is(-1));
+    }
+
+    @Test
+    public void find_SkipsLiteralsAndComments() {
+        final String content = "def a = \"buildscript {\"\n// buildscript {\nbuildscript /* c */ {\n}";
+        final BlockIndex blocks = getBlocks(content);
+        assertThat(blocks.start(blocks.find("buildscript")), is(content.lastIndexOf("buildscript")));
+    }
+
+    @Test
+    public void find_NoBlock() {
+        assertThat(getBlocks("buildscript.repositories.add(foo)").find("buildscript"), is(-1));
+    }
+
+    @Test
+    public void findChild_NestedBlocks() {
+        final BlockIndex blocks = getBlocks(DUMMY_CONTENT);
+        final int buildScript = blocks.find("buildscript");
+        final int dependencies = blocks.findChild(buildScript, "dependencies");
+        assertThat(blocks.start(dependencies), is(DUMMY_CONTENT.indexOf("dependencies")));
+        assertThat(blocks.parent(dependencies), is(buildScript));
+        assertThat(blocks.findChild(buildScript, "android"), is(-1));
+    }
+
+    @Test
+    public void bodyOffsets_BraceMatching() {
+        final BlockIndex blocks = getBlocks(DUMMY_CONTENT);
+        final int buildScript = blocks.find("buildscript");
+        final String body = DUMMY_CONTENT.substring(blocks.bodyStart(buildScript), blocks.bodyEnd(buildScript));
+        assertThat(body.endsWith("    }\n"), is(true));
+        assertThat(blocks.end(buildScript), is(DUMMY_CONTENT.indexOf("}\nplugins") + 1));
+        assertThat(blocks.isClosed(buildScript), is(true));
+    }
+
+    @Test
+    public void name_CallsAndClosures() {
+        final BlockIndex blocks = getBlocks(DUMMY_CONTENT);
+        final int android = blocks.find("android");
+        assertThat(blocks.name(android + 1), is("all"));
+        assertThat(blocks.name(android + 2), is("register"));
+        assertThat(blocks.parent(android + 2), is(android));
+    }
+
+    @Test
+    public void name_NoName() {
+        final BlockIndex blocks = getBlocks("def a = [1].collect { it }\n{ }");
+        assertThat(blocks.size(), is(2));
+        assertThat(blocks.name(0), is("collect"));
+        assertThat(blocks.name(1), nullValue());
+    }
+
+    @Test
+    public void of_UnclosedBlock() {
+        final String content = "buildscript {\n    dependencies {\n";
+        final BlockIndex blocks = getBlocks(content);
+        final int buildScript = blocks.find("buildscript");
+        assertThat(blocks.isClosed(buildScript), is(false));
+        assertThat(blocks.end(buildScript), is(content.length()));
+        assertThat(blocks.findChild(buildScript, "dependencies"), is(1));
+    }
+
+    @Test
+    public void of_UnmatchedClosingBrace() {
+        final BlockIndex blocks = getBlocks("} android { }");
+        assertThat(blocks.size(), is(1));
+        assertThat(blocks.name(0), equalTo("android"));
+    }
+
+    @Test
+    public void getBlocks_SameInstance() {
+        final BuildScriptTokens tokens = BuildScriptLexer.tokenize(DUMMY_CONTENT, BuildScriptLexer.Dialect.KOTLIN);
+        assertThat(tokens.getBlocks(), sameInstance(tokens.getBlocks()));
+    }
+}
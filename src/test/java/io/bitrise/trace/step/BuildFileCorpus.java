@@ -0,0 +1,123 @@
+package io.bitrise.trace.step;
+
+import java.util.Random;
+
+/**
+ * Generator of synthetic Gradle build files for the differential tests and the JMH benchmarks. The generated files
+ * are deterministic for a given size and variant. They only contain constructs that the legacy line based
+ * implementations in {@link InjectTraceTask} handle correctly (for example no comment markers after escaped quotes,
+ * and no lines ending with a '*', where the legacy search reports a partial match of the end of a block comment), so
+ * their results can be compared with the lexer based ones.
+ */
+class BuildFileCorpus {
+
+    /**
+     * The variants of the generated build files.
+     */
+    enum Variant {
+        /**
+         * Mostly code, with some comments and literals, like a usual build file.
+         */
+        TYPICAL,
+        /**
+         * Every other line has a comment, including multiline block comments.
+         */
+        COMMENT_HEAVY,
+        /**
+         * Most lines have String literals, including comment markers and escaped quotes in them.
+         */
+        LITERAL_HEAVY
+    }
+
+    private static final long SEED = 42;
+
+    private BuildFileCorpus() {
+        // Static helper
+    }
+
+    /**
+     * Generates a build file.
+     *
+     * @param lineCount the number of lines to generate, at least the size of the buildscript block.
+     * @param variant   the variant of the file.
+     * @return the content of the build file.
+     */
+    static String generate(final int lineCount, final Variant variant) {
+        final Random random = new Random(SEED + variant.ordinal());
+        final StringBuilder stringBuilder = new StringBuilder(lineCount * 48);
+        stringBuilder.append("// Generated build file\n")
+                     .append("def buildscriptName = \"buildscript {\"\n")
+                     .append("buildscript {\n")
+                     .append("    repositories {\n")
+                     .append("        google() // Google's Maven repository\n")
+                     .append("        mavenCentral()\n")
+                     .append("    }\n")
+                     .append("    dependencies {\n")
+                     .append("        classpath 'com.android.tools.build:gradle:4.0.2'\n")
+                     .append("    }\n")
+                     .append("}\n")
+                     .append("dependencies {\n");
+        int line = 12;
+        while (line < lineCount - 1) {
+            line += appendLine(stringBuilder, random, variant, line, lineCount - 1 - line);
+        }
+        stringBuilder.append("}\n");
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Appends one or more lines to the content.
+     *
+     * @param stringBuilder the content.
+     * @param random        the source of randomness.
+     * @param variant       the variant of the file.
+     * @param line          the number of the current line.
+     * @param remaining     the number of lines that can be appended.
+     * @return the number of appended lines.
+     */
+    private static int appendLine(final StringBuilder stringBuilder, final Random random, final Variant variant,
+                                  final int line, final int remaining) {
+        final int choice = random.nextInt(10);
+        switch (variant) {
+            case COMMENT_HEAVY:
+                if (choice < 2 && remaining >= 4) {
+                    stringBuilder.append("    /* Multiline comment ").append(line).append(" with a // marker\n")
+                                 .append("     * that continues\n")
+                                 .append("     * implementation \"com.example:commented:1.0\"\n")
+                                 .append("     */\n");
+                    return 4;
+                } else if (choice < 5) {
+                    stringBuilder.append("    // implementation \"com.example:disabled-").append(line)
+                                 .append(":1.0\"\n");
+                    return 1;
+                } else if (choice < 7) {
+                    stringBuilder.append("    implementation /* pinned */ \"com.example:library-").append(line)
+                                 .append(":1.0\" // reason\n");
+                    return 1;
+                }
+                break;
+            case LITERAL_HEAVY:
+                if (choice < 3) {
+                    stringBuilder.append("    implementation \"com.example:library-").append(line)
+                                 .append(":${versions.library}\"\n");
+                    return 1;
+                } else if (choice < 5) {
+                    stringBuilder.append("    println 'https://example.com/").append(line).append("/* // not'\n");
+                    return 1;
+                } else if (choice < 7) {
+                    stringBuilder.append("    println \"say \\\"").append(line).append("\\\" \" + 'it\\'s'\n");
+                    return 1;
+                }
+                break;
+            default:
+                if (choice < 1) {
+                    stringBuilder.append("    // Dependency ").append(line).append('\n');
+                    return 1;
+                }
+                break;
+        }
+        stringBuilder.append("    implementation \"com.example:library-").append(line).append(":1.")
+                     .append(random.nextInt(10)).append(".0\"\n");
+        return 1;
+    }
+}
@@ -0,0 +1,86 @@
+package io.bitrise.trace.step;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Differential test cases: the lexer based processing of {@link InjectTraceTask} has to produce the same code as the
+ * {@link ReferenceBuildFileProcessor} on every variant of the {@link BuildFileCorpus}.
+ */
+public class BuildFileCorpusTest {
+
+    private static final int LINE_COUNT = 2000;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Gets the code of the given content with the lexer, see
+     * {@link ReferenceBuildFileProcessor#withMultilineCommentLineBreaks(BuildScriptTokens, String)}.
+     *
+     * @param content the content of a build file.
+     * @return the code, that can be compared with the code of the {@link ReferenceBuildFileProcessor}.
+     */
+    private static String getCode(final String content) {
+        final BuildScriptTokens tokens = BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY);
+        return ReferenceBuildFileProcessor.withMultilineCommentLineBreaks(tokens, tokens.getCode());
+    }
+
+    @Test
+    public void generate_Deterministic() {
+        for (final BuildFileCorpus.Variant variant : BuildFileCorpus.Variant.values()) {
+            final String content = BuildFileCorpus.generate(LINE_COUNT, variant);
+            assertThat(content, equalTo(BuildFileCorpus.generate(LINE_COUNT, variant)));
+            assertThat(content.split("\n").length, is(LINE_COUNT));
+        }
+    }
+
+    @Test
+    public void getCode_SameAsReference() {
+        for (final BuildFileCorpus.Variant variant : BuildFileCorpus.Variant.values()) {
+            final String content = BuildFileCorpus.generate(LINE_COUNT, variant);
+            final String expected = ReferenceBuildFileProcessor.removeComments(content);
+            assertThat(variant.name(), getCode(content), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void tokenize_StringLiteralsSameAsReference() {
+        for (final BuildFileCorpus.Variant variant : BuildFileCorpus.Variant.values()) {
+            final String content = BuildFileCorpus.generate(LINE_COUNT, variant);
+            final List<String> actual = BuildScriptLexerTest.textsOf(
+                    BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY), BuildScriptTokens.Type.STRING);
+            final String referenceCode = ReferenceBuildFileProcessor.removeComments(content);
+            assertThat(variant.name(), actual, equalTo(ReferenceBuildFileProcessor.findStringLiterals(referenceCode)));
+        }
+    }
+
+    @Test
+    public void updateBuildScriptContent_SameCodeAsReference() throws IOException {
+        for (final BuildFileCorpus.Variant variant : BuildFileCorpus.Variant.values()) {
+            final String content = BuildFileCorpus.generate(LINE_COUNT, variant);
+            final Path path = tempFolder.newFile(variant.name() + ".gradle").toPath();
+            Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+
+            final BuildFileTransaction transaction = new BuildFileTransaction();
+            assertThat(InjectTraceTask.updateBuildScriptContent(transaction.edit(path),
+                    InjectTraceTask.DYNAMIC_VERSION, null), is(true));
+            transaction.commit();
+
+            final String actual = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            final String expected = ReferenceBuildFileProcessor.updateBuildScriptContent(content);
+            assertThat(variant.name(), getCode(actual), equalTo(expected));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.bitrise.trace.step;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Test cases for {@link BuildFileDocument}.
+ */
+public class BuildFileDocumentTest {
+
+    private static final String DUMMY_CONTENT = "buildscript {\n    // comment\n    repositories { google() }\n}\n" +
+            "def a = \"${b} {\" / 2\n";
+
+    private static BuildFileDocument groovy(final String content) {
+        return new BuildFileDocument(content, BuildScriptLexer.Dialect.GROOVY);
+    }
+
+    /**
+     * Checks that the tokens of the given document are the same as the tokens of its content tokenized from scratch.
+     *
+     * @param document the document to check.
+     */
+    private static void assertTokensUpToDate(final BuildFileDocument document) {
+        final BuildScriptTokens actual = document.getTokens();
+        final String content = document.toString();
+        final BuildScriptTokens expected = BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.GROOVY);
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.type(i), is(expected.type(i)));
+            assertThat(actual.start(i), is(expected.start(i)));
+            assertThat(actual.end(i), is(expected.end(i)));
+        }
+    }
+
+    // region content tests
+    @Test
+    public void replace_Content() {
+        final BuildFileDocument document = groovy("0123456789");
+        document.replace(2, 4, "ab");
+        document.replace(0, 0, "<");
+        document.replace(11, 11, ">");
+        document.replace(5, 9, "");
+        assertThat(document.toString(), equalTo("<01ab89>"));
+        assertThat(document.length(), is(8));
+        assertThat(document.charAt(3), is('a'));
+        assertThat(document.subSequence(2, 6).toString(), equalTo("1ab8"));
+        assertThat(document.isModified(), is(true));
+    }
+
+    @Test
+    public void replace_EmptyDocument() {
+        final BuildFileDocument document = groovy("");
+        document.replace(0, 0, "apply plugin: 'java'");
+        assertThat(document.toString(), equalTo("apply plugin: 'java'"));
+    }
+
+    @Test
+    public void replace_NoChange() {
+        final BuildFileDocument document = groovy(DUMMY_CONTENT);
+        document.replace(3, 3, "");
+        assertThat(document.isModified(), is(false));
+        assertThat(document.getPieceCount(), is(1));
+    }
+
+    @Test
+    public void replace_PieceCountIndependentOfSize() {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append(DUMMY_CONTENT);
+        }
+        final BuildFileDocument document = groovy(content.toString());
+        document.replace(0, 0, "top\n");
+        document.replace(document.length(), document.length(), "bottom\n");
+        document.replace(100, 200, "middle");
+        assertThat(document.getPieceCount(), is(5));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void replace_InvalidRange() {
+        groovy(DUMMY_CONTENT).replace(2, 1, "");
+    }
+
+    @Test
+    public void appendTo_Range() throws IOException {
+        final BuildFileDocument document = groovy("0123456789");
+        document.replace(5, 5, "abc");
+        final StringBuilder stringBuilder = new StringBuilder();
+        document.appendTo(stringBuilder, 3, 10);
+        assertThat(stringBuilder.toString(), equalTo("34abc56"));
+    }
+    // endregion
+
+    // region getTokens tests
+    @Test
+    public void getTokens_AfterAppend() {
+        final BuildFileDocument document = groovy(DUMMY_CONTENT);
+        document.getTokens();
+        document.replace(document.length(), document.length(), "\napply from: \"traceSdk.gradle\"");
+        assertTokensUpToDate(document);
+    }
+
+    @Test
+    public void getTokens_EditOpensComment() {
+        final BuildFileDocument document = groovy(DUMMY_CONTENT);
+        document.getTokens();
+        document.replace(0, 0, "/*");
+        assertTokensUpToDate(document);
+        assertThat(document.getTokens().size(), is(1));
+        document.replace(0, 2, "");
+        assertTokensUpToDate(document);
+    }
+
+    @Test
+    public void getTokens_EditExtendsToken() {
+        final BuildFileDocument document = groovy(DUMMY_CONTENT);
+        document.getTokens();
+        document.replace("buildscript".length(), "buildscript".length(), "Foo");
+        assertTokensUpToDate(document);
+        assertThat(document.getTokens().getBlocks().find("buildscript"), is(-1));
+    }
+
+    @Test
+    public void getTokens_EditChangesSlashyContext() {
+        final BuildFileDocument document = groovy(DUMMY_CONTENT);
+        document.getTokens();
+        final int offset = DUMMY_CONTENT.indexOf("/ 2");
+        document.replace(offset - 1, offset - 1, " =");
+        assertTokensUpToDate(document);
+    }
+
+    @Test
+    public void getTokens_RandomEdits() {
+        final Random random = new Random(42);
+        final String[] fragments = {"{", "}", "\"", "'", "//", "/*", "*/", "\n", " a ", "/", "$", "buildscript", ""};
+        final BuildFileDocument document = groovy(DUMMY_CONTENT + DUMMY_CONTENT);
+        document.getTokens();
+        for (int i = 0; i < 500; i++) {
+            final int start = random.nextInt(document.length() + 1);
+            final int end = Math.min(document.length(), start + random.nextInt(4));
+            document.replace(start, end, fragments[random.nextInt(fragments.length)]);
+            if (random.nextInt(3) == 0) {
+                // Several edits between tokenizations
+                continue;
+            }
+            assertTokensUpToDate(document);
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,115 @@
+package io.bitrise.trace.step;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Test cases for {@link BuildFileIO}.
+ */
+public class BuildFileIOTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Creates a String that is larger than the buffers of {@link BuildFileIO} and contains multi byte characters on
+     * the buffer boundaries.
+     *
+     * @return the String.
+     */
+    static String getLargeContent() {
+        final StringBuilder stringBuilder = new StringBuilder();
+        while (stringBuilder.length() < BuildFileIO.BUFFER_SIZE * 3) {
+            stringBuilder.append("implementation \"\u00e1rv\u00edzt\u0171r\u0151:")
+                    .append("t\u00fck\u00f6rf\u00far\u00f3g\u00e9p:1.0\"")
+                    .append(" // \u2713\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    private File newFile(final String content) throws IOException {
+        final File file = tempFolder.newFile("build.gradle");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // region read tests
+    @Test
+    public void read_Empty() throws IOException {
+        final File file = newFile("");
+        assertThat(BuildFileIO.read(file.toPath()).toString(), equalTo(""));
+    }
+
+    @Test
+    public void read_LargeMultiByteContent() throws IOException {
+        final String expected = getLargeContent();
+        final File file = newFile(expected);
+        assertThat(BuildFileIO.read(file.toPath()).toString(), equalTo(expected));
+    }
+
+    @Test
+    public void read_NotUtf8() throws IOException {
+        final File file = tempFolder.newFile("build.gradle");
+        // "// \u00e1rv\u00edz" in ISO-8859-1, the accented letters are malformed UTF-8
+        Files.write(file.toPath(), "// \u00e1rv\u00edz\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        try {
+            BuildFileIO.read(file.toPath());
+            fail("Expected an IOException for the ISO-8859-1 content.");
+        } catch (final IOException e) {
+            assertThat(e.getMessage(), containsString(file.getPath()));
+            assertThat(e.getCause(), is(instanceOf(CharacterCodingException.class)));
+        }
+    }
+
+    @Test
+    public void read_NotUtf8FileIsNotRewritten() throws IOException {
+        final File file = tempFolder.newFile("build.gradle");
+        final byte[] content = "// \u00e1rv\u00edz\n".getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(file.toPath(), content);
+
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        try {
+            transaction.edit(file.toPath()).append("// edit");
+            fail("Expected an IOException for the ISO-8859-1 content.");
+        } catch (final IOException e) {
+            assertThat(transaction.commit(), is(0));
+        }
+        assertThat(Files.readAllBytes(file.toPath()), equalTo(content));
+    }
+    // endregion
+
+    // region createTempFileFor tests
+    @Test
+    public void createTempFileFor_KeepsPermissions() throws IOException {
+        final File file = newFile("content");
+        assumeTrue(Files.getFileStore(file.toPath()).supportsFileAttributeView("posix"));
+        final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-rw-r--");
+        Files.setPosixFilePermissions(file.toPath(), permissions);
+
+        final Path tempPath = BuildFileIO.createTempFileFor(file.toPath());
+
+        assertThat(tempPath.getParent(), is(file.toPath().getParent()));
+        assertThat(Files.getPosixFilePermissions(tempPath), is(permissions));
+    }
+    // endregion
+}
@@ -0,0 +1,265 @@
+package io.bitrise.trace.step;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Test cases for {@link BuildFileTransaction}.
+ */
+public class BuildFileTransactionTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String DUMMY_CONTENT = "plugins {\n    id 'com.android.application'\n}\n";
+
+    private Path newFile(final String name, final String content) throws IOException {
+        final File file = tempFolder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.toPath();
+    }
+
+    private static String readString(final Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private static String getEditedContent(final BuildFileTransaction.BuildFile buildFile) throws IOException {
+        final StringWriter writer = new StringWriter();
+        buildFile.writeTo(writer);
+        return writer.toString();
+    }
+
+    // region BuildFile tests
+    @Test
+    public void edit_SameInstanceForSamePath() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        assertThat(transaction.edit(path), sameInstance(transaction.edit(path.getParent().resolve(".").resolve(
+                "build.gradle"))));
+    }
+
+    @Test
+    public void writeTo_NoEdits() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction.BuildFile buildFile = new BuildFileTransaction().edit(path);
+        assertThat(buildFile.isModified(), is(false));
+        assertThat(getEditedContent(buildFile), equalTo(DUMMY_CONTENT));
+    }
+
+    @Test
+    public void writeTo_EditsInOrder() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction.BuildFile buildFile = new BuildFileTransaction().edit(path);
+        buildFile.append("\nfirst");
+        buildFile.prepend("top\n");
+        buildFile.append("\nsecond");
+        assertThat(getEditedContent(buildFile), equalTo("top\n" + DUMMY_CONTENT + "\nfirst\nsecond"));
+    }
+
+    @Test
+    public void writeTo_ReplaceAndDelete() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction.BuildFile buildFile = new BuildFileTransaction().edit(path);
+        buildFile.replace(0, "plugins".length(), "buildscript");
+        final String content = buildFile.getContent().toString();
+        buildFile.delete(content.indexOf("    id"), content.indexOf("}"));
+        assertThat(getEditedContent(buildFile), equalTo("buildscript {\n}\n"));
+    }
+
+    @Test
+    public void writeTo_EditsSeePreviousEdits() throws IOException {
+        final Path path = newFile("build.gradle", "0123456789");
+        final BuildFileTransaction.BuildFile buildFile = new BuildFileTransaction().edit(path);
+        buildFile.delete(2, 6);
+        buildFile.replace(4, 6, "x");
+        assertThat(getEditedContent(buildFile), equalTo("0167x"));
+    }
+
+    @Test
+    public void getTokens_ReflectEdits() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction.BuildFile buildFile = new BuildFileTransaction().edit(path);
+        assertThat(buildFile.getTokens().getBlocks().find("buildscript"), is(-1));
+        buildFile.prepend("buildscript {\n}\n");
+        assertThat(buildFile.getTokens().getBlocks().find("buildscript"), is(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void replace_InvalidRange() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        new BuildFileTransaction().edit(path).replace(0, DUMMY_CONTENT.length() + 1, "");
+    }
+    // endregion
+
+    // region commit tests
+    @Test
+    public void commit_WritesEditedFilesOnce() throws IOException {
+        final Path editedPath = newFile("build.gradle", DUMMY_CONTENT);
+        final Path untouchedPath = newFile("settings.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        transaction.edit(editedPath).append("\napply from: \"traceSdk.gradle\"");
+        transaction.edit(editedPath).prepend("// top\n");
+        transaction.edit(untouchedPath);
+
+        assertThat(readString(editedPath), equalTo(DUMMY_CONTENT));
+        assertThat(transaction.commit(), is(1));
+        assertThat(readString(editedPath), equalTo("// top\n" + DUMMY_CONTENT + "\napply from: \"traceSdk.gradle\""));
+        assertThat(readString(untouchedPath), equalTo(DUMMY_CONTENT));
+        assertThat(tempFolder.getRoot().list().length, is(2));
+    }
+
+    @Test
+    public void commit_SameContentNotWritten() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(0));
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        final BuildFileTransaction.BuildFile buildFile = transaction.edit(path);
+        buildFile.replace(0, "plugins".length(), "plugins");
+
+        assertThat(buildFile.isModified(), is(true));
+        assertThat(buildFile.hasChanges(), is(false));
+        assertThat(transaction.commit(), is(0));
+        assertThat(transaction.getWrittenBytes(), is(0L));
+        assertThat(Files.getLastModifiedTime(path), equalTo(FileTime.fromMillis(0)));
+    }
+
+    @Test
+    public void commit_SameLengthOtherContentWritten() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        transaction.edit(path).replace(0, "plugins".length(), "Plugins");
+
+        assertThat(transaction.commit(), is(1));
+        assertThat(readString(path), equalTo("P" + DUMMY_CONTENT.substring(1)));
+    }
+
+    @Test
+    public void getWrittenBytes_EncodedSizes() throws IOException {
+        final Path source = newFile("traceSdk.gradle", DUMMY_CONTENT);
+        final Path buildFile = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        transaction.copy(source, tempFolder.newFolder("app").toPath().resolve("traceSdk.gradle"));
+        transaction.edit(buildFile).append("// \u0151");
+        transaction.commit();
+
+        final int expected = DUMMY_CONTENT.length() * 2 + "// ".length() + 2;
+        assertThat(transaction.getWrittenBytes(), is((long) expected));
+    }
+
+    @Test
+    public void commit_LargeMultiByteContent() throws IOException {
+        final String content = BuildFileIOTest.getLargeContent();
+        final Path path = newFile("build.gradle", content);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        transaction.edit(path).prepend("\u0151\n");
+        transaction.commit();
+        assertThat(readString(path), equalTo("\u0151\n" + content));
+    }
+
+    @Test
+    public void commit_CopiesFiles() throws IOException {
+        final Path source = newFile("traceSdk.gradle", DUMMY_CONTENT);
+        final Path destination = tempFolder.newFolder("app").toPath().resolve("traceSdk.gradle");
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        transaction.copy(source, destination);
+
+        assertThat(Files.exists(destination), is(false));
+        assertThat(transaction.commit(), is(1));
+        assertThat(readString(destination), equalTo(DUMMY_CONTENT));
+    }
+
+    @Test
+    public void copy_DestinationUpToDate() throws IOException {
+        final Path source = newFile("traceSdk.gradle", DUMMY_CONTENT);
+        final Path destination = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+
+        assertThat(transaction.copy(source, destination), is(false));
+        assertThat(transaction.commit(), is(0));
+    }
+
+    @Test
+    public void copy_DestinationOutdated() throws IOException {
+        final Path source = newFile("traceSdk.gradle", DUMMY_CONTENT);
+        final Path destination = newFile("build.gradle", "// old");
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+
+        assertThat(transaction.copy(source, destination), is(true));
+        assertThat(transaction.commit(), is(1));
+        assertThat(readString(destination), equalTo(DUMMY_CONTENT));
+    }
+
+    @Test
+    public void write_OnlyWhenChanged() throws IOException {
+        final Path destination = tempFolder.getRoot().toPath().resolve("traceSdk.gradle");
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+
+        assertThat(transaction.write(destination, DUMMY_CONTENT), is(true));
+        assertThat(transaction.commit(), is(1));
+        assertThat(transaction.getWrittenBytes(), is((long) DUMMY_CONTENT.length()));
+        assertThat(readString(destination), equalTo(DUMMY_CONTENT));
+        assertThat(transaction.write(destination, DUMMY_CONTENT), is(false));
+        assertThat(transaction.commit(), is(0));
+    }
+    // endregion
+
+    // region stage tests
+    @Test
+    public void stage_BuildFileUntouchedUntilPublished() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction worker = new BuildFileTransaction();
+        worker.edit(path).append("// end");
+
+        assertThat(worker.stage(), is(1));
+        assertThat(readString(path), equalTo(DUMMY_CONTENT));
+        assertThat(readString(BuildFileTransaction.getStagedPath(path)), equalTo(DUMMY_CONTENT + "// end"));
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        assertThat(transaction.publish(path), is(true));
+        assertThat(transaction.commit(), is(1));
+        assertThat(transaction.getWrittenBytes(), is((long) (DUMMY_CONTENT + "// end").length()));
+        assertThat(readString(path), equalTo(DUMMY_CONTENT + "// end"));
+        assertThat(tempFolder.getRoot().list().length, is(1));
+    }
+
+    @Test
+    public void stage_SameContentNotStaged() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction worker = new BuildFileTransaction();
+        worker.edit(path).replace(0, "plugins".length(), "plugins");
+
+        assertThat(worker.stage(), is(0));
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        assertThat(transaction.publish(path), is(false));
+        assertThat(transaction.commit(), is(0));
+        assertThat(tempFolder.getRoot().list().length, is(1));
+    }
+
+    @Test
+    public void discard_StagedContentNotPublished() throws IOException {
+        final Path path = newFile("build.gradle", DUMMY_CONTENT);
+        final BuildFileTransaction worker = new BuildFileTransaction();
+        worker.edit(path).append("// end");
+        worker.stage();
+
+        BuildFileTransaction.discard(path);
+
+        assertThat(new BuildFileTransaction().publish(path), is(false));
+        assertThat(readString(path), equalTo(DUMMY_CONTENT));
+        assertThat(tempFolder.getRoot().list().length, is(1));
+    }
+    // endregion
+}
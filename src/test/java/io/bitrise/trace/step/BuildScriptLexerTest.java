@@ -0,0 +1,196 @@
+package io.bitrise.trace.step;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Test cases for {@link BuildScriptLexer} and {@link BuildScriptTokens}.
+ */
+public class BuildScriptLexerTest {
+
+    /**
+     * Gets the text of the tokens with the given type.
+     *
+     * @param tokens the tokens.
+     * @param type   the type to filter for.
+     * @return the List of the token texts.
+     */
+    static List<String> textsOf(final BuildScriptTokens tokens, final BuildScriptTokens.Type type) {
+        final List<String> texts = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) == type) {
+                texts.add(tokens.text(i));
+            }
+        }
+        return texts;
+    }
+
+    private static BuildScriptTokens groovy(final String text) {
+        return BuildScriptLexer.tokenize(text, BuildScriptLexer.Dialect.GROOVY);
+    }
+
+    private static BuildScriptTokens kotlin(final String text) {
+        return BuildScriptLexer.tokenize(text, BuildScriptLexer.Dialect.KOTLIN);
+    }
+
+    // region tokenize tests
+    @Test
+    public void tokenize_Identifiers() {
+        final BuildScriptTokens tokens = groovy("apply plugin: 'java'\nbuildscript {}");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.IDENTIFIER), contains("apply", "plugin", "buildscript"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("'java'"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.OPEN_BRACE), contains("{"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.CLOSE_BRACE), contains("}"));
+    }
+
+    @Test
+    public void tokenize_Comments() {
+        final BuildScriptTokens tokens = groovy("a // line \"comment\"\n/* block\n 'comment' */ b");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.LINE_COMMENT), contains("// line \"comment\""));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.BLOCK_COMMENT), contains("/* block\n 'comment' */"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.IDENTIFIER), contains("a", "b"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING).isEmpty(), is(true));
+    }
+
+    @Test
+    public void tokenize_CommentMarkersInStrings() {
+        final BuildScriptTokens tokens = groovy("def url = \"https://bitrise.io/*\" // comment");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("\"https://bitrise.io/*\""));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.LINE_COMMENT), contains("// comment"));
+    }
+
+    @Test
+    public void tokenize_EscapedQuotes() {
+        final BuildScriptTokens tokens = groovy("a = \"say \\\"hi\\\"\" + 'it\\'s'");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("\"say \\\"hi\\\"\"", "'it\\'s'"));
+    }
+
+    @Test
+    public void tokenize_TripleQuotedStrings() {
+        final String tripleDouble = "\"\"\"multi \"line\"\n buildscript { \"\"\"";
+        final String tripleSingle = "'''it's\n'''";
+        final BuildScriptTokens tokens = groovy("a = " + tripleDouble + "\nb = " + tripleSingle);
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains(tripleDouble, tripleSingle));
+        assertThat(tokens.getBlocks().find("buildscript"), is(-1));
+    }
+
+    @Test
+    public void tokenize_NestedTemplateExpression() {
+        final String literal = "\"${foo(\"}\") + bar { \"${baz}\" }}\"";
+        final BuildScriptTokens tokens = groovy("a = " + literal + " {");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains(literal));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.OPEN_BRACE), contains("{"));
+    }
+
+    @Test
+    public void tokenize_SingleQuotedNoTemplate() {
+        final BuildScriptTokens tokens = groovy("a = '${' + \"b\"");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("'${'", "\"b\""));
+    }
+
+    @Test
+    public void tokenize_SlashyString() {
+        final BuildScriptTokens tokens = groovy("def pattern = /foo\\/bar \"{/\ndef ratio = a / b / c");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("/foo\\/bar \"{/"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.IDENTIFIER),
+                contains("def", "pattern", "def", "ratio", "a", "b", "c"));
+    }
+
+    @Test
+    public void tokenize_DollarSlashyString() {
+        final BuildScriptTokens tokens = groovy("def a = $/ $/ / \" /$ + b");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("$/ $/ / \" /$"));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.IDENTIFIER), contains("def", "a", "b"));
+    }
+
+    @Test
+    public void tokenize_UnterminatedStringEndsAtLineEnd() {
+        final BuildScriptTokens tokens = groovy("a = \"unterminated\nbuildscript {");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains("\"unterminated"));
+        assertThat(tokens.getBlocks().start(tokens.getBlocks().find("buildscript")),
+                is("a = \"unterminated\n".length()));
+    }
+
+    @Test
+    public void tokenize_KotlinRawString() {
+        final String literal = "\"\"\"C:\\path\\\"\"\"";
+        final BuildScriptTokens tokens = kotlin("val a = " + literal + " + \"b\"");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING), contains(literal, "\"b\""));
+    }
+
+    @Test
+    public void tokenize_KotlinNestedBlockComment() {
+        final String comment = "/* outer /* inner */ still comment */";
+        final BuildScriptTokens tokens = kotlin(comment + " code");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.BLOCK_COMMENT), contains(comment));
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.IDENTIFIER), contains("code"));
+    }
+
+    @Test
+    public void tokenize_KotlinNoSlashyString() {
+        final BuildScriptTokens tokens = kotlin("val a = (b) / c / d");
+        assertThat(textsOf(tokens, BuildScriptTokens.Type.STRING).isEmpty(), is(true));
+    }
+    // endregion
+
+    // region BuildScriptTokens tests
+    @Test
+    public void getCode_StripsComments() {
+        final String content = "a /* b */ c // d\ne";
+        final BuildScriptTokens tokens = groovy(content);
+        assertThat(tokens.getCode(), is("a  c \ne"));
+    }
+
+    @Test
+    public void getCode_NoComments() {
+        assertThat(groovy("a b").getCode(), is("a b"));
+    }
+
+    @Test
+    public void getCode_OnlyComments() {
+        assertThat(groovy("/* a */// b").getCode(), is(""));
+    }
+
+    @Test
+    public void containsStatement_OwnLine() {
+        final BuildScriptTokens tokens = groovy("a()\napply from: /* x */ \"b\" // c\nd()");
+        assertThat(tokens.containsStatement(groovy("apply from: \"b\"")), is(true));
+    }
+
+    @Test
+    public void containsStatement_Semicolons() {
+        final BuildScriptTokens tokens = kotlin("a(); apply(\"b\"); c()");
+        assertThat(tokens.containsStatement(kotlin("apply(\"b\")")), is(true));
+    }
+
+    @Test
+    public void containsStatement_InBlock() {
+        final BuildScriptTokens tokens = groovy("a { apply from: \"b\" }");
+        assertThat(tokens.containsStatement(groovy("apply from: \"b\"")), is(true));
+    }
+
+    @Test
+    public void containsStatement_InStringLiteral() {
+        final BuildScriptTokens tokens = groovy("println \"apply from: 'b'\"");
+        assertThat(tokens.containsStatement(groovy("apply from: 'b'")), is(false));
+    }
+
+    @Test
+    public void containsStatement_InComment() {
+        final BuildScriptTokens tokens = groovy("// apply from: 'b'\n/* apply from: 'b' */");
+        assertThat(tokens.containsStatement(groovy("apply from: 'b'")), is(false));
+    }
+
+    @Test
+    public void containsStatement_PartOfLongerExpression() {
+        final BuildScriptTokens tokens = groovy("project.apply from: 'b'\napply from: 'b.gradle'");
+        assertThat(tokens.containsStatement(groovy("apply from: 'b'")), is(false));
+    }
+    // endregion
+}
@@ -0,0 +1,86 @@
+package io.bitrise.trace.step;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Test cases for {@link CachedVersionResolver}.
+ */
+public class CachedVersionResolverTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Creates a file in the files cache of the given Gradle user home, the way Gradle stores the files of a module.
+     *
+     * @param gradleUserHome the Gradle user home directory.
+     * @param version        the version of the module.
+     * @param fileName       the name of the file.
+     * @throws IOException when any I/O error occurs with the file.
+     */
+    private static void cacheFile(final File gradleUserHome, final String version, final String fileName)
+            throws IOException {
+        final Path hashDir = gradleUserHome.toPath().resolve(CachedVersionResolver.FILES_CACHE_DIR)
+                .resolve("io.bitrise.trace").resolve("trace-sdk").resolve(version)
+                .resolve(Integer.toHexString(fileName.hashCode()));
+        Files.createDirectories(hashDir);
+        Files.createFile(hashDir.resolve(fileName));
+    }
+
+    //region compareVersions tests
+    @Test
+    public void compareVersions_Numeric() {
+        assertThat(CachedVersionResolver.compareVersions("1.10.0", "1.9.3"), is(greaterThan(0)));
+        assertThat(CachedVersionResolver.compareVersions("0.0.7", "0.0.07"), is(0));
+        assertThat(CachedVersionResolver.compareVersions("1.2.1", "1.2"), is(greaterThan(0)));
+    }
+
+    @Test
+    public void compareVersions_Qualifiers() {
+        assertThat(CachedVersionResolver.compareVersions("1.2-beta", "1.2"), is(lessThan(0)));
+        assertThat(CachedVersionResolver.compareVersions("1.2-rc1", "1.2-beta2"), is(greaterThan(0)));
+        assertThat(CachedVersionResolver.compareVersions("1.2-dev", "1.2-alpha"), is(lessThan(0)));
+        assertThat(CachedVersionResolver.compareVersions("1.2-RELEASE", "1.2-SNAPSHOT"), is(greaterThan(0)));
+        assertThat(CachedVersionResolver.compareVersions("1.2.0", "1.2-final"), is(greaterThan(0)));
+    }
+    //endregion
+
+    //region findNewestVersion tests
+    @Test
+    public void findNewestVersion_NewestWithArtifact() throws IOException {
+        final File gradleUserHome = tempFolder.newFolder("gradle-home");
+        cacheFile(gradleUserHome, "0.0.9", "trace-sdk-0.0.9.aar");
+        cacheFile(gradleUserHome, "0.0.10", "trace-sdk-0.0.10.pom");
+        cacheFile(gradleUserHome, "0.0.10", "trace-sdk-0.0.10.aar");
+        cacheFile(gradleUserHome, "0.1.0", "trace-sdk-0.1.0.pom");
+
+        final String actual = new CachedVersionResolver(gradleUserHome).findNewestVersion("io.bitrise.trace",
+                "trace-sdk");
+        assertThat(actual, equalTo("0.0.10"));
+    }
+
+    @Test
+    public void findNewestVersion_NotCached() throws IOException {
+        final File gradleUserHome = tempFolder.newFolder("gradle-home");
+        cacheFile(gradleUserHome, "0.1.0", "trace-sdk-0.1.0.pom");
+
+        final CachedVersionResolver resolver = new CachedVersionResolver(gradleUserHome);
+        assertThat(resolver.findNewestVersion("io.bitrise.trace", "trace-sdk"), is(nullValue()));
+        assertThat(resolver.findNewestVersion("io.bitrise.trace.plugin", "trace-gradle-plugin"), is(nullValue()));
+    }
+    //endregion
+}
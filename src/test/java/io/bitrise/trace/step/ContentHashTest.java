@@ -0,0 +1,49 @@
+package io.bitrise.trace.step;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+/**
+ * Test cases for {@link ContentHash}.
+ */
+public class ContentHashTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Path newFile(final String name, final String content) throws IOException {
+        final Path path = tempFolder.newFile(name).toPath();
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    public void of_LargeFile() throws IOException, NoSuchAlgorithmException {
+        final String content = BuildFileIOTest.getLargeContent();
+        final byte[] expected = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+        assertThat(ContentHash.of(newFile("build.gradle", content)), equalTo(expected));
+    }
+
+    @Test
+    public void of_PlannedContentSameAsWrittenFile() throws IOException {
+        final Path path = newFile("build.gradle", "// app\n");
+        final BuildFileTransaction.BuildFile buildFile = new BuildFileTransaction().edit(path);
+        buildFile.append("// \u0151");
+
+        assertThat(ContentHash.of(buildFile), not(equalTo(ContentHash.of(path))));
+        final Path expected = newFile("expected.gradle", "// app\n// \u0151");
+        assertThat(ContentHash.of(buildFile), equalTo(ContentHash.of(expected)));
+    }
+}
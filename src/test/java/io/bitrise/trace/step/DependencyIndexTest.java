@@ -0,0 +1,180 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ConfigurationContainer;
+import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.artifacts.DependencySet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for {@link DependencyIndex}.
+ */
+public class DependencyIndexTest {
+
+    private static final DependencyIndex.Scope MODULE = DependencyIndex.Scope.MODULE;
+    private static final DependencyIndex.Scope BUILDSCRIPT = DependencyIndex.Scope.BUILDSCRIPT;
+    private static final String SDK_KEY = DependencyIndex.getKey(MODULE, "io.bitrise.trace", "trace-sdk");
+    private static final String PLUGIN_KEY = DependencyIndex.getKey(BUILDSCRIPT, "io.bitrise.trace.plugin",
+            "trace-gradle-plugin");
+
+    private static Dependency mockDependency(final String group, final String name, final String version) {
+        final Dependency dependency = mock(Dependency.class);
+        when(dependency.getGroup()).thenReturn(group);
+        when(dependency.getName()).thenReturn(name);
+        when(dependency.getVersion()).thenReturn(version);
+        return dependency;
+    }
+
+    private static Configuration mockConfiguration(final String name, final List<Dependency> dependencies,
+                                                   final Configuration... extendsFrom) {
+        final Configuration configuration = mock(Configuration.class);
+        final DependencySet dependencySet = mock(DependencySet.class);
+        when(dependencySet.iterator()).thenAnswer(invocation -> dependencies.iterator());
+        when(configuration.getName()).thenReturn(name);
+        when(configuration.getDependencies()).thenReturn(dependencySet);
+        when(configuration.getExtendsFrom()).thenReturn(new LinkedHashSet<>(Arrays.asList(extendsFrom)));
+        return configuration;
+    }
+
+    private static ConfigurationContainer mockContainer(final Configuration... configurations) {
+        final ConfigurationContainer container = mock(ConfigurationContainer.class);
+        final TreeSet<String> names = new TreeSet<>();
+        for (final Configuration configuration : configurations) {
+            names.add(configuration.getName());
+            when(container.getByName(configuration.getName())).thenReturn(configuration);
+        }
+        when(container.getNames()).thenReturn(names);
+        return container;
+    }
+
+    @Test
+    public void add_IndexesExtendedConfigurations() {
+        final Configuration implementation = mockConfiguration("implementation",
+                Collections.singletonList(mockDependency("io.bitrise.trace", "trace-sdk", "1.0.0")));
+        final Configuration compileClasspath = mockConfiguration("debugCompileClasspath",
+                Collections.singletonList(mockDependency("com.example", "library", "2.0")), implementation);
+
+        final DependencyIndex actual = new DependencyIndex.Builder().add(MODULE, compileClasspath).build();
+
+        assertThat(actual.size(), is(2));
+        assertThat(actual.contains(MODULE, "io.bitrise.trace", "trace-sdk"), is(true));
+        assertThat(actual.getVersion(MODULE, "io.bitrise.trace", "trace-sdk"), equalTo("1.0.0"));
+        assertThat(actual.getConfigurationNames(MODULE, "io.bitrise.trace", "trace-sdk"),
+                equalTo(Collections.singletonList("implementation")));
+        assertThat(actual.contains(MODULE, "com.example", "other"), is(false));
+        assertThat(actual.getVersion(MODULE, "com.example", "other"), is(nullValue()));
+        assertThat(actual.getConfigurationNames(MODULE, "com.example", "other"), is(empty()));
+    }
+
+    @Test
+    public void add_SharedParentVisitedOnce() {
+        final Configuration implementation = mockConfiguration("implementation",
+                Collections.singletonList(mockDependency("com.example", "library", "2.0")));
+        final Configuration debug = mockConfiguration("debugCompileClasspath", Collections.emptyList(),
+                implementation);
+        final Configuration release = mockConfiguration("releaseCompileClasspath", Collections.emptyList(),
+                implementation);
+
+        final DependencyIndex actual = new DependencyIndex.Builder().add(MODULE, debug).add(MODULE, release).build();
+
+        verify(implementation, times(1)).getDependencies();
+        assertThat(actual.getConfigurationNames(MODULE, "com.example", "library"),
+                equalTo(Collections.singletonList("implementation")));
+    }
+
+    @Test
+    public void addAll_NotMatchingConfigurationsNotRealized() {
+        final Configuration compileClasspath = mockConfiguration("debugCompileClasspath",
+                Collections.singletonList(mockDependency("com.example", "library", "2.0")));
+        final Configuration lint = mockConfiguration("lintChecks",
+                Collections.singletonList(mockDependency("com.example", "lint", "1.0")));
+        final ConfigurationContainer container = mockContainer(compileClasspath, lint);
+
+        final DependencyIndex actual = new DependencyIndex.Builder()
+                .addAll(MODULE, container, InjectTraceTask::isClasspathConfiguration)
+                .build();
+
+        verify(container, never()).getByName("lintChecks");
+        assertThat(actual.contains(MODULE, "com.example", "library"), is(true));
+        assertThat(actual.contains(MODULE, "com.example", "lint"), is(false));
+    }
+
+    @Test
+    public void addAll_StopsWhenAwaitedFound() {
+        final Configuration classpath = mockConfiguration("classpath",
+                Collections.singletonList(mockDependency("io.bitrise.trace.plugin", "trace-gradle-plugin", "+")));
+        final Configuration debug = mockConfiguration("debugCompileClasspath",
+                Collections.singletonList(mockDependency("io.bitrise.trace", "trace-sdk", "1.0.0")));
+        final Configuration release = mockConfiguration("releaseCompileClasspath",
+                Collections.singletonList(mockDependency("io.bitrise.trace", "trace-sdk", "1.0.0")));
+        final ConfigurationContainer container = mockContainer(debug, release);
+
+        final DependencyIndex.Builder builder = new DependencyIndex.Builder(SDK_KEY, PLUGIN_KEY)
+                .add(BUILDSCRIPT, classpath);
+        assertThat(builder.isComplete(), is(false));
+        final DependencyIndex actual = builder.addAll(MODULE, container, name -> true).build();
+
+        assertThat(builder.isComplete(), is(true));
+        verify(container, never()).getByName("releaseCompileClasspath");
+        assertThat(actual.getConfigurationNames(MODULE, "io.bitrise.trace", "trace-sdk"),
+                equalTo(Collections.singletonList("debugCompileClasspath")));
+    }
+
+    @Test
+    public void contains_PluginInModuleIsNotOnBuildscriptClasspath() {
+        final Configuration implementation = mockConfiguration("implementation",
+                Collections.singletonList(mockDependency("io.bitrise.trace.plugin", "trace-gradle-plugin", "+")));
+        final Configuration classpath = mockConfiguration("classpath", Collections.emptyList());
+
+        final DependencyIndex.Builder builder = new DependencyIndex.Builder(SDK_KEY, PLUGIN_KEY)
+                .add(BUILDSCRIPT, classpath)
+                .add(MODULE, implementation);
+        final DependencyIndex actual = builder.build();
+
+        assertThat(actual.contains(BUILDSCRIPT, "io.bitrise.trace.plugin", "trace-gradle-plugin"), is(false));
+        assertThat(actual.contains(MODULE, "io.bitrise.trace.plugin", "trace-gradle-plugin"), is(true));
+        assertThat(builder.isComplete(), is(false));
+    }
+
+    @Test
+    public void contains_SdkOnBuildscriptClasspathIsNotModuleDependency() {
+        final Configuration classpath = mockConfiguration("classpath",
+                Collections.singletonList(mockDependency("io.bitrise.trace", "trace-sdk", "1.0.0")));
+        final Configuration compileClasspath = mockConfiguration("debugCompileClasspath", Collections.emptyList());
+
+        final DependencyIndex actual = new DependencyIndex.Builder(SDK_KEY, PLUGIN_KEY)
+                .add(BUILDSCRIPT, classpath)
+                .add(MODULE, compileClasspath)
+                .build();
+
+        assertThat(actual.contains(MODULE, "io.bitrise.trace", "trace-sdk"), is(false));
+        assertThat(actual.getConfigurationNames(BUILDSCRIPT, "io.bitrise.trace", "trace-sdk"),
+                equalTo(Collections.singletonList("classpath")));
+    }
+
+    @Test
+    public void containsIgnoreCase() {
+        assertThat(DependencyIndex.containsIgnoreCase("debugUnitTestCompileClasspath", "compileclasspath"),
+                is(true));
+        assertThat(DependencyIndex.containsIgnoreCase("RUNTIMECLASSPATH", "runtimeclasspath"), is(true));
+        assertThat(DependencyIndex.containsIgnoreCase("implementation", "compileclasspath"), is(false));
+        assertThat(DependencyIndex.containsIgnoreCase("", "compileclasspath"), is(false));
+    }
+}
@@ -0,0 +1,18 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.plugins.JavaPlugin;
+
+/**
+ * Stands in for the Android application plugin ("com.android.application") in the projects of
+ * {@link InjectTraceTaskFunctionalTest}. Applies the Java plugin, so the module has the "implementation"
+ * configuration and the classpath configurations, that the injected dependencies are added to.
+ */
+public class FakeAndroidPlugin implements Plugin<Project> {
+
+    @Override
+    public void apply(final Project project) {
+        project.getPluginManager().apply(JavaPlugin.class);
+    }
+}
@@ -0,0 +1,17 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+
+/**
+ * Stands in for the Trace Gradle plugin ("io.bitrise.trace.plugin") in the projects of
+ * {@link InjectTraceTaskFunctionalTest}. The plugin descriptor is only in the jars of the local Maven repository of
+ * the test, so the plugin is found on the buildscript classpath only when the injected dependency is resolved.
+ */
+public class FakeTracePlugin implements Plugin<Project> {
+
+    @Override
+    public void apply(final Project project) {
+        // nothing to do, applying the plugin is enough for the tests
+    }
+}
@@ -0,0 +1,39 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Project;
+import org.gradle.util.GradleVersion;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for {@link InjectTracePlugin}. Registering the task is tested by {@link InjectTraceTaskFunctionalTest}.
+ */
+public class InjectTracePluginTest {
+
+    @Test(expected = IllegalStateException.class)
+    public void apply_NotRootProject() {
+        final Project rootProject = mock(Project.class);
+        final Project project = mock(Project.class);
+        when(project.getRootProject()).thenReturn(rootProject);
+        when(project.getPath()).thenReturn(":app");
+
+        new InjectTracePlugin().apply(project);
+    }
+
+    @Test
+    public void checkGradleVersion_MinimumVersion() {
+        InjectTracePlugin.checkGradleVersion(GradleVersion.version("6.2"));
+    }
+
+    @Test
+    public void checkGradleVersion_NewerVersion() {
+        InjectTracePlugin.checkGradleVersion(GradleVersion.version("7.0-rc-1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void checkGradleVersion_OlderVersion() {
+        InjectTracePlugin.checkGradleVersion(GradleVersion.version("6.1.1"));
+    }
+}
@@ -0,0 +1,323 @@
+package io.bitrise.trace.step;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+/**
+ * Functional test cases for {@link InjectTraceTask}: the task is run with the Gradle TestKit in a generated project,
+ * the same way as the step runs it. The project has a Groovy and a Kotlin application module, that apply the
+ * {@link FakeAndroidPlugin}, and the Trace Gradle plugin is resolved from a local Maven repository, that has the
+ * {@link FakeTracePlugin} in it, so the builds do not need network access.
+ */
+public class InjectTraceTaskFunctionalTest {
+
+    private static final String TASK_PATH = ":injectTraceTask";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File projectDir;
+    private File rootBuildFile;
+    private File groovyBuildFile;
+    private File kotlinBuildFile;
+    private File traceSdkGradleFile;
+    private File testKitDir;
+
+    @Before
+    public void setUp() throws IOException {
+        projectDir = tempFolder.newFolder("project");
+        write(new File(projectDir, "settings.gradle"), "include ':app', ':app-kts'\n");
+        rootBuildFile = new File(projectDir, "build.gradle");
+        write(rootBuildFile, "apply plugin: io.bitrise.trace.step.InjectTracePlugin\n");
+        write(new File(projectDir, "buildSrc/build.gradle"), getBuildSrcBuildFileContent());
+        groovyBuildFile = new File(projectDir, "app/build.gradle");
+        write(groovyBuildFile, "apply plugin: 'com.android.application'\n");
+        kotlinBuildFile = new File(projectDir, "app-kts/build.gradle.kts");
+        write(kotlinBuildFile, "apply(plugin = \"com.android.application\")\n");
+        traceSdkGradleFile = new File(projectDir, InjectTraceTask.SHARED_SCRIPT_DIR + "/traceSdk.gradle");
+    }
+
+    @Test
+    public void injectTraceTask_RunTwice() throws IOException {
+        final File repository = createRepository("repository", "1.0");
+
+        assertThat(run(repository, "1.0", "1.0").task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.SUCCESS));
+        final String groovyContent = read(groovyBuildFile);
+        final String kotlinContent = read(kotlinBuildFile);
+        final BuildResult result = run(repository, "1.0", "1.0");
+
+        assertThat(result.getOutput(), containsString("already has the injected dependency on \"trace-sdk\""));
+        assertThat(read(groovyBuildFile), equalTo(groovyContent));
+        assertThat(read(kotlinBuildFile), equalTo(kotlinContent));
+    }
+
+    @Test
+    public void injectTraceTask_FailingModuleLeavesProjectUntouched() throws IOException {
+        final File repository = createRepository("repository", "1.0");
+        // the Groovy build file of the module has no '.gradle' extension, so injecting the apply into it fails
+        write(new File(projectDir, "settings.gradle"), "include ':app', ':app-kts', ':app-script'\n" +
+                "project(':app-script').buildFileName = 'app.groovy'\n");
+        final File failingBuildFile = new File(projectDir, "app-script/app.groovy");
+        write(failingBuildFile, "apply plugin: 'com.android.application'\n");
+        final String groovyContent = read(groovyBuildFile);
+        final String kotlinContent = read(kotlinBuildFile);
+
+        final BuildResult result = createRunner(repository, "1.0", "1.0").buildAndFail();
+
+        assertThat(result.getOutput(), containsString("Failed to inject Trace, discarding the edits"));
+        assertThat(read(groovyBuildFile), equalTo(groovyContent));
+        assertThat(read(kotlinBuildFile), equalTo(kotlinContent));
+        assertThat(read(failingBuildFile), equalTo("apply plugin: 'com.android.application'\n"));
+        assertThat(traceSdkGradleFile.exists(), equalTo(false));
+        assertThat(BuildFileTransaction.getStagedPath(groovyBuildFile.toPath()).toFile().exists(), equalTo(false));
+        assertThat(BuildFileTransaction.getStagedPath(kotlinBuildFile.toPath()).toFile().exists(), equalTo(false));
+    }
+
+    @Test
+    public void injectTraceTask_RerunWithChangedVersionsAndRepository() throws IOException {
+        final File repository = createRepository("repository", "1.0", "1.1");
+        final File otherRepository = createRepository("other-repository", "1.0", "1.1");
+        run(repository, "1.0", "1.0");
+
+        final BuildResult result = run(otherRepository, "1.1", "1.1");
+
+        assertThat(result.task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.SUCCESS));
+        final String groovyContent = read(groovyBuildFile);
+        assertThat(groovyContent, containsString("io.bitrise.trace.plugin:trace-gradle-plugin:1.1"));
+        assertThat(groovyContent, not(containsString("io.bitrise.trace.plugin:trace-gradle-plugin:1.0")));
+        assertThat(groovyContent, containsString(otherRepository.toURI().toString()));
+        assertThat(groovyContent, not(containsString(repository.toURI().toString())));
+        final String kotlinContent = read(kotlinBuildFile);
+        assertThat(kotlinContent, containsString("io.bitrise.trace:trace-sdk:1.1"));
+        assertThat(kotlinContent, not(containsString("io.bitrise.trace:trace-sdk:1.0")));
+        assertThat(kotlinContent, containsString("io.bitrise.trace.plugin:trace-gradle-plugin:1.1"));
+        assertThat(kotlinContent, not(containsString(repository.toURI().toString())));
+        final String traceSdkGradleContent = read(traceSdkGradleFile);
+        assertThat(traceSdkGradleContent, containsString("io.bitrise.trace:trace-sdk:1.1"));
+        assertThat(traceSdkGradleContent, containsString(otherRepository.toURI().toString()));
+        assertThat(traceSdkGradleContent, not(containsString(repository.toURI().toString())));
+    }
+
+    @Test
+    public void injectTraceTask_RepositoryInProject() throws IOException {
+        final File repository = createRepository(new File(projectDir, ".gradle/trace-repository"), "1.0");
+        run(repository, "1.0", "1.0");
+
+        // the second run evaluates the injected buildscripts, that resolve the Trace Gradle plugin from the repository
+        final BuildResult result = run(repository, "1.0", "1.0");
+
+        assertThat(result.task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.UP_TO_DATE));
+        final String repositoryDeclaration = "uri(rootProject.file(\".gradle/trace-repository/\"))";
+        assertThat(read(groovyBuildFile), containsString(repositoryDeclaration));
+        assertThat(read(kotlinBuildFile), containsString(repositoryDeclaration));
+        assertThat(read(traceSdkGradleFile), containsString(repositoryDeclaration));
+        assertThat(read(kotlinBuildFile), not(containsString(projectDir.getAbsolutePath())));
+    }
+
+    @Test
+    public void injectTraceTask_SettingsFailOnProjectRepositories() throws IOException {
+        final File repository = createRepository("repository", "1.0");
+        write(new File(projectDir, "settings.gradle"), "dependencyResolutionManagement {\n" +
+                "    repositoriesMode.set(RepositoriesMode.FAIL_ON_PROJECT_REPOS)\n}\n" +
+                "include ':app', ':app-kts'\n");
+        final BuildResult first = run(repository, "1.0", "1.0");
+        assertThat(first.getOutput(), containsString("do not allow repositories in the projects"));
+
+        // the injected build files are evaluated by the second run, the repositories of the projects would fail it
+        final BuildResult result = run(repository, "1.0", "1.0");
+
+        assertThat(result.task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.UP_TO_DATE));
+        assertThat(read(kotlinBuildFile), not(containsString(InjectTraceTask.TRACE_SDK_REPOSITORY_REGION)));
+        assertThat(read(traceSdkGradleFile), not(containsString(repository.toURI().toString())));
+        assertThat(read(groovyBuildFile), containsString(repository.toURI().toString()));
+    }
+
+    @Test
+    public void injectTraceTask_RootClasspathRunTwice() throws IOException {
+        final File repository = createRepository("repository", "1.0");
+        run(repository, "1.0", "1.0", "--plugin-classpath=ROOT");
+        final String rootContent = read(rootBuildFile);
+        assertThat(rootContent, containsString("io.bitrise.trace.plugin:trace-gradle-plugin:1.0"));
+
+        final BuildResult result = run(repository, "1.0", "1.0", "--plugin-classpath=ROOT");
+
+        assertThat(result.task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.UP_TO_DATE));
+        assertThat(read(rootBuildFile), equalTo(rootContent));
+    }
+
+    @Test
+    public void injectTraceTask_ConfigurationCache() throws IOException {
+        final File repository = createRepository("repository", "1.0");
+        run(repository, "1.0", "1.0", "--configuration-cache");
+        // the entry of the first run is not reused, as the injection has changed the build files
+        final String groovyContent = read(groovyBuildFile);
+        run(repository, "1.0", "1.0", "--configuration-cache");
+
+        final BuildResult result = run(repository, "1.0", "1.0", "--configuration-cache");
+
+        assertThat(result.getOutput(), containsString("Reusing configuration cache."));
+        assertThat(result.task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.UP_TO_DATE));
+        assertThat(read(groovyBuildFile), equalTo(groovyContent));
+    }
+
+    @Test
+    public void injectTraceTask_CachedVersionIsResolvedOnExecution() throws IOException {
+        testKitDir = tempFolder.newFolder("test-kit");
+        final File repository = createRepository("repository", "1.0");
+        addCachedTraceSdkVersion("1.1");
+        run(repository, null, "1.0", "--configuration-cache", "--version-resolution=CACHED");
+        assertThat(read(kotlinBuildFile), containsString("io.bitrise.trace:trace-sdk:1.1"));
+        run(repository, null, "1.0", "--configuration-cache", "--version-resolution=CACHED");
+        addCachedTraceSdkVersion("1.2");
+
+        final BuildResult result = run(repository, null, "1.0", "--configuration-cache",
+                "--version-resolution=CACHED");
+
+        assertThat(result.getOutput(), containsString("Reusing configuration cache."));
+        assertThat(result.task(TASK_PATH).getOutcome(), equalTo(TaskOutcome.SUCCESS));
+        assertThat(read(kotlinBuildFile), containsString("io.bitrise.trace:trace-sdk:1.2"));
+        assertThat(read(traceSdkGradleFile), containsString("io.bitrise.trace:trace-sdk:1.2"));
+    }
+
+    /**
+     * Runs the task in the project with the given local repository and versions.
+     *
+     * @param repository               the local Maven repository.
+     * @param traceSdkVersion          the version of the Trace SDK, or {@code null} to use the default.
+     * @param traceGradlePluginVersion the version of the Trace Gradle plugin.
+     * @param arguments                the additional arguments of the build.
+     * @return the BuildResult.
+     */
+    private BuildResult run(final File repository, final String traceSdkVersion,
+                            final String traceGradlePluginVersion, final String... arguments) {
+        return createRunner(repository, traceSdkVersion, traceGradlePluginVersion, arguments).build();
+    }
+
+    /**
+     * Creates the runner of {@link #TASK_PATH}, see {@link #run(File, String, String, String...)}.
+     *
+     * @param repository               the local Maven repository.
+     * @param traceSdkVersion          the version of the Trace SDK, or {@code null} to use the default.
+     * @param traceGradlePluginVersion the version of the Trace Gradle plugin.
+     * @param arguments                the additional arguments of the build.
+     * @return the GradleRunner.
+     */
+    private GradleRunner createRunner(final File repository, final String traceSdkVersion,
+                                      final String traceGradlePluginVersion, final String... arguments) {
+        final List<String> allArguments = new ArrayList<>(Arrays.asList(TASK_PATH, "--stacktrace",
+                "--local-repository=" + repository.getAbsolutePath(),
+                "--trace-gradle-plugin-version=" + traceGradlePluginVersion));
+        if (traceSdkVersion != null) {
+            allArguments.add("--trace-sdk-version=" + traceSdkVersion);
+        }
+        allArguments.addAll(Arrays.asList(arguments));
+        final Map<String, String> environment = new HashMap<>(System.getenv());
+        environment.put("BITRISE_STEP_SOURCE_DIR", System.getProperty("bitrise.trace.test.stepSourceDir"));
+        final GradleRunner runner = GradleRunner.create()
+                .withProjectDir(projectDir)
+                .withArguments(allArguments)
+                .withEnvironment(environment);
+        return testKitDir == null ? runner : runner.withTestKitDir(testKitDir);
+    }
+
+    /**
+     * Gets the content of the build file of buildSrc, that puts the compiled task and the test plugins on the
+     * classpath of the build the same way as the step does: the classes are not loaded by the classloader of the root
+     * buildscript, that changes when the Trace Gradle plugin is added to it.
+     *
+     * @return the content.
+     */
+    private static String getBuildSrcBuildFileContent() {
+        final StringBuilder content = new StringBuilder("plugins {\n    id 'java'\n}\n\ndependencies {\n");
+        for (final String path : System.getProperty("bitrise.trace.test.classpath").split(File.pathSeparator)) {
+            content.append(String.format("    implementation files(\"%s\")\n", path.replace("\\", "\\\\")));
+        }
+        return content.append("}\n").toString();
+    }
+
+    /**
+     * Creates a local Maven repository with the given versions of the Trace Gradle plugin. The jars only have the
+     * descriptor of the plugin, that points to the {@link FakeTracePlugin}.
+     *
+     * @param name     the name of the directory of the repository.
+     * @param versions the versions.
+     * @return the directory of the repository.
+     * @throws IOException when any I/O error occurs.
+     */
+    private File createRepository(final String name, final String... versions) throws IOException {
+        return createRepository(tempFolder.newFolder(name), versions);
+    }
+
+    /**
+     * Creates a local Maven repository in the given directory, see {@link #createRepository(String, String...)}.
+     *
+     * @param repository the directory of the repository.
+     * @param versions   the versions.
+     * @return the directory of the repository.
+     * @throws IOException when any I/O error occurs.
+     */
+    private File createRepository(final File repository, final String... versions) throws IOException {
+        for (final String version : versions) {
+            final File versionDir = new File(repository, "io/bitrise/trace/plugin/trace-gradle-plugin/" + version);
+            final String baseName = "trace-gradle-plugin-" + version;
+            write(new File(versionDir, baseName + ".pom"), String.format("<project>\n" +
+                    "    <modelVersion>4.0.0</modelVersion>\n" +
+                    "    <groupId>io.bitrise.trace.plugin</groupId>\n" +
+                    "    <artifactId>trace-gradle-plugin</artifactId>\n" +
+                    "    <version>%s</version>\n" +
+                    "</project>\n", version));
+            try (OutputStream outputStream = Files.newOutputStream(new File(versionDir, baseName + ".jar").toPath());
+                 JarOutputStream jarOutputStream = new JarOutputStream(outputStream)) {
+                jarOutputStream.putNextEntry(
+                        new JarEntry("META-INF/gradle-plugins/io.bitrise.trace.plugin.properties"));
+                jarOutputStream.write(("implementation-class=" + FakeTracePlugin.class.getName() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                jarOutputStream.closeEntry();
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * Adds the given version of the Trace SDK to the local Gradle cache of the {@link #testKitDir}.
+     *
+     * @param version the version.
+     * @throws IOException when any I/O error occurs.
+     */
+    private void addCachedTraceSdkVersion(final String version) throws IOException {
+        write(new File(testKitDir, CachedVersionResolver.FILES_CACHE_DIR + "/io.bitrise.trace/trace-sdk/" + version +
+                "/0123456789abcdef/trace-sdk-" + version + ".aar"), "");
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
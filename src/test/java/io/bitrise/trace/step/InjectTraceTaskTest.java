@@ -1,28 +1,30 @@
 package io.bitrise.trace.step;
 
-import org.gradle.api.artifacts.Dependency;
-import org.gradle.api.internal.artifacts.DefaultDependencySet;
-import org.gradle.api.internal.artifacts.configurations.DefaultConfiguration;
-import org.gradle.api.logging.Logging;
+import org.gradle.api.Project;
+import org.gradle.api.plugins.PluginContainer;
 import org.gradle.internal.impldep.org.apache.commons.io.FileUtils;
-import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -32,444 +34,634 @@ import static org.mockito.Mockito.when;
  */
 public class InjectTraceTaskTest {
 
-    @BeforeClass
-    public static void setup() {
-        InjectTraceTask.logger = Logging.getLogger(InjectTraceTaskTest.class.getName());
+    // region getAndroidModules tests
+    private static Project mockProject(final String path, final String pluginId) {
+        final Project project = mock(Project.class);
+        final PluginContainer plugins = mock(PluginContainer.class);
+        when(project.getPath()).thenReturn(path);
+        when(project.getPlugins()).thenReturn(plugins);
+        when(plugins.hasPlugin(pluginId)).thenReturn(true);
+        return project;
     }
 
-    // region getSmallestNonNegativeNumber tests
     @Test
-    public void getSmallestNonNegativeNumber_onePositive() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(1);
-        assertThat(actual, is(1));
-    }
+    public void getAndroidModules_NestedModules() {
+        final Project root = mockProject(":", "java");
+        final Project library = mockProject(":lib", "com.android.library");
+        final Project app1 = mockProject(":apps:app1", "com.android.application");
+        final Project app2 = mockProject(":apps:flavors:app2", "com.android.application");
+        final Project feature = mockProject(":features:feature", "com.android.dynamic-feature");
 
-    @Test
-    public void getSmallestNonNegativeNumber_zero() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(0);
-        assertThat(actual, is(0));
+        final List<Project> actual = InjectTraceTask.getAndroidModules(
+                Arrays.asList(root, app1, app2, feature, library));
+        assertThat(actual, equalTo(Arrays.asList(app1, app2, feature)));
     }
 
     @Test
-    public void getSmallestNonNegativeNumber_oneNegative() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(-6);
-        assertThat(actual, is(-1));
-    }
+    public void getEditedFiles_SameForEveryPlan() {
+        final File sharedScriptDir = new File("gradle");
+        final File buildFile = new File("apps/app/build.gradle");
+        final List<File> expected = Arrays.asList(buildFile, new File(sharedScriptDir, "traceSdk.gradle"),
+                new File(sharedScriptDir, "tracePlugin.gradle"));
 
-    @Test
-    public void getSmallestNonNegativeNumber_twoPositive() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(1, 2);
-        assertThat(actual, is(1));
+        assertThat(InjectTraceTask.getEditedFiles(Collections.singletonList(
+                new ModuleInjection(":apps:app", buildFile, true, true, true)), sharedScriptDir), equalTo(expected));
+        assertThat(InjectTraceTask.getEditedFiles(Collections.singletonList(
+                new ModuleInjection(":apps:app", buildFile, false, false, false)), sharedScriptDir),
+                equalTo(expected));
     }
 
     @Test
-    public void getSmallestNonNegativeNumber_nonNegative() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(1, 0);
-        assertThat(actual, is(0));
+    public void hasPluginDescriptor_FromParentClassLoader() throws IOException {
+        final File parentDir = tempFolder.newFolder("parent");
+        FileUtils.writeStringToFile(new File(parentDir, "META-INF/gradle-plugins/io.bitrise.trace.plugin.properties"),
+                "implementation-class=io.bitrise.trace.plugin.TracePlugin", Charset.defaultCharset());
+        try (final URLClassLoader parent = new URLClassLoader(new URL[]{parentDir.toURI().toURL()}, null);
+             final URLClassLoader child = new URLClassLoader(
+                     new URL[]{tempFolder.newFolder("child").toURI().toURL()}, parent)) {
+            assertThat(InjectTraceTask.hasPluginDescriptor(child, "io.bitrise.trace.plugin"), is(true));
+            assertThat(InjectTraceTask.hasPluginDescriptor(child, "io.bitrise.trace"), is(false));
+        }
     }
 
     @Test
-    public void getSmallestNonNegativeNumber_equal() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(0, 0);
-        assertThat(actual, is(0));
+    public void isRootClasspathUsable() throws IOException {
+        final Project rootProject = mock(Project.class);
+        when(rootProject.getBuildFile()).thenReturn(tempFolder.newFile("build.gradle"));
+        final List<Project> androidModules = Collections.singletonList(mock(Project.class));
+
+        assertThat(InjectTraceTask.isRootClasspathUsable(InjectTraceTask.PluginClasspath.ROOT, rootProject,
+                androidModules), is(true));
+        assertThat(InjectTraceTask.isRootClasspathUsable(InjectTraceTask.PluginClasspath.MODULE, rootProject,
+                androidModules), is(false));
+        assertThat(InjectTraceTask.isRootClasspathUsable(InjectTraceTask.PluginClasspath.ROOT, rootProject,
+                Collections.singletonList(rootProject)), is(false));
     }
 
     @Test
-    public void getSmallestNonNegativeNumber_oneNegativeOnePositive() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(4, -5);
-        assertThat(actual, is(4));
+    public void isRootClasspathUsable_NoRootBuildFile() {
+        final Project rootProject = mock(Project.class);
+        when(rootProject.getBuildFile()).thenReturn(new File(tempFolder.getRoot(), "build.gradle"));
+
+        assertThat(InjectTraceTask.isRootClasspathUsable(InjectTraceTask.PluginClasspath.ROOT, rootProject,
+                Collections.singletonList(mock(Project.class))), is(false));
     }
 
-    @Test
-    public void getSmallestNonNegativeNumber_twoNegative() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(-7, -5);
-        assertThat(actual, is(-1));
+    @Test(expected = IllegalStateException.class)
+    public void getAndroidModules_OnlyDynamicFeature() {
+        InjectTraceTask.getAndroidModules(Arrays.asList(mockProject(":", "java"),
+                mockProject(":feature", "com.android.dynamic-feature")));
     }
 
-    @Test
-    public void getSmallestNonNegativeNumber_mixed() {
-        final int actual = InjectTraceTask.getSmallestNonNegativeNumber(1, -2, 3, -4, 5);
-        assertThat(actual, is(1));
+    @Test(expected = IllegalStateException.class)
+    public void getAndroidModules_None() {
+        InjectTraceTask.getAndroidModules(Collections.singletonList(mockProject(":", "java")));
     }
     // endregion
 
-    // region removeGreedyCommentBlocksFromLine tests
-
-    @Test
-    public void removeGreedyCommentBlocksFromLine_none() {
-        final String expected = "There is no greedy comment block in this";
-        final String actual = InjectTraceTask.removeGreedyCommentBlocksFromLine(expected,
-                InjectTraceTask.getGreedyCommentBlockPattern());
-        assertThat(actual, is(expected));
-    }
+    // region getContentToAppend tests
+    private static final String DUMMY_GRADLE_FILE_NAME = "dummy.gradle";
 
     @Test
-    public void removeGreedyCommentBlocksFromLine_single() {
-        final String line = "There %s is greedy comment block in this";
-        final String actual = InjectTraceTask.removeGreedyCommentBlocksFromLine(String.format(line, "/* commented " +
-                        "part */"),
-                InjectTraceTask.getGreedyCommentBlockPattern());
-        assertThat(actual, is(String.format(line, "")));
+    public void getContentToAppend_Groovy() {
+        final String actual = InjectTraceTask.getContentToAppend("build.gradle", DUMMY_GRADLE_FILE_NAME);
+        assertThat(actual, equalTo(String.format("\napply from: rootProject.file(\"gradle/%s\")",
+                DUMMY_GRADLE_FILE_NAME)));
     }
 
     @Test
-    public void removeGreedyCommentBlocksFromLine_multiple() {
-        final String line = "There %1$s are %1$s greedy %1$s comment %1$s block %1$s in this";
-        final String actual = InjectTraceTask.removeGreedyCommentBlocksFromLine(String.format(line, "/* commented " +
-                        "part */"),
-                InjectTraceTask.getGreedyCommentBlockPattern());
-        assertThat(actual, is(String.format(line, "")));
+    public void getContentToAppend_Kotlin() {
+        final String actual = InjectTraceTask.getContentToAppend("build.gradle.kts", DUMMY_GRADLE_FILE_NAME);
+        assertThat(actual, equalTo(String.format("\napply(from = rootProject.file(\"gradle/%s\"))",
+                DUMMY_GRADLE_FILE_NAME)));
     }
 
-    @Test
-    public void removeGreedyCommentBlocksFromLine_incompleteNotRemoved() {
-        final String line = "There %s is greedy comment start in this";
-        final String actual = InjectTraceTask.removeGreedyCommentBlocksFromLine(String.format(line, "/*"),
-                InjectTraceTask.getGreedyCommentBlockPattern());
-        assertThat(actual, is(String.format(line, "/*")));
+    @Test(expected = IllegalStateException.class)
+    public void getContentToAppend_None() {
+        InjectTraceTask.getContentToAppend("README.md", DUMMY_GRADLE_FILE_NAME);
     }
     // endregion
 
-    // region removeCommentedCode tests
+    // region updateBuildScriptContent
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
 
-    private static final String LINE_COMMENT = "//";
-    private static final String GREEDY_COMMENT_START = "/*";
-    private static final String GREEDY_COMMENT_END = "*/";
-    private static final String STRING_CONTENT = "This is a dummy String";
-    private static final String STRING_CONTENT_WITH_LITERAL = "def website =\"https://bitrise.io\"";
-    private static final String STRING_CONTENT_WITH_CHAR_LITERAL = "def website ='https://bitrise.io'";
+    private final static String DUMMY_BUILD_GRADLE_CONTENT_1 = "\n" +
+            "someContent\n" +
+            "buildscript {" +
+            "%s" +
+            "    repositories {\n" +
+            "        mavenLocal()\n" +
+            "        google()\n" +
+            "        mavenCentral()\n" +
+            "    }\n" +
+            "    dependencies {\n" +
+            "        classpath 'com.android.tools.build:gradle:4.0.2'\n" +
+            "    }\n" +
+            "} " +
+            "\nsomeOtherContent";
 
-    @Test
-    public void removeCommentedCode_none() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(STRING_CONTENT);
-            add(STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("%1$s\n%1$s\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    private final static String DUMMY_BUILD_GRADLE_CONTENT_2 = "\n" +
+            "def stringName = \"buildscript {\"" +
+            DUMMY_BUILD_GRADLE_CONTENT_1;
+
+    private final static String DUMMY_BUILD_GRADLE_CONTENT_3 = "\n" +
+            "someContent\n" +
+            " dependencies {" +
+            "   implementation fileTree(dir: 'libs', include: ['*.jar'])\n" +
+            "   implementation \"io.bitrise.trace:trace-sdk:0.0.7\"" +
+            "}" +
+            "\nsomeOtherContent";
+
+    /**
+     * Runs {@link InjectTraceTask#updateBuildScriptContent(BuildFileTransaction.BuildFile, String, String)} on the
+     * given file and commits the changes.
+     *
+     * @param file the build file.
+     * @return the result of updateBuildScriptContent.
+     * @throws IOException when any I/O error occurs with the file.
+     */
+    private static boolean updateBuildScriptContent(final File file) throws IOException {
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        final boolean result = InjectTraceTask.updateBuildScriptContent(transaction.edit(file.toPath()),
+                InjectTraceTask.DYNAMIC_VERSION, null);
+        transaction.commit();
+        return result;
+    }
+
+    /**
+     * Gets the content {@link InjectTraceTask#updateBuildScriptContent(BuildFileTransaction.BuildFile, String, String)}
+     * inserts after the opening brace of the buildscript block.
+     *
+     * @return the content.
+     */
+    private static String getInjectedBuildScriptContent() {
+        return "\n" + InjectedRegion.wrap(InjectTraceTask.TRACE_GRADLE_PLUGIN_CLASSPATH_REGION,
+                InjectTraceTask.getTraceGradlePluginDependency(InjectTraceTask.DYNAMIC_VERSION) +
+                        InjectTraceTask.getBuildScriptRepositoryContent(null));
     }
 
-    //
     @Test
-    public void removeCommentedCode_lineCommentAtStart() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(STRING_CONTENT);
-            add(LINE_COMMENT + STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("%1$s\n\n%1$s\n", STRING_CONTENT);
+    public void updateBuildScriptContent_BuildScriptShouldBeUpdated() throws IOException {
+        final File tempFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(tempFile, String.format(DUMMY_BUILD_GRADLE_CONTENT_1, "\n"),
+                Charset.defaultCharset());
+
+        updateBuildScriptContent(tempFile);
+
+        final String actual = FileUtils.readFileToString(tempFile, Charset.defaultCharset());
+        final String expected = String.format(DUMMY_BUILD_GRADLE_CONTENT_1,
+                getInjectedBuildScriptContent() + "\n");
+
         assertThat(actual, equalTo(expected));
     }
 
-    //
     @Test
-    public void removeCommentedCode_lineCommentInMiddle() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(STRING_CONTENT);
-            add(STRING_CONTENT + LINE_COMMENT + STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("%1$s\n%1$s\n%1$s\n", STRING_CONTENT);
+    public void updateBuildScriptContent_LiteralsShouldNotBeAffected() throws IOException {
+        final File tempFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(tempFile, String.format(DUMMY_BUILD_GRADLE_CONTENT_2, "\n"),
+                Charset.defaultCharset());
+
+        updateBuildScriptContent(tempFile);
+
+        final String actual = FileUtils.readFileToString(tempFile, Charset.defaultCharset());
+        final String expected = String.format(DUMMY_BUILD_GRADLE_CONTENT_2,
+                getInjectedBuildScriptContent() + "\n");
+
         assertThat(actual, equalTo(expected));
     }
 
-    /* */
     @Test
-    public void removeCommentedCode_greedyCommentSingleLine() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT + GREEDY_COMMENT_END);
-            add(STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("\n%1$s\n%1$s\n", STRING_CONTENT);
+    public void updateBuildScriptContent_CommentsShouldBeKept() throws IOException {
+        final File tempFile = tempFolder.newFile("build.gradle");
+        final String content = "// buildscript {\n" +
+                "buildscript /* comment */ {\n" +
+                "    repositories { /* google() */ }\n" +
+                "}\n" +
+                "/* trailing comment */";
+        FileUtils.writeStringToFile(tempFile, content, Charset.defaultCharset());
+
+        updateBuildScriptContent(tempFile);
+
+        final String actual = FileUtils.readFileToString(tempFile, Charset.defaultCharset());
+        final int insertOffset = content.indexOf("{\n    repositories") + 1;
+        final String expected = content.substring(0, insertOffset) + getInjectedBuildScriptContent() +
+                content.substring(insertOffset);
+
         assertThat(actual, equalTo(expected));
     }
 
-    /* */
     @Test
-    public void removeCommentedCode_greedyCommentInMiddle() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(STRING_CONTENT + GREEDY_COMMENT_START + STRING_CONTENT + GREEDY_COMMENT_END + STRING_CONTENT);
-            add(STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("%1$s%1$s\n%1$s\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    public void updateBuildScriptContent_NestedBlockShouldNotBeUpdated() throws IOException {
+        final File tempFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(tempFile, "allprojects {\n    buildscript {\n    }\n}\n", Charset.defaultCharset());
+
+        final boolean actual = updateBuildScriptContent(tempFile);
+        assertThat(actual, equalTo(false));
     }
 
-    /*
-     */
     @Test
-    public void removeCommentedCode_greedyCommentTwoLine() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT);
-            add(STRING_CONTENT + GREEDY_COMMENT_END);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("\n\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    public void updateBuildScriptContent_NoMatch() throws IOException {
+        final File tempFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(tempFile, DUMMY_BUILD_GRADLE_CONTENT_3,  Charset.defaultCharset());
+
+        final boolean actual = updateBuildScriptContent(tempFile);
+        assertThat(actual, equalTo(false));
     }
 
-    /*
+    @Test
+    public void getBuildScriptRepositoryContent_FiltersContent() {
+        final String expected = "   repositories {\n" +
+                "      exclusiveContent {\n" +
+                "         forRepository { mavenCentral() }\n" +
+                "         filter {\n" +
+                "            includeGroup(\"io.bitrise.trace\")\n" +
+                "            includeGroup(\"io.bitrise.trace.plugin\")\n" +
+                "         }\n" +
+                "      }\n" +
+                "      google {\n" +
+                "         content {\n" +
+                "            includeGroupByRegex(\"com\\\\.android\\\\..*\")\n" +
+                "            includeGroupByRegex(\"androidx\\\\..*\")\n" +
+                "            includeGroupByRegex(\"com\\\\.google\\\\.android\\\\..*\")\n" +
+                "         }\n" +
+                "      }\n" +
+                "      mavenCentral {\n" +
+                "         content {\n" +
+                "            excludeGroupByRegex(\"com\\\\.android\\\\..*\")\n" +
+                "            excludeGroupByRegex(\"androidx\\\\..*\")\n" +
+                "            excludeGroupByRegex(\"com\\\\.google\\\\.android\\\\..*\")\n" +
+                "         }\n" +
+                "      }\n" +
+                "    }";
+
+        assertThat(InjectTraceTask.getBuildScriptRepositoryContent(null), equalTo(expected));
+    }
+    // endregion
 
+    /**
+     * Runs {@link InjectTraceTask#addTraceSdkDependency(BuildFileTransaction.BuildFile, String, String)} on the given
+     * file.
+     *
+     * @param file the build file.
+     * @return the number of the written files.
+     * @throws IOException when any I/O error occurs with the file.
      */
-    @Test
-    public void removeCommentedCode_greedyCommentMultiline() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT);
-            add(STRING_CONTENT);
-            add(STRING_CONTENT + GREEDY_COMMENT_END);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = "\n\n";
-        assertThat(actual, equalTo(expected));
+    private static int addTraceSdkDependency(final File file) throws IOException {
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.addTraceSdkDependency(transaction.edit(file.toPath()),
+                InjectTraceTask.DYNAMIC_VERSION, null);
+        return transaction.commit();
     }
 
-    /* // */
     @Test
-    public void removeCommentedCode_mixedCommentInSameLine1() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT + LINE_COMMENT + STRING_CONTENT);
-            add(STRING_CONTENT + GREEDY_COMMENT_END);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("\n\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    public void addTraceSdkDependency_AppliesSharedScript() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(buildFile, "// app", Charset.defaultCharset());
+
+        assertThat(addTraceSdkDependency(buildFile), is(1));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("// app\n// Bitrise Trace begin: traceSdk.gradle\n" +
+                        "apply from: rootProject.file(\"gradle/traceSdk.gradle\")\n" +
+                        "// Bitrise Trace end: traceSdk.gradle"));
     }
 
-    // /*
     @Test
-    public void removeCommentedCode_mixedCommentInSameLine2() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(LINE_COMMENT + STRING_CONTENT + GREEDY_COMMENT_START + STRING_CONTENT);
-            add(STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("\n%1$s\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    public void addTraceSdkDependency_SecondRunIsNoOp() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(buildFile, "// app", Charset.defaultCharset());
+        addTraceSdkDependency(buildFile);
+        final String expected = FileUtils.readFileToString(buildFile, Charset.defaultCharset());
+
+        assertThat(addTraceSdkDependency(buildFile), is(0));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()), equalTo(expected));
     }
 
-    /* */ //
     @Test
-    public void removeCommentedCode_mixedCommentInSameLine3() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT + GREEDY_COMMENT_END + STRING_CONTENT + LINE_COMMENT + STRING_CONTENT);
-            add(STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("%1$s\n%1$s\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    public void addTraceSdkDependency_RegionUpdatedInPlace() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(buildFile, "// app\n// Bitrise Trace begin: traceSdk.gradle\n" +
+                        "apply from: \"traceSdk.gradle\"\n// Bitrise Trace end: traceSdk.gradle\n// end",
+                Charset.defaultCharset());
+
+        assertThat(addTraceSdkDependency(buildFile), is(1));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("// app\n// Bitrise Trace begin: traceSdk.gradle\n" +
+                        "apply from: rootProject.file(\"gradle/traceSdk.gradle\")\n" +
+                        "// Bitrise Trace end: traceSdk.gradle\n// end"));
     }
 
-    /* */
-    //
     @Test
-    public void removeCommentedCode_mixedCommentMultiLine1() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT + GREEDY_COMMENT_END);
-            add(LINE_COMMENT + STRING_CONTENT);
-            add(STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("\n\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
-    }
+    public void addTraceSdkDependency_UnmarkedApplyKept() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(buildFile, "// app\napply from: \"traceSdk.gradle\"", Charset.defaultCharset());
 
-    /*
+        assertThat(addTraceSdkDependency(buildFile), is(0));
+    }
 
-    // */
     @Test
-    public void removeCommentedCode_mixedCommentMultiLine2() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(GREEDY_COMMENT_START + STRING_CONTENT);
-            add(STRING_CONTENT);
-            add(LINE_COMMENT + STRING_CONTENT + GREEDY_COMMENT_END + STRING_CONTENT);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = String.format("\n%1$s\n", STRING_CONTENT);
-        assertThat(actual, equalTo(expected));
+    public void addTraceSdkDependency_ApplyInStringLiteralIgnored() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(buildFile, "println 'apply from: \"traceSdk.gradle\"'", Charset.defaultCharset());
+
+        assertThat(addTraceSdkDependency(buildFile), is(1));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("println 'apply from: \"traceSdk.gradle\"'\n// Bitrise Trace begin: traceSdk.gradle\n" +
+                        "apply from: rootProject.file(\"gradle/traceSdk.gradle\")\n" +
+                        "// Bitrise Trace end: traceSdk.gradle"));
     }
 
     @Test
-    public void removeCommentedCode_DoNotModifyStrings() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(STRING_CONTENT_WITH_LITERAL);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = STRING_CONTENT_WITH_LITERAL + "\n";
-        assertThat(actual, equalTo(expected));
+    public void addTraceGradlePluginDependency_SecondRunIsNoOp() throws IOException {
+        final File tempFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(tempFile, DUMMY_BUILD_GRADLE_CONTENT_3, Charset.defaultCharset());
+
+        final BuildFileTransaction first = new BuildFileTransaction();
+        InjectTraceTask.addTraceGradlePluginDependency(first.edit(tempFile.toPath()),
+                InjectTraceTask.DYNAMIC_VERSION, null);
+        assertThat(first.commit(), is(1));
+
+        final BuildFileTransaction second = new BuildFileTransaction();
+        InjectTraceTask.addTraceGradlePluginDependency(second.edit(tempFile.toPath()),
+                InjectTraceTask.DYNAMIC_VERSION, null);
+        assertThat(second.commit(), is(0));
     }
 
     @Test
-    public void removeCommentedCode_DoNotModifyChars() {
-        final ArrayList<String> codeLines = new ArrayList<String>() {{
-            add(STRING_CONTENT_WITH_CHAR_LITERAL);
-        }};
-        final String actual = InjectTraceTask.removeCommentedCode(codeLines);
-        final String expected = STRING_CONTENT_WITH_CHAR_LITERAL + "\n";
-        assertThat(actual, equalTo(expected));
+    public void injectTraceGradlePluginApply_SharedBuildFileWrittenOnce() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle");
+        FileUtils.writeStringToFile(buildFile, "// app", Charset.defaultCharset());
+
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.addTraceSdkDependency(transaction.edit(buildFile.toPath()),
+                InjectTraceTask.DYNAMIC_VERSION, null);
+        InjectTraceTask.injectTraceGradlePluginApply(transaction.edit(buildFile.toPath()));
+        assertThat(transaction.commit(), is(1));
+
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("// app\n// Bitrise Trace begin: traceSdk.gradle\n" +
+                        "apply from: rootProject.file(\"gradle/traceSdk.gradle\")\n" +
+                        "// Bitrise Trace end: traceSdk.gradle\n// Bitrise Trace begin: tracePlugin.gradle\n" +
+                        "apply from: rootProject.file(\"gradle/tracePlugin.gradle\")\n" +
+                        "// Bitrise Trace end: tracePlugin.gradle"));
     }
-    // endregion
 
-    // region getIndexOfFromCode tests
+    @Test
+    public void addTraceSdkDependency_KotlinDependenciesBlock() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle.kts");
+        FileUtils.writeStringToFile(buildFile, "plugins {\n    id(\"com.android.application\")\n}\n" +
+                "dependencies {\n    implementation(project(\":lib\"))\n}\n", Charset.defaultCharset());
+
+        assertThat(addTraceSdkDependency(buildFile), is(1));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("plugins {\n    id(\"com.android.application\")\n}\ndependencies {\n" +
+                        "    // Bitrise Trace begin: trace-sdk dependency\n" +
+                        "    \"implementation\"(\"io.bitrise.trace:trace-sdk:+\")\n" +
+                        "    // Bitrise Trace end: trace-sdk dependency\n" +
+                        "    implementation(project(\":lib\"))\n}\n"));
+        assertThat(addTraceSdkDependency(buildFile), is(0));
+    }
 
     @Test
-    public void getIndexOfFromCode_ShouldFind() {
-        final int actual = InjectTraceTask.getIndexOfFromCode(STRING_CONTENT, "dummy");
-        assertThat(actual, equalTo(10));
+    public void addTraceSdkDependency_KotlinNoDependenciesBlock() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle.kts");
+        FileUtils.writeStringToFile(buildFile, "buildscript {\n    dependencies {\n    }\n}\n" +
+                "apply(plugin = \"com.android.application\")", Charset.defaultCharset());
+
+        assertThat(addTraceSdkDependency(buildFile), is(1));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("buildscript {\n    dependencies {\n    }\n}\napply(plugin = \"com.android.application\")\n" +
+                        "// Bitrise Trace begin: trace-sdk dependencies\ndependencies {\n" +
+                        "    \"implementation\"(\"io.bitrise.trace:trace-sdk:+\")\n}\n" +
+                        "// Bitrise Trace end: trace-sdk dependencies"));
+        assertThat(addTraceSdkDependency(buildFile), is(0));
     }
 
     @Test
-    public void getIndexOfFromCode_StringLiteral_ShouldNotFind() {
-        final int actual = InjectTraceTask.getIndexOfFromCode(STRING_CONTENT_WITH_LITERAL, "http");
-        assertThat(actual, equalTo(-1));
+    public void injectTraceGradlePluginApply_KotlinReplacesScriptApply() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle.kts");
+        FileUtils.writeStringToFile(buildFile, "// app\n// Bitrise Trace begin: tracePlugin.gradle\n" +
+                "apply(from = rootProject.file(\"gradle/tracePlugin.gradle\"))\n" +
+                "// Bitrise Trace end: tracePlugin.gradle", Charset.defaultCharset());
+
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.injectTraceGradlePluginApply(transaction.edit(buildFile.toPath()));
+        transaction.commit();
+
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("// app\n// Bitrise Trace begin: trace-gradle-plugin apply\n" +
+                        "apply(plugin = \"io.bitrise.trace.plugin\")\n" +
+                        "// Bitrise Trace end: trace-gradle-plugin apply"));
     }
 
     @Test
-    public void getIndexOfFromCode_CharLiteral_ShouldNotFind() {
-        final int actual = InjectTraceTask.getIndexOfFromCode(STRING_CONTENT_WITH_CHAR_LITERAL, "http");
-        assertThat(actual, equalTo(-1));
+    public void copyGradleFile_CreatesDirectoryOnce() throws IOException {
+        final File stepSourceDir = tempFolder.newFolder("step");
+        final File sharedScriptDir = new File(tempFolder.getRoot(), "gradle");
+        FileUtils.writeStringToFile(new File(stepSourceDir, "traceSdk.gradle"), "// sdk", Charset.defaultCharset());
+
+        final BuildFileTransaction first = new BuildFileTransaction();
+        InjectTraceTask.copyGradleFile(stepSourceDir.toPath(), sharedScriptDir.toPath(), "traceSdk.gradle", first);
+        assertThat(first.commit(), is(1));
+        assertThat(FileUtils.readFileToString(new File(sharedScriptDir, "traceSdk.gradle"), Charset.defaultCharset()),
+                equalTo("// sdk"));
+
+        final BuildFileTransaction second = new BuildFileTransaction();
+        InjectTraceTask.copyGradleFile(stepSourceDir.toPath(), sharedScriptDir.toPath(), "traceSdk.gradle", second);
+        assertThat(second.commit(), is(0));
     }
-    // endRegion
 
-    // region hasDependency tests
-    private final static String DUMMY_DEPENDENCY_NAME = "dummy-dependency";
-    private final static String DUMMY_DEPENDENCY_GROUP_NAME = "io.bitrise.dummy";
-    private final static Dependency DUMMY_DEPENDENCY = mock(Dependency.class);
+    @Test
+    public void copyTraceSdkGradleFile_PinnedVersion() throws IOException {
+        final File stepSourceDir = tempFolder.newFolder("step");
+        final File sharedScriptDir = new File(tempFolder.getRoot(), "gradle");
+        FileUtils.writeStringToFile(new File(stepSourceDir, "traceSdk.gradle"),
+                "dependencies {\n    implementation(\"io.bitrise.trace:trace-sdk:+\")\n}", Charset.defaultCharset());
 
-    static {
-        when(DUMMY_DEPENDENCY.getName()).thenReturn(DUMMY_DEPENDENCY_NAME);
-        when(DUMMY_DEPENDENCY.getGroup()).thenReturn(DUMMY_DEPENDENCY_GROUP_NAME);
+        final BuildFileTransaction first = new BuildFileTransaction();
+        InjectTraceTask.copyTraceSdkGradleFile(stepSourceDir.toPath(), sharedScriptDir.toPath(), "0.0.10", null,
+                true, first);
+        assertThat(first.commit(), is(1));
+        assertThat(FileUtils.readFileToString(new File(sharedScriptDir, "traceSdk.gradle"), Charset.defaultCharset()),
+                equalTo("dependencies {\n    implementation(\"io.bitrise.trace:trace-sdk:0.0.10\")\n}"));
+
+        final BuildFileTransaction second = new BuildFileTransaction();
+        InjectTraceTask.copyTraceSdkGradleFile(stepSourceDir.toPath(), sharedScriptDir.toPath(), "0.0.10", null,
+                true, second);
+        assertThat(second.commit(), is(0));
     }
 
     @Test
-    public void hasDependency_True() {
-        final DefaultConfiguration mockConfiguration = mock(DefaultConfiguration.class);
-        final DefaultDependencySet mockDependencySet = mock(DefaultDependencySet.class);
-        when(mockDependencySet.iterator()).thenReturn(Collections.singletonList(DUMMY_DEPENDENCY).iterator());
-        when(mockConfiguration.getAllDependencies()).thenReturn(mockDependencySet);
+    public void setTraceSdkVersion_ReplacesVersion() {
+        assertThat(InjectTraceTask.setTraceSdkVersion("implementation 'io.bitrise.trace:trace-sdk:0.0.7'", "0.0.10"),
+                equalTo("implementation 'io.bitrise.trace:trace-sdk:0.0.10'"));
+        assertThat(InjectTraceTask.setTraceSdkVersion("// sdk", "0.0.10"), equalTo("// sdk"));
+    }
 
-        final boolean actualValue = InjectTraceTask.hasDependency(mockConfiguration, DUMMY_DEPENDENCY_NAME,
-                DUMMY_DEPENDENCY_GROUP_NAME);
-        assertThat(actualValue, is(true));
+    @Test
+    public void resolveVersion_FallsBackToDynamic() throws IOException {
+        final CachedVersionResolver resolver = new CachedVersionResolver(tempFolder.newFolder("gradle-home"));
+
+        assertThat(InjectTraceTask.resolveVersion(InjectTraceTask.VersionResolution.CACHED, resolver,
+                "io.bitrise.trace", "trace-sdk"), equalTo(InjectTraceTask.DYNAMIC_VERSION));
+        assertThat(InjectTraceTask.resolveVersion(InjectTraceTask.VersionResolution.DYNAMIC, resolver,
+                "io.bitrise.trace", "trace-sdk"), equalTo(InjectTraceTask.DYNAMIC_VERSION));
     }
 
     @Test
-    public void hasDependency_False() {
-        final DefaultConfiguration mockConfiguration = mock(DefaultConfiguration.class);
-        final DefaultDependencySet mockDependencySet = mock(DefaultDependencySet.class);
-        final Dependency someOtherDependency = mock(Dependency.class);
-        when(someOtherDependency.getName()).thenReturn(DUMMY_DEPENDENCY_NAME);
-        when(someOtherDependency.getGroup()).thenReturn("not.bitrise.group");
+    public void addTraceSdkDependency_KotlinPinnedVersion() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle.kts");
+        FileUtils.writeStringToFile(buildFile, "dependencies {\n}", Charset.defaultCharset());
 
-        when(mockDependencySet.iterator()).thenReturn(Collections.singletonList(someOtherDependency).iterator());
-        when(mockConfiguration.getAllDependencies()).thenReturn(mockDependencySet);
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.addTraceSdkDependency(transaction.edit(buildFile.toPath()), "0.0.10", null);
+        transaction.commit();
 
-        final boolean actualValue = InjectTraceTask.hasDependency(mockConfiguration, DUMMY_DEPENDENCY_NAME,
-                DUMMY_DEPENDENCY_GROUP_NAME);
-        assertThat(actualValue, is(false));
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                equalTo("dependencies {\n    // Bitrise Trace begin: trace-sdk dependency\n" +
+                        "    \"implementation\"(\"io.bitrise.trace:trace-sdk:0.0.10\")\n" +
+                        "    // Bitrise Trace end: trace-sdk dependency\n}"));
     }
-    // endregion
 
-    // region getContentToAppend tests
-    private static final String DUMMY_GRADLE_FILE_NAME = "dummy.gradle";
+    /**
+     * Creates a local Maven repository with an artifact of each of the Trace groups, as a stand-in for Maven Central.
+     *
+     * @return the directory of the repository.
+     * @throws IOException when any I/O error occurs with the files.
+     */
+    private File createLocalRepository() throws IOException {
+        final File repository = tempFolder.newFolder("trace-repository");
+        final File sdkDir = new File(repository, "io/bitrise/trace/trace-sdk/0.0.10");
+        final File pluginDir = new File(repository, "io/bitrise/trace/plugin/trace-gradle-plugin/0.0.10");
+        FileUtils.writeStringToFile(new File(sdkDir, "trace-sdk-0.0.10.aar"), "aar", Charset.defaultCharset());
+        FileUtils.writeStringToFile(new File(pluginDir, "trace-gradle-plugin-0.0.10.jar"), "jar",
+                Charset.defaultCharset());
+        return repository;
+    }
 
     @Test
-    public void getContentToAppend_Groovy() {
-        final String actual = InjectTraceTask.getContentToAppend("build.gradle", DUMMY_GRADLE_FILE_NAME);
-        assertThat(actual, equalTo(String.format("\napply from: \"%s\"", DUMMY_GRADLE_FILE_NAME)));
+    public void getLocalRepositoryUrl_Directory() throws IOException {
+        final File repository = createLocalRepository();
+
+        assertThat(InjectTraceTask.getLocalRepositoryUrl(repository.getPath(), tempFolder.newFolder("project")),
+                equalTo(repository.toURI().toString()));
+        assertThat(InjectTraceTask.getLocalRepositoryUrl(null, tempFolder.getRoot()), is(nullValue()));
     }
 
     @Test
-    public void getContentToAppend_Kotlin() {
-        final String actual = InjectTraceTask.getContentToAppend("build.gradle.kts", DUMMY_GRADLE_FILE_NAME);
-        assertThat(actual, equalTo(String.format("\napply(\"%s\")", DUMMY_GRADLE_FILE_NAME)));
+    public void getLocalRepositoryUrl_DirectoryInRootProject() throws IOException {
+        final File repository = createLocalRepository();
+
+        final String url = InjectTraceTask.getLocalRepositoryUrl(repository.getPath(), tempFolder.getRoot());
+
+        assertThat(url, equalTo(repository.getName() + "/"));
+        assertThat(InjectTraceTask.getExclusiveContent(url, ""),
+                containsString("forRepository { maven { url = uri(rootProject.file(\"" + url + "\")) } }"));
     }
 
     @Test(expected = IllegalStateException.class)
-    public void getContentToAppend_None() {
-        InjectTraceTask.getContentToAppend("README.md", DUMMY_GRADLE_FILE_NAME);
+    public void getLocalRepositoryUrl_NotDirectory() throws IOException {
+        InjectTraceTask.getLocalRepositoryUrl(tempFolder.newFile("trace-repository.tar.gz").getPath(),
+                tempFolder.getRoot());
     }
-    // endregion
 
-    // region updateBuildScriptContent
-    @Rule
-    public TemporaryFolder tempFolder = new TemporaryFolder();
+    @Test
+    public void getBuildScriptRepositoryContent_LocalRepository() throws IOException {
+        final String url = createLocalRepository().toURI().toString();
 
-    private final static String DUMMY_BUILD_GRADLE_CONTENT_1 = "\n" +
-            "someContent\n" +
-            "buildscript {" +
-            "%s" +
-            "    repositories {\n" +
-            "        mavenLocal()\n" +
-            "        google()\n" +
-            "        mavenCentral()\n" +
-            "    }\n" +
-            "    dependencies {\n" +
-            "        classpath 'com.android.tools.build:gradle:4.0.2'\n" +
-            "    }\n" +
-            "} " +
-            "\nsomeOtherContent";
+        final String actual = InjectTraceTask.getBuildScriptRepositoryContent(url);
+        assertThat(actual, containsString("      exclusiveContent {\n" +
+                "         forRepository { maven { url = uri(\"" + url + "\") } }\n"));
+        assertThat(actual, not(containsString("mavenCentral()")));
+    }
 
-    private final static String DUMMY_BUILD_GRADLE_CONTENT_2 = "\n" +
-            "def stringName = \"buildscript {\"" +
-            DUMMY_BUILD_GRADLE_CONTENT_1;
+    @Test
+    public void copyTraceSdkGradleFile_LocalRepository() throws IOException {
+        final File stepSourceDir = tempFolder.newFolder("step");
+        final File sharedScriptDir = new File(tempFolder.getRoot(), "gradle");
+        FileUtils.writeStringToFile(new File(stepSourceDir, "traceSdk.gradle"),
+                "repositories {\n    mavenCentral()\n}", Charset.defaultCharset());
+        final String url = createLocalRepository().toURI().toString();
 
-    private final static String DUMMY_BUILD_GRADLE_CONTENT_3 = "\n" +
-            "someContent\n" +
-            " dependencies {" +
-            "   implementation fileTree(dir: 'libs', include: ['*.jar'])\n" +
-            "   implementation \"io.bitrise.trace:trace-sdk:0.0.7\"" +
-            "}" +
-            "\nsomeOtherContent";
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.copyTraceSdkGradleFile(stepSourceDir.toPath(), sharedScriptDir.toPath(),
+                InjectTraceTask.DYNAMIC_VERSION, url, true, transaction);
+        assertThat(transaction.commit(), is(1));
+        assertThat(FileUtils.readFileToString(new File(sharedScriptDir, "traceSdk.gradle"), Charset.defaultCharset()),
+                equalTo("repositories {\n" + InjectTraceTask.getExclusiveContent(url, "    ") +
+                        "\n    mavenCentral()\n}"));
+    }
 
     @Test
-    public void updateBuildScriptContent_BuildScriptShouldBeUpdated() throws IOException {
-        final File tempFile = tempFolder.newFile("build.gradle");
-        FileUtils.writeStringToFile(tempFile, String.format(DUMMY_BUILD_GRADLE_CONTENT_1, "\n"),
-                Charset.defaultCharset());
+    public void addTraceSdkRepository_NoRepositoriesBlock() {
+        final String url = "file:/trace-repository/";
 
-        InjectTraceTask.updateBuildScriptContent(tempFile.getPath());
+        assertThat(InjectTraceTask.addTraceSdkRepository("// sdk", url),
+                equalTo("// sdk\n\nrepositories {\n" + InjectTraceTask.getExclusiveContent(url, "    ") + "\n}\n"));
+    }
 
-        final String actual = FileUtils.readFileToString(tempFile, Charset.defaultCharset());
-        final String expected = String.format(DUMMY_BUILD_GRADLE_CONTENT_1 + "\n",
-                InjectTraceTask.getTraceGradlePluginDependency() + InjectTraceTask.getBuildScriptRepositoryContent() + "\n");
+    @Test
+    public void copyTraceSdkGradleFile_ProjectRepositoriesNotAllowed() throws IOException {
+        final File stepSourceDir = tempFolder.newFolder("step");
+        final File sharedScriptDir = new File(tempFolder.getRoot(), "gradle");
+        FileUtils.writeStringToFile(new File(stepSourceDir, "traceSdk.gradle"),
+                "repositories {\n    mavenCentral()\n}\n\ndependencies {\n" +
+                        "    implementation(\"io.bitrise.trace:trace-sdk:+\")\n}", Charset.defaultCharset());
+        final String url = createLocalRepository().toURI().toString();
 
-        assertThat(actual, equalTo(expected));
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.copyTraceSdkGradleFile(stepSourceDir.toPath(), sharedScriptDir.toPath(),
+                InjectTraceTask.DYNAMIC_VERSION, url, false, transaction);
+        assertThat(transaction.commit(), is(1));
+        assertThat(FileUtils.readFileToString(new File(sharedScriptDir, "traceSdk.gradle"), Charset.defaultCharset()),
+                equalTo("dependencies {\n    implementation(\"io.bitrise.trace:trace-sdk:+\")\n}"));
     }
 
     @Test
-    public void updateBuildScriptContent_LiteralsShouldNotBeAffected() throws IOException {
-        final File tempFile = tempFolder.newFile("build.gradle");
-        FileUtils.writeStringToFile(tempFile, String.format(DUMMY_BUILD_GRADLE_CONTENT_2, "\n"),
-                Charset.defaultCharset());
-
-        InjectTraceTask.updateBuildScriptContent(tempFile.getPath());
+    public void allowsProjectRepositories_RepositoriesModes() {
+        assertThat(InjectTraceTask.allowsProjectRepositories("dependencyResolutionManagement {\n" +
+                "    repositoriesMode.set(RepositoriesMode.FAIL_ON_PROJECT_REPOS)\n}", BuildScriptLexer.Dialect.KOTLIN),
+                is(false));
+        assertThat(InjectTraceTask.allowsProjectRepositories("dependencyResolutionManagement {\n" +
+                "    repositoriesMode.set(RepositoriesMode.PREFER_SETTINGS)\n}", BuildScriptLexer.Dialect.GROOVY),
+                is(false));
+        assertThat(InjectTraceTask.allowsProjectRepositories("dependencyResolutionManagement {\n" +
+                "    repositoriesMode.set(RepositoriesMode.PREFER_PROJECT)\n}", BuildScriptLexer.Dialect.GROOVY),
+                is(true));
+    }
 
-        final String actual = FileUtils.readFileToString(tempFile, Charset.defaultCharset());
-        final String expected = String.format(DUMMY_BUILD_GRADLE_CONTENT_2 + "\n",
-                InjectTraceTask.getTraceGradlePluginDependency() + InjectTraceTask.getBuildScriptRepositoryContent() + "\n");
+    @Test
+    public void allowsProjectRepositories_ModeInComment() {
+        assertThat(InjectTraceTask.allowsProjectRepositories("// RepositoriesMode.FAIL_ON_PROJECT_REPOS\n" +
+                "include(\":app\")", BuildScriptLexer.Dialect.KOTLIN), is(true));
+    }
 
-        assertThat(actual, equalTo(expected));
+    @Test
+    public void getProjectRepositoryUrl_ProjectRepositoriesNotAllowed() {
+        assertThat(InjectTraceTask.getProjectRepositoryUrl("file:/repository/", true), equalTo("file:/repository/"));
+        assertThat(InjectTraceTask.getProjectRepositoryUrl("file:/repository/", false), is(nullValue()));
+        assertThat(InjectTraceTask.getProjectRepositoryUrl(null, true), is(nullValue()));
     }
 
     @Test
-    public void updateBuildScriptContent_NoMatch() throws IOException {
-        final File tempFile = tempFolder.newFile("build.gradle");
-        FileUtils.writeStringToFile(tempFile, DUMMY_BUILD_GRADLE_CONTENT_3,  Charset.defaultCharset());
+    public void addTraceSdkDependency_KotlinLocalRepository() throws IOException {
+        final File buildFile = tempFolder.newFile("build.gradle.kts");
+        FileUtils.writeStringToFile(buildFile, "dependencies {\n}", Charset.defaultCharset());
+        final String url = createLocalRepository().toURI().toString();
 
-        final boolean actual = InjectTraceTask.updateBuildScriptContent(tempFile.getPath());
-        assertThat(actual, equalTo(false));
+        final BuildFileTransaction first = new BuildFileTransaction();
+        InjectTraceTask.addTraceSdkDependency(first.edit(buildFile.toPath()), "0.0.10", url);
+        first.commit();
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                containsString("// Bitrise Trace begin: trace-sdk repository\nrepositories {\n" +
+                        InjectTraceTask.getExclusiveContent(url, "    ") +
+                        "\n}\n// Bitrise Trace end: trace-sdk repository"));
+
+        final BuildFileTransaction second = new BuildFileTransaction();
+        InjectTraceTask.addTraceSdkDependency(second.edit(buildFile.toPath()), "0.0.10", null);
+        second.commit();
+        assertThat(FileUtils.readFileToString(buildFile, Charset.defaultCharset()),
+                not(containsString("trace-sdk repository")));
     }
 
     @Test
@@ -480,39 +672,14 @@ public class InjectTraceTaskTest {
 
         final String dummyTopContent = "THIS SHOULD BE ON THE TOP";
         final List<String> originalContent = Files.readAllLines(Paths.get(tempFile.getPath()), StandardCharsets.UTF_8);
-        InjectTraceTask.appendContentToTop(tempFile.getPath(), dummyTopContent + "\n");
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        InjectTraceTask.appendContentToTop(transaction.edit(tempFile.toPath()), dummyTopContent + "\n");
+        transaction.commit();
 
         final List<String> expected = originalContent;
         originalContent.add(0, dummyTopContent);
         final List<String> actual = Files.readAllLines(Paths.get(tempFile.getPath()), StandardCharsets.UTF_8);
         assertEquals(expected, actual);
     }
-
-    @Test
-    public void findStringLiterals_EmptyResult() {
-        final List<InjectTraceTask.Range> actual = InjectTraceTask.findStringLiterals(STRING_CONTENT);
-        final List<InjectTraceTask.Range> expected = new ArrayList<>();
-
-        assertThat(actual, is(expected));
-    }
-
-    @Test
-    public void findStringLiterals_SingleResult() {
-        final List<InjectTraceTask.Range> actual = InjectTraceTask.findStringLiterals(DUMMY_BUILD_GRADLE_CONTENT_1);
-        final List<InjectTraceTask.Range> expected = new ArrayList<>();
-        expected.add(new InjectTraceTask.Range(151, 189));
-
-        assertThat(actual, is(expected));
-    }
-
-    @Test
-    public void findStringLiterals_MultiResult() {
-        final List<InjectTraceTask.Range> actual = InjectTraceTask.findStringLiterals(DUMMY_BUILD_GRADLE_CONTENT_2);
-        final List<InjectTraceTask.Range> expected = new ArrayList<>();
-        expected.add(new InjectTraceTask.Range(18, 33));
-        expected.add(new InjectTraceTask.Range(184, 222));
-
-        assertThat(actual, is(expected));
-    }
     //endregion
 }
\ No newline at end of file
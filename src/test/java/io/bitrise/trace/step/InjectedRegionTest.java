@@ -0,0 +1,113 @@
+package io.bitrise.trace.step;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Test cases for {@link InjectedRegion}.
+ */
+public class InjectedRegionTest {
+
+    private static final String ID = "traceSdk.gradle";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static InjectedRegion find(final String content, final BuildScriptLexer.Dialect dialect) {
+        return InjectedRegion.find(BuildScriptLexer.tokenize(content, dialect), ID);
+    }
+
+    @Test
+    public void find_WrappedContent() {
+        final String prefix = "android {\n}\n";
+        final String content = prefix + InjectedRegion.wrap(ID, "\napply from: \"traceSdk.gradle\"") + "\n// end";
+        final InjectedRegion region = find(content, BuildScriptLexer.Dialect.GROOVY);
+
+        assertThat(region, is(notNullValue()));
+        assertThat(region.getStart(), is(prefix.length()));
+        assertThat(content.substring(region.getBodyStart(), region.getBodyEnd()),
+                equalTo("\napply from: \"traceSdk.gradle\"\n"));
+        assertThat(content.substring(region.getEnd()), equalTo("\n// end"));
+    }
+
+    @Test
+    public void find_WindowsLineBreaks() {
+        final String content = "// Bitrise Trace begin: traceSdk.gradle\r\napply(\"traceSdk.gradle\")\r\n" +
+                "// Bitrise Trace end: traceSdk.gradle\r\n";
+        assertThat(find(content, BuildScriptLexer.Dialect.KOTLIN), is(notNullValue()));
+    }
+
+    @Test
+    public void find_OtherIdOrNoEndMarker() {
+        assertThat(find(InjectedRegion.wrap("tracePlugin.gradle", "\n"), BuildScriptLexer.Dialect.GROOVY),
+                is(nullValue()));
+        assertThat(find("// Bitrise Trace begin: traceSdk.gradle\napply from: \"traceSdk.gradle\"",
+                BuildScriptLexer.Dialect.GROOVY), is(nullValue()));
+    }
+
+    @Test
+    public void findIds_RegionsWithBothMarkers() {
+        final String content = InjectedRegion.wrap(ID, "\napply from: \"traceSdk.gradle\"") + "\n" +
+                "dependencies {\n" +
+                "    " + InjectedRegion.wrap("trace-sdk dependency", "\n    implementation(\"x:y:1\")") + "\n" +
+                "}\n" +
+                "// Bitrise Trace begin: tracePlugin.gradle\n" +
+                "def text = \"// Bitrise Trace end: tracePlugin.gradle\"";
+        assertThat(InjectedRegion.findIds(BuildScriptLexer.tokenize(content, BuildScriptLexer.Dialect.KOTLIN)),
+                containsInAnyOrder(ID, "trace-sdk dependency"));
+    }
+
+    @Test
+    public void findIds_NoRegion() {
+        assertThat(InjectedRegion.findIds(BuildScriptLexer.tokenize("apply plugin: \"x\"\n// comment",
+                BuildScriptLexer.Dialect.GROOVY)), equalTo(Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void find_MarkerInStringLiteral() {
+        final String content = "def text = \"// Bitrise Trace begin: traceSdk.gradle\"\n" +
+                "// Bitrise Trace end: traceSdk.gradle";
+        assertThat(find(content, BuildScriptLexer.Dialect.GROOVY), is(nullValue()));
+    }
+
+    @Test
+    public void update_OnlyWhenChanged() throws IOException {
+        final Path path = tempFolder.newFile("build.gradle").toPath();
+        Files.write(path, ("// app\n" + InjectedRegion.wrap(ID, "\nold")).getBytes(StandardCharsets.UTF_8));
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        final BuildFileTransaction.BuildFile buildFile = transaction.edit(path);
+
+        assertThat(InjectedRegion.find(buildFile.getTokens(), ID).update(buildFile, "\nold", ""), is(false));
+        assertThat(buildFile.isModified(), is(false));
+        assertThat(InjectedRegion.find(buildFile.getTokens(), ID).update(buildFile, "\nnew", ""), is(true));
+        assertThat(buildFile.getContent().toString(), equalTo("// app\n" + InjectedRegion.wrap(ID, "\nnew")));
+    }
+
+    @Test
+    public void update_IndentedRegion() throws IOException {
+        final Path path = tempFolder.newFile("build.gradle").toPath();
+        Files.write(path, ("dependencies {\n" + InjectedRegion.wrap(ID, "\n    old", "    ") + "\n}")
+                .getBytes(StandardCharsets.UTF_8));
+        final BuildFileTransaction transaction = new BuildFileTransaction();
+        final BuildFileTransaction.BuildFile buildFile = transaction.edit(path);
+
+        assertThat(InjectedRegion.find(buildFile.getTokens(), ID).update(buildFile, "\n    old", "    "), is(false));
+        assertThat(InjectedRegion.find(buildFile.getTokens(), ID).update(buildFile, "\n    new", "    "), is(true));
+        assertThat(buildFile.getContent().toString(), equalTo("dependencies {\n    // Bitrise Trace begin: " + ID +
+                "\n    new\n    // Bitrise Trace end: " + ID + "\n}"));
+    }
+}
@@ -0,0 +1,32 @@
+package io.bitrise.trace.step;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Test cases for {@link IntervalIndex}.
+ */
+public class IntervalIndexTest {
+
+    // region Builder tests
+    @Test
+    public void builder_SortedIntervals() {
+        final IntervalIndex index = new IntervalIndex.Builder().add(2, 5).add(5, 6).add(10, 20).build();
+        assertThat(index.size(), is(3));
+        assertThat(index.start(1), is(5));
+        assertThat(index.end(2), is(20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void builder_OverlappingIntervals() {
+        new IntervalIndex.Builder().add(0, 5).add(4, 6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void builder_InvalidInterval() {
+        new IntervalIndex.Builder().add(5, 4);
+    }
+    // endregion
+}
@@ -0,0 +1,52 @@
+package io.bitrise.trace.step;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Test cases for {@link MarkerScanner}.
+ */
+public class MarkerScannerTest {
+
+    @Test
+    public void isMarker_AllAsciiCharacters() {
+        final String markers = "\n\"$'*/?@[\\]{}~";
+        final MarkerScanner scanner = MarkerScanner.of(markers);
+        for (char c = 0; c < 256; c++) {
+            assertThat(String.valueOf((int) c), scanner.isMarker(c), is(markers.indexOf(c) >= 0));
+        }
+    }
+
+    @Test
+    public void isMarker_NonAsciiCharacters() {
+        final MarkerScanner scanner = MarkerScanner.of("\"");
+        // Same lowest 6 bits as '"'
+        assertThat(scanner.isMarker((char) ('"' + 128)), is(false));
+        assertThat(scanner.isMarker('\u0151'), is(false));
+        assertThat(scanner.isMarker('\uffe2'), is(false));
+    }
+
+    @Test
+    public void indexOf_FirstMarker() {
+        final MarkerScanner scanner = MarkerScanner.of("\"\\");
+        final String text = "abc \\\" def\"";
+        assertThat(scanner.indexOf(text, 0, text.length()), is(4));
+        assertThat(scanner.indexOf(text, 5, text.length()), is(5));
+        assertThat(scanner.indexOf(text, 6, text.length()), is(10));
+    }
+
+    @Test
+    public void indexOf_NoMarker() {
+        final MarkerScanner scanner = MarkerScanner.of("{}");
+        final String text = "abc{";
+        assertThat(scanner.indexOf(text, 0, 3), is(3));
+        assertThat(scanner.indexOf(text, 4, 4), is(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void of_NonAsciiMarker() {
+        MarkerScanner.of("\u00e9");
+    }
+}
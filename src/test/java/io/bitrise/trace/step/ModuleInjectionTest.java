@@ -0,0 +1,53 @@
+package io.bitrise.trace.step;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+/**
+ * Test cases for {@link ModuleInjection}.
+ */
+public class ModuleInjectionTest {
+
+    private static ModuleInjection create(final boolean addTraceSdkDependency,
+                                          final boolean addTraceGradlePluginDependency,
+                                          final boolean applyTraceGradlePlugin) {
+        return new ModuleInjection(":apps:app", new File("apps/app/build.gradle"),
+                addTraceSdkDependency, addTraceGradlePluginDependency, applyTraceGradlePlugin);
+    }
+
+    @Test
+    public void hasEdits() {
+        assertThat(create(false, false, false).hasEdits(), is(false));
+        assertThat(create(false, true, false).hasEdits(), is(true));
+    }
+
+    @Test
+    public void equals_DifferentEdits() {
+        assertThat(create(true, true, true), equalTo(create(true, true, true)));
+        assertThat(create(true, true, true).hashCode(), equalTo(create(true, true, true).hashCode()));
+        assertThat(create(true, true, true), not(equalTo(create(true, true, false))));
+    }
+
+    @Test
+    public void serialization_RoundTrip() throws IOException, ClassNotFoundException {
+        final ModuleInjection expected = create(true, false, true);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(expected);
+        }
+        try (final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertThat(input.readObject(), equalTo(expected));
+        }
+    }
+}
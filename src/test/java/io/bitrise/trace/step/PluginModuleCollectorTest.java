@@ -0,0 +1,154 @@
+package io.bitrise.trace.step;
+
+import org.gradle.StartParameter;
+import org.gradle.api.Action;
+import org.gradle.api.Project;
+import org.gradle.api.invocation.Gradle;
+import org.gradle.api.plugins.AppliedPlugin;
+import org.gradle.api.plugins.PluginManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for {@link PluginModuleCollector}.
+ */
+public class PluginModuleCollectorTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static boolean mayApplyPlugin(final String content, final BuildScriptLexer.Dialect dialect) {
+        return PluginModuleCollector.mayApplyPlugin(BuildScriptLexer.tokenize(content, dialect).getCode(),
+                PluginModuleCollector.getMarkers("com.android.application", "com.android.dynamic-feature"));
+    }
+
+    @Test
+    public void getMarkers() {
+        final List<String> actual = PluginModuleCollector.getMarkers("com.android.application",
+                "com.android.dynamic-feature", "java");
+        assertThat(actual, equalTo(Arrays.asList("com.android.application", "android.application",
+                "com.android.dynamic-feature", "android.dynamic.feature", "java")));
+    }
+
+    @Test
+    public void mayApplyPlugin_Groovy() {
+        assertThat(mayApplyPlugin("apply plugin: 'com.android.application'\n", BuildScriptLexer.Dialect.GROOVY),
+                is(true));
+        assertThat(mayApplyPlugin("plugins {\n    id 'com.android.dynamic-feature'\n}\n",
+                BuildScriptLexer.Dialect.GROOVY), is(true));
+    }
+
+    @Test
+    public void mayApplyPlugin_KotlinVersionCatalog() {
+        assertThat(mayApplyPlugin("plugins {\n    alias(libs.plugins.android.application)\n}\n",
+                BuildScriptLexer.Dialect.KOTLIN), is(true));
+        assertThat(mayApplyPlugin("plugins {\n    alias(libs.plugins.android.dynamic.feature)\n}\n",
+                BuildScriptLexer.Dialect.KOTLIN), is(true));
+    }
+
+    @Test
+    public void mayApplyPlugin_CommentedOut() {
+        assertThat(mayApplyPlugin("// apply plugin: 'com.android.application'\napply plugin: 'com.android.library'\n" +
+                "/* id 'com.android.dynamic-feature' */\n", BuildScriptLexer.Dialect.GROOVY), is(false));
+    }
+
+    /**
+     * Mocks a project, and captures the withPlugin callbacks registered on it.
+     */
+    private static Project mockProject(final String path, final Map<String, Action<AppliedPlugin>> callbacks) {
+        final Project project = mock(Project.class);
+        final PluginManager pluginManager = mock(PluginManager.class);
+        when(project.getPath()).thenReturn(path);
+        when(project.getPluginManager()).thenReturn(pluginManager);
+        doAnswer(invocation -> {
+            callbacks.put(path + "|" + invocation.getArgument(0), invocation.getArgument(1));
+            return null;
+        }).when(pluginManager).withPlugin(anyString(), any());
+        return project;
+    }
+
+    private static Project mockRoot(final boolean configureOnDemand, final Project... projects) {
+        final Project root = projects[0];
+        final Gradle gradle = mock(Gradle.class);
+        final StartParameter startParameter = mock(StartParameter.class);
+        when(startParameter.isConfigureOnDemand()).thenReturn(configureOnDemand);
+        when(gradle.getStartParameter()).thenReturn(startParameter);
+        when(root.getGradle()).thenReturn(gradle);
+        when(root.getAllprojects()).thenReturn(new LinkedHashSet<>(Arrays.asList(projects)));
+        when(root.getSubprojects()).thenReturn(
+                new LinkedHashSet<>(Arrays.asList(projects).subList(1, projects.length)));
+        return root;
+    }
+
+    @Test
+    public void register_CollectsNestedProjectsAsPluginsAreApplied() {
+        final Map<String, Action<AppliedPlugin>> callbacks = new HashMap<>();
+        final Project app = mockProject(":apps:app", callbacks);
+        final Project feature = mockProject(":feature", callbacks);
+        final Project root = mockRoot(false, mockProject(":", callbacks), feature, app);
+
+        final PluginModuleCollector collector = PluginModuleCollector.register(root, "com.android.application",
+                "com.android.dynamic-feature");
+        assertThat(callbacks.size(), is(6));
+        assertThat(collector.getProjects(), is(empty()));
+
+        callbacks.get(":feature|com.android.dynamic-feature").execute(mock(AppliedPlugin.class));
+        callbacks.get(":apps:app|com.android.application").execute(mock(AppliedPlugin.class));
+        assertThat(collector.getProjects(), equalTo(Arrays.asList(app, feature)));
+        verify(root, never()).evaluationDependsOn(anyString());
+    }
+
+    @Test
+    public void register_ConfigureOnDemandConfiguresCandidates() throws IOException {
+        final Map<String, Action<AppliedPlugin>> callbacks = new HashMap<>();
+        final Project app = mockProject(":app", callbacks);
+        final Project library = mockProject(":library", callbacks);
+        final File appBuildFile = tempFolder.newFile("app.gradle.kts");
+        final File libraryBuildFile = tempFolder.newFile("library.gradle");
+        Files.write(appBuildFile.toPath(), "plugins {\n    alias(libs.plugins.android.application)\n}\n"
+                .getBytes(StandardCharsets.UTF_8));
+        Files.write(libraryBuildFile.toPath(), "// com.android.application\napply plugin: 'java'\n"
+                .getBytes(StandardCharsets.UTF_8));
+        when(app.getBuildFile()).thenReturn(appBuildFile);
+        when(library.getBuildFile()).thenReturn(libraryBuildFile);
+        final Project root = mockRoot(true, mockProject(":", callbacks), app, library);
+
+        PluginModuleCollector.register(root, "com.android.application");
+        verify(root).evaluationDependsOn(":app");
+        verify(root, never()).evaluationDependsOn(":library");
+    }
+
+    @Test
+    public void register_ConfigureOnDemandNoCandidates() {
+        final Map<String, Action<AppliedPlugin>> callbacks = new HashMap<>();
+        final Project app = mockProject(":app", callbacks);
+        when(app.getBuildFile()).thenReturn(new File(tempFolder.getRoot(), "missing.gradle"));
+        final Project root = mockRoot(true, mockProject(":", callbacks), app);
+
+        PluginModuleCollector.register(root, "com.android.application");
+        verify(root).evaluationDependsOn(":app");
+    }
+}
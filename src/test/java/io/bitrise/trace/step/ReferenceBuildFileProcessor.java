@@ -0,0 +1,262 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.Dependency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original, regular expression and line based processing of build files, as it was before
+ * {@link BuildScriptLexer}, and the original configuration based dependency check, as it was before
+ * {@link DependencyIndex}. Used as the reference in the differential tests and as the baseline in the JMH
+ * benchmarks: an optimized path has to produce the same code as these methods.
+ */
+class ReferenceBuildFileProcessor {
+
+    private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("(['\"])(?:(?!(?:\\\\|\\1)).|\\\\.)*\\1");
+    private static final Pattern BUILDSCRIPT_PATTERN = Pattern.compile("buildscript[ \\t\\n\\r]*\\{");
+
+    private ReferenceBuildFileProcessor() {
+        // Static helper
+    }
+
+    /**
+     * Removes the comments from the given content with {@link #removeCommentedCode(List)}. The content is split into
+     * lines the way {@link java.nio.file.Files#readAllLines(java.nio.file.Path)} does, so the line break at the end of
+     * the content does not add an empty line.
+     *
+     * @param content the content of a build file.
+     * @return the code of the build file.
+     */
+    static String removeComments(final String content) {
+        final String lines = content.endsWith("\n") ? content.substring(0, content.length() - 1) : content;
+        return removeCommentedCode(Arrays.asList(lines.split("\n", -1)));
+    }
+
+    /**
+     * Finds the String literals in the given code with the original regular expression.
+     *
+     * @param code the code of a build file, without comments.
+     * @return the List of the literals.
+     */
+    static List<String> findStringLiterals(final String code) {
+        final List<String> literals = new ArrayList<>();
+        final Matcher matcher = STRING_LITERAL_PATTERN.matcher(code);
+        while (matcher.find()) {
+            literals.add(matcher.group());
+        }
+        return literals;
+    }
+
+    /**
+     * Updates the buildscript block of the given content the original way: the comments are removed, and the first
+     * "buildscript {" that is not in a String literal is replaced. The inserted content is wrapped in line breaks, as
+     * the markers of the {@link InjectedRegion} are line comments, so only their line breaks are part of the code.
+     *
+     * @param content the content of a build file.
+     * @return the updated code, or {@code null} if there is no buildscript block.
+     */
+    static String updateBuildScriptContent(final String content) {
+        final String code = removeComments(content);
+        final Matcher literalMatcher = STRING_LITERAL_PATTERN.matcher(code);
+        final List<int[]> literals = new ArrayList<>();
+        while (literalMatcher.find()) {
+            literals.add(new int[]{literalMatcher.start(), literalMatcher.end()});
+        }
+        final Matcher matcher = BUILDSCRIPT_PATTERN.matcher(code);
+        while (matcher.find()) {
+            final int start = matcher.start();
+            if (literals.stream().noneMatch(it -> it[0] <= start && start < it[1])) {
+                return code.substring(0, start) + "buildscript {\n" +
+                        InjectTraceTask.getTraceGradlePluginDependency(InjectTraceTask.DYNAMIC_VERSION) +
+                        InjectTraceTask.getBuildScriptRepositoryContent(null) + "\n" + code.substring(matcher.end());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts back a line break into the given code of {@link BuildScriptTokens#getCode()} in place of every removed
+     * comment that spans lines, so it can be compared exactly with the code of {@link #removeComments(String)}. This
+     * is the only difference between the two: the reference works line by line, and keeps the line break of the first
+     * line of such a comment, while the lexer removes the comment with all of its line breaks. Comments on a single
+     * line are removed by both the same way.
+     *
+     * @param tokens the tokens, that the code has been created from.
+     * @param code   the code of the tokens.
+     * @return the code with the line breaks of the multiline comments.
+     */
+    static String withMultilineCommentLineBreaks(final BuildScriptTokens tokens, final String code) {
+        final CharSequence text = tokens.getText();
+        final IntervalIndex comments = tokens.getComments();
+        final StringBuilder result = new StringBuilder(code.length() + comments.size());
+        int removedLength = 0;
+        int offset = 0;
+        for (int i = 0; i < comments.size(); i++) {
+            if (hasLineBreak(text, comments.start(i), comments.end(i))) {
+                final int codeOffset = comments.start(i) - removedLength;
+                result.append(code, offset, codeOffset).append('\n');
+                offset = codeOffset;
+            }
+            removedLength += comments.end(i) - comments.start(i);
+        }
+        return result.append(code, offset, code.length()).toString();
+    }
+
+    /**
+     * Checks if the given range of the text has a line break in it.
+     *
+     * @param text  the text.
+     * @param start the start index (inclusive) of the range.
+     * @param end   the end index (exclusive) of the range.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    private static boolean hasLineBreak(final CharSequence text, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the given {@link Configuration} has dependency on the given dependency or not.
+     *
+     * @param configuration       the given Configuration.
+     * @param dependencyName      the name of the dependency to check for.
+     * @param dependencyGroupName the group of the dependency to check for.
+     * @return {@code true} if it has, {@code false} otherwise.
+     */
+    static boolean hasDependency(final Configuration configuration, final String dependencyName,
+                                 final String dependencyGroupName) {
+        for (final Dependency dependency : configuration.getAllDependencies()) {
+            if (dependency.getName().equals(dependencyName) &&
+                    dependency.getGroup() != null &&
+                    dependency.getGroup().equals(dependencyGroupName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all the commented code from a List of Strings.
+     *
+     * @param lines the List of lines
+     * @return the String value of the code.
+     */
+    static String removeCommentedCode(final List<String> lines) {
+        final String currentLineComment = "//";
+        final String greedyCommentStart = "/*";
+        final String greedyCommentEnd = "*/";
+        final Pattern pattern = getGreedyCommentBlockPattern();
+
+        final StringBuilder stringBuilder = new StringBuilder();
+        boolean isGreedyCommented = false;
+        for (final String line : lines) {
+            String reducedLine = removeGreedyCommentBlocksFromLine(line, pattern);
+            final int gceIndex = getIndexOfFromCode(reducedLine, greedyCommentEnd);
+            if (gceIndex >= 0) {
+                reducedLine = reducedLine.substring(reducedLine.indexOf(greedyCommentEnd) + greedyCommentEnd.length());
+                isGreedyCommented = false;
+            } else if (isGreedyCommented) {
+                continue;
+            }
+
+            final int clcIndex = getIndexOfFromCode(reducedLine, currentLineComment);
+            final int gcsIndex = getIndexOfFromCode(reducedLine, greedyCommentStart);
+            final int csIndex = getSmallestNonNegativeNumber(clcIndex, gcsIndex);
+            if (csIndex >= 0) {
+                if (csIndex == gcsIndex) {
+                    isGreedyCommented = true;
+                }
+                reducedLine = reducedLine.substring(0, csIndex);
+            }
+
+            stringBuilder.append(reducedLine).append("\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Gets the index of a given substring from a given code line. Ignores String and char contents.
+     *
+     * @param text      the String that will be checked.
+     * @param searchFor the substring to look for.
+     * @return the index of the start of the substring if there is a match, {@code -1} otherwise (similarly to
+     * {@link String#indexOf(int)}).
+     */
+    static int getIndexOfFromCode(final String text, final String searchFor) {
+        final char[] searchForChars = searchFor.toCharArray();
+        boolean skipNext = false;
+        for (int i = 0; i < text.length(); i++) {
+            final char currentChar = text.charAt(i);
+            if (currentChar == '"' || currentChar == '\'') {
+                skipNext = !skipNext;
+                continue;
+            }
+
+            if (skipNext) {
+                continue;
+            }
+
+            boolean match = false;
+            for (int j = 0; j < searchForChars.length; j++) {
+                if (i + j >= text.length()) {
+                    break;
+                }
+                if (text.charAt(i + j) == searchForChars[j]) {
+                    match = true;
+                    continue;
+                }
+                match = false;
+                break;
+            }
+
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes complete greedy comment blocks from a line.
+     *
+     * @param line    the given line.
+     * @param pattern the Pattern to use for removing.
+     * @return the line without greedy comment blocks.
+     */
+    static String removeGreedyCommentBlocksFromLine(final String line, final Pattern pattern) {
+        final Matcher matcher = pattern.matcher(line);
+        if (matcher.find()) {
+            return matcher.replaceAll("");
+        }
+        return line;
+    }
+
+    /**
+     * Gets the Pattern for getting greedy comment blocks.
+     *
+     * @return the compiled pattern.
+     */
+    static Pattern getGreedyCommentBlockPattern() {
+        final String regex = "/\\*.*?\\*/";
+        return Pattern.compile(regex);
+    }
+
+    /**
+     * Gets the smallest non-negative number from the given numbers.
+     *
+     * @param numbers the numbers.
+     * @return the smallest non-negative number, or -1 if there is no positive.
+     */
+    static int getSmallestNonNegativeNumber(final int... numbers) {
+        return Arrays.stream(numbers).filter(i -> i >= 0).min().orElse(-1);
+    }
+}
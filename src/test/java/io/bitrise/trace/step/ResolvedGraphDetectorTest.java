@@ -0,0 +1,145 @@
+package io.bitrise.trace.step;
+
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ConfigurationContainer;
+import org.gradle.api.artifacts.ModuleVersionIdentifier;
+import org.gradle.api.artifacts.ResolvableDependencies;
+import org.gradle.api.artifacts.result.DependencyResult;
+import org.gradle.api.artifacts.result.ResolutionResult;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+import org.gradle.api.artifacts.result.ResolvedDependencyResult;
+import org.gradle.api.artifacts.result.UnresolvedDependencyResult;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for {@link ResolvedGraphDetector}.
+ */
+public class ResolvedGraphDetectorTest {
+
+    private static ResolvedComponentResult mockComponent(final String group, final String name) {
+        final ResolvedComponentResult component = mock(ResolvedComponentResult.class);
+        final ModuleVersionIdentifier moduleVersion = mock(ModuleVersionIdentifier.class);
+        when(moduleVersion.getGroup()).thenReturn(group);
+        when(moduleVersion.getName()).thenReturn(name);
+        when(component.getModuleVersion()).thenReturn(moduleVersion);
+        when(component.getDependencies()).thenReturn(Collections.emptySet());
+        return component;
+    }
+
+    private static void addDependencies(final ResolvedComponentResult component,
+                                        final ResolvedComponentResult... selected) {
+        final LinkedHashSet<DependencyResult> dependencies = new LinkedHashSet<>();
+        for (final ResolvedComponentResult dependency : selected) {
+            final ResolvedDependencyResult result = mock(ResolvedDependencyResult.class);
+            when(result.getSelected()).thenReturn(dependency);
+            dependencies.add(result);
+        }
+        dependencies.add(mock(UnresolvedDependencyResult.class));
+        when(component.getDependencies()).thenAnswer(invocation -> dependencies);
+    }
+
+    //region chooseRepresentativeConfiguration tests
+    @Test
+    public void chooseRepresentativeConfiguration_Release() {
+        final String actual = ResolvedGraphDetector.chooseRepresentativeConfiguration(new TreeSet<>(Arrays.asList(
+                "debugRuntimeClasspath", "implementation", "releaseRuntimeClasspath",
+                "releaseUnitTestRuntimeClasspath")));
+        assertThat(actual, equalTo("releaseRuntimeClasspath"));
+    }
+
+    @Test
+    public void chooseRepresentativeConfiguration_FirstNotTestVariant() {
+        final String actual = ResolvedGraphDetector.chooseRepresentativeConfiguration(new TreeSet<>(Arrays.asList(
+                "debugAndroidTestRuntimeClasspath", "debugUnitTestRuntimeClasspath", "freeDebugRuntimeClasspath",
+                "paidDebugRuntimeClasspath")));
+        assertThat(actual, equalTo("freeDebugRuntimeClasspath"));
+    }
+
+    @Test
+    public void chooseRepresentativeConfiguration_JavaModule() {
+        final String actual = ResolvedGraphDetector.chooseRepresentativeConfiguration(new TreeSet<>(Arrays.asList(
+                "compileClasspath", "runtimeClasspath", "testRuntimeClasspath")));
+        assertThat(actual, equalTo("runtimeClasspath"));
+    }
+
+    @Test
+    public void chooseRepresentativeConfiguration_None() {
+        final String actual = ResolvedGraphDetector.chooseRepresentativeConfiguration(
+                Arrays.asList("implementation", "debugUnitTestRuntimeClasspath"));
+        assertThat(actual, is(nullValue()));
+    }
+    //endregion
+
+    //region containsModule tests
+    @Test
+    public void containsModule_Transitive() {
+        final ResolvedComponentResult root = mockComponent("com.example", "app");
+        final ResolvedComponentResult library = mockComponent("com.example", "library");
+        final ResolvedComponentResult sdk = mockComponent("io.bitrise.trace", "trace-sdk");
+        addDependencies(root, library);
+        addDependencies(library, sdk);
+
+        assertThat(ResolvedGraphDetector.containsModule(root, "io.bitrise.trace", "trace-sdk"), is(true));
+    }
+
+    @Test
+    public void containsModule_CycleNotFound() {
+        final ResolvedComponentResult root = mockComponent("com.example", "app");
+        final ResolvedComponentResult first = mockComponent("com.example", "first");
+        final ResolvedComponentResult second = mockComponent("com.example", "second");
+        addDependencies(root, first, second);
+        addDependencies(first, second);
+        addDependencies(second, first);
+
+        assertThat(ResolvedGraphDetector.containsModule(root, "io.bitrise.trace", "trace-sdk"), is(false));
+        verify(second, times(1)).getDependencies();
+    }
+
+    @Test
+    public void containsModule_SameNameOtherGroup() {
+        final ResolvedComponentResult root = mockComponent("com.example", "app");
+        addDependencies(root, mockComponent("com.example", "trace-sdk"));
+
+        assertThat(ResolvedGraphDetector.containsModule(root, "io.bitrise.trace", "trace-sdk"), is(false));
+    }
+    //endregion
+
+    @Test
+    public void hasDependency_ResolvedOnce() {
+        final ResolvedComponentResult root = mockComponent("com.example", "app");
+        addDependencies(root, mockComponent("io.bitrise.trace", "trace-sdk"));
+        final ResolutionResult resolutionResult = mock(ResolutionResult.class);
+        when(resolutionResult.getRoot()).thenReturn(root);
+        final ResolvableDependencies incoming = mock(ResolvableDependencies.class);
+        when(incoming.getResolutionResult()).thenReturn(resolutionResult);
+        final Configuration configuration = mock(Configuration.class);
+        when(configuration.isCanBeResolved()).thenReturn(true);
+        when(configuration.getIncoming()).thenReturn(incoming);
+        final ConfigurationContainer configurations = mock(ConfigurationContainer.class);
+        when(configurations.getNames()).thenReturn(new TreeSet<>(Collections.singleton("releaseRuntimeClasspath")));
+        when(configurations.getByName("releaseRuntimeClasspath")).thenReturn(configuration);
+        final Project project = mock(Project.class);
+        when(project.getPath()).thenReturn(":app");
+        when(project.getConfigurations()).thenReturn(configurations);
+
+        final ResolvedGraphDetector detector = new ResolvedGraphDetector();
+        assertThat(detector.hasDependency(project, "io.bitrise.trace", "trace-sdk"), is(true));
+        assertThat(detector.hasDependency(project, "io.bitrise.trace", "trace-sdk"), is(true));
+        verify(configuration, times(1)).getIncoming();
+    }
+}
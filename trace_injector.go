@@ -5,6 +5,7 @@ import (
 	"fmt"
 	"github.com/kballard/go-shellquote"
 	"io"
+	"io/ioutil"
 	"os"
 	"os/exec"
 	"path"
@@ -12,43 +13,84 @@ import (
 	"strings"
 )
 
-// Appends the TraceInjectorTask to the end of the root build.gradle.
+// Appends the TraceInjectorTask to the end of the root build.gradle, if it is not there yet. The task declaration that
+// earlier versions of the step appended is removed, as the plugin registers the task with the same name. The file is
+// only written when its content changes: in the ROOT plugin classpath mode it is an output of the TraceInjectorTask, so
+// rewriting it would make the task run again on an already injected workspace.
 func appendTraceInjectorTaskToProject(path string) error {
-	f, err := os.OpenFile(path, os.O_APPEND|os.O_WRONLY, 0644)
+	c, err := getTraceInjectorTaskContent(path)
 	if err != nil {
-		return fmt.Errorf("failed to open file on path \"%s\". %s", path, err)
+		return err
 	}
 
-	defer func() {
-		err = f.Close()
-	}()
-
-	c, err := getTraceInjectorTaskContent(path)
+	original, err := ioutil.ReadFile(path)
 	if err != nil {
-		return err
+		return fmt.Errorf("failed to read file on path \"%s\". %s", path, err)
 	}
 
-	if _, err := f.WriteString(c); err != nil {
+	content := strings.Replace(string(original), getLegacyTraceInjectorTaskContent(path), "", -1)
+	if !strings.Contains(content, strings.TrimSpace(c)) {
+		content += c
+	}
+	if content == string(original) {
+		return nil
+	}
+
+	if err := ioutil.WriteFile(path, []byte(content), 0644); err != nil {
 		return fmt.Errorf("failed to write content \"%s\" to file. Reason: %s", c, err)
 	}
 	return nil
 }
 
-// Gets the string value for creating the TraceInjectorTask.
+// Gets the declaration of the TraceInjectorTask, that earlier versions of the step appended to the given root
+// build.gradle, including the line breaks before it.
+func getLegacyTraceInjectorTaskContent(path string) string {
+	if strings.HasSuffix(path, kotlinBuildGradleSuffix) {
+		return fmt.Sprint("\n\ntasks.register<", legacyInjectTraceTaskClassName, ">(\"", injectTraceTaskName, "\")")
+	}
+	return fmt.Sprint("\n\ntask ", injectTraceTaskName, "(type: ", legacyInjectTraceTaskClassName, ")")
+}
+
+// Gets the string value for creating the TraceInjectorTask: the plugin, that registers the task, is applied.
 func getTraceInjectorTaskContent(path string) (string, error) {
 	if strings.HasSuffix(path, kotlinBuildGradleSuffix) {
-		// tasks.register<io.bitrise.trace.step.InjectTraceTask>("injectTraceTask")
-		return fmt.Sprint("\n\ntasks.register<", injectTraceTaskClassName, ">(\"", injectTraceTaskName, "\")"), nil
+		// apply<io.bitrise.trace.step.InjectTracePlugin>()
+		return fmt.Sprint("\n\napply<", injectTracePluginClassName, ">()"), nil
 	} else if strings.HasSuffix(path, groovyBuildGradleSuffix) {
-		// task injectTraceTask(type: io.bitrise.trace.step.InjectTraceTask)
-		return fmt.Sprint("\n\ntask ", injectTraceTaskName, "(type: ", injectTraceTaskClassName, ")"), nil
+		// apply plugin: io.bitrise.trace.step.InjectTracePlugin
+		return fmt.Sprint("\n\napply plugin: ", injectTracePluginClassName), nil
 	}
 	return "", fmt.Errorf("could not determine the language for gradle file at %s", path)
 }
 
-// Copies the TraceInjectorTask.java file from the steps source to the given projects buildSrc directory.
+// Copies the source files of the TraceInjectorTask (the whole "io.bitrise.trace.step" package) from the steps source to
+// the given projects buildSrc directory.
 func addTaskFile(stepDir, projDir string) error {
-	in, err := os.Open(path.Join(stepDir, injectTraceTaskFileSrcPath))
+	srcDir := path.Join(stepDir, injectTraceTaskSrcDir)
+	files, err := ioutil.ReadDir(srcDir)
+	if err != nil {
+		return err
+	}
+
+	dstDir := path.Join(projDir, injectTraceTaskDstDir)
+	if err := os.MkdirAll(dstDir, os.ModePerm); err != nil {
+		return err
+	}
+
+	for _, f := range files {
+		if f.IsDir() || !strings.HasSuffix(f.Name(), ".java") {
+			continue
+		}
+		if err := copyFile(path.Join(srcDir, f.Name()), path.Join(dstDir, f.Name())); err != nil {
+			return err
+		}
+	}
+	return nil
+}
+
+// Copies the file on the given source path to the given destination path.
+func copyFile(src, dst string) error {
+	in, err := os.Open(src)
 	if err != nil {
 		return err
 	}
@@ -56,11 +98,6 @@ func addTaskFile(stepDir, projDir string) error {
 		err = in.Close()
 	}()
 
-	dst := path.Join(projDir, injectTraceTaskFileDstPath)
-	e := os.MkdirAll(filepath.Dir(dst), os.ModePerm)
-	if e != nil {
-		return e
-	}
 	out, err := os.Create(dst)
 	if err != nil {
 		return err
@@ -76,8 +113,43 @@ func addTaskFile(stepDir, projDir string) error {
 	return out.Close()
 }
 
-// Runs the TraceInjectorTask. This will inject the required dependencies and apply the plugin for Trace.
-func runTraceInjector(rootDir, options string) error {
+// Prepares the local Maven repository of the Trace artifacts from the given source, and returns the absolute path of
+// its directory. A directory is used as it is, a tarball (.tar, .tar.gz or .tgz) is extracted to the
+// localRepositoryDstDir of the given project, replacing the result of any previous extraction.
+func prepareLocalRepository(rootDir, source string) (string, error) {
+	info, err := os.Stat(source)
+	if err != nil {
+		return "", fmt.Errorf("cannot access the local repository \"%s\". %s", source, err)
+	}
+	if info.IsDir() {
+		return filepath.Abs(source)
+	}
+	if !strings.HasSuffix(source, ".tar") && !strings.HasSuffix(source, ".tar.gz") && !strings.HasSuffix(source, ".tgz") {
+		return "", fmt.Errorf("the local repository \"%s\" is neither a directory nor a tarball", source)
+	}
+
+	dstDir, err := filepath.Abs(path.Join(rootDir, localRepositoryDstDir))
+	if err != nil {
+		return "", err
+	}
+	if err := os.RemoveAll(dstDir); err != nil {
+		return "", err
+	}
+	if err := os.MkdirAll(dstDir, os.ModePerm); err != nil {
+		return "", err
+	}
+
+	cmd := exec.Command("tar", "-xf", source, "-C", dstDir)
+	printCommand(cmd)
+	if out, err := cmd.CombinedOutput(); err != nil {
+		return "", fmt.Errorf("failed to extract \"%s\". Error: %s\nOutput: %s", source, err, out)
+	}
+	return dstDir, nil
+}
+
+// Runs the TraceInjectorTask. This will inject the required dependencies and apply the plugin for Trace. The given
+// properties are only passed to the TraceInjectorTask, the options are passed to the VerifyTraceTask as well.
+func runTraceInjector(rootDir, options string, properties []string) error {
 	optionSlice, err := shellquote.Split(options)
 	if err != nil {
 		return fmt.Errorf("cannot parse Gradle Task Options, please make sure it is set correctly. Value: \"%s\". Error: %s ", options, err)
@@ -86,6 +158,7 @@ func runTraceInjector(rootDir, options string) error {
 	var stdOut bytes.Buffer
 	var stdErr bytes.Buffer
 	cmdSlice := []string{path.Join(rootDir, "./gradlew"), injectTraceTaskName, "-p", rootDir}
+	cmdSlice = append(cmdSlice, properties...)
 	cmdSlice = append(cmdSlice, optionSlice...)
 
 	cmd := exec.Command(cmdSlice[0], cmdSlice[1:]...)
@@ -0,0 +1,148 @@
+package main
+
+import (
+	"io/ioutil"
+	"os"
+	"os/exec"
+	"path/filepath"
+	"testing"
+)
+
+func Test_appendTraceInjectorTaskToProject(t *testing.T) {
+	tests := []struct {
+		name     string
+		fileName string
+		content  string
+		want     string
+	}{
+		{
+			name:     "Groovy build file",
+			fileName: "build.gradle",
+			content:  "buildscript {}",
+			want:     "buildscript {}\n\napply plugin: io.bitrise.trace.step.InjectTracePlugin",
+		},
+		{
+			name:     "Kotlin build file",
+			fileName: "build.gradle.kts",
+			content:  "buildscript {}",
+			want:     "buildscript {}\n\napply<io.bitrise.trace.step.InjectTracePlugin>()",
+		},
+		{
+			name:     "Groovy build file with the plugin applied",
+			fileName: "build.gradle",
+			content:  "buildscript {}\n\napply plugin: io.bitrise.trace.step.InjectTracePlugin\n",
+			want:     "buildscript {}\n\napply plugin: io.bitrise.trace.step.InjectTracePlugin\n",
+		},
+		{
+			name:     "Kotlin build file with the plugin applied",
+			fileName: "build.gradle.kts",
+			content:  "buildscript {}\n\napply<io.bitrise.trace.step.InjectTracePlugin>()",
+			want:     "buildscript {}\n\napply<io.bitrise.trace.step.InjectTracePlugin>()",
+		},
+		{
+			name:     "Groovy build file with the legacy task",
+			fileName: "build.gradle",
+			content:  "buildscript {}\n\ntask injectTraceTask(type: io.bitrise.trace.step.InjectTraceTask)",
+			want:     "buildscript {}\n\napply plugin: io.bitrise.trace.step.InjectTracePlugin",
+		},
+		{
+			name:     "Kotlin build file with the legacy task",
+			fileName: "build.gradle.kts",
+			content:  "buildscript {}\n\ntasks.register<io.bitrise.trace.step.InjectTraceTask>(\"injectTraceTask\")" +
+				"\n\napply<io.bitrise.trace.step.InjectTracePlugin>()",
+			want: "buildscript {}\n\napply<io.bitrise.trace.step.InjectTracePlugin>()",
+		},
+	}
+	for _, tt := range tests {
+		t.Run(tt.name, func(t *testing.T) {
+			dir, removeDir := tempDir(t)
+			defer removeDir()
+			path := filepath.Join(dir, tt.fileName)
+			if err := ioutil.WriteFile(path, []byte(tt.content), 0644); err != nil {
+				t.Fatal(err)
+			}
+
+			// the second call must not change the file again
+			for i := 0; i < 2; i++ {
+				if err := appendTraceInjectorTaskToProject(path); err != nil {
+					t.Errorf("appendTraceInjectorTaskToProject() error = %v", err)
+				}
+			}
+
+			got, err := ioutil.ReadFile(path)
+			if err != nil {
+				t.Fatal(err)
+			}
+			if string(got) != tt.want {
+				t.Errorf("appendTraceInjectorTaskToProject() got = %q, want %q", got, tt.want)
+			}
+		})
+	}
+}
+
+func Test_prepareLocalRepository(t *testing.T) {
+	dir, removeDir := tempDir(t)
+	defer removeDir()
+	repositoryDir := filepath.Join(dir, "repository")
+	artifactPath := "io/bitrise/trace/trace-sdk/0.0.10/trace-sdk-0.0.10.aar"
+	if err := os.MkdirAll(filepath.Dir(filepath.Join(repositoryDir, artifactPath)), os.ModePerm); err != nil {
+		t.Fatal(err)
+	}
+	if err := ioutil.WriteFile(filepath.Join(repositoryDir, artifactPath), []byte("aar"), 0644); err != nil {
+		t.Fatal(err)
+	}
+	tarball := filepath.Join(dir, "repository.tar.gz")
+	if out, err := exec.Command("tar", "-czf", tarball, "-C", repositoryDir, ".").CombinedOutput(); err != nil {
+		t.Fatalf("failed to create the tarball. %s %s", err, out)
+	}
+	otherFile := filepath.Join(dir, "repository.zip")
+	if err := ioutil.WriteFile(otherFile, []byte("zip"), 0644); err != nil {
+		t.Fatal(err)
+	}
+	rootDir := filepath.Join(dir, "project")
+	extractedDir := filepath.Join(rootDir, localRepositoryDstDir)
+
+	tests := []struct {
+		name    string
+		source  string
+		want    string
+		wantErr bool
+	}{
+		{"directory", repositoryDir, repositoryDir, false},
+		{"tarball", tarball, extractedDir, false},
+		{"tarball_extracted_again", tarball, extractedDir, false},
+		{"not_a_tarball", otherFile, "", true},
+		{"missing", filepath.Join(dir, "missing"), "", true},
+	}
+	for _, tt := range tests {
+		t.Run(tt.name, func(t *testing.T) {
+			got, err := prepareLocalRepository(rootDir, tt.source)
+			if (err != nil) != tt.wantErr {
+				t.Errorf("prepareLocalRepository() error = %v, wantErr %v", err, tt.wantErr)
+				return
+			}
+			if got != tt.want {
+				t.Errorf("prepareLocalRepository() = %v, want %v", got, tt.want)
+			}
+			if tt.wantErr {
+				return
+			}
+			if _, err := os.Stat(filepath.Join(got, artifactPath)); err != nil {
+				t.Errorf("the artifact is not in the local repository. %s", err)
+			}
+		})
+	}
+}
+
+// Creates a temporary directory, and returns it with the function that removes it.
+func tempDir(t *testing.T) (string, func()) {
+	dir, err := ioutil.TempDir("", "trace_injector_test")
+	if err != nil {
+		t.Fatal(err)
+	}
+	return dir, func() {
+		if err := os.RemoveAll(dir); err != nil {
+			t.Error(err)
+		}
+	}
+}